@@ -0,0 +1,273 @@
+package com.student.cloudjavafx;
+
+import com.student.cloudjavafx.storage.StorageConfig;
+import com.student.cloudjavafx.utils.DatabaseConnection;
+import com.student.cloudjavafx.utils.DatabaseConnection.DatabaseType;
+import com.student.cloudjavafx.utils.SqlLiteConnect;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Writes the file_chunks rows of one upload through a connection and transactions of its own.
+ * Rows are sent as JDBC batches of StorageConfig.METADATA_BATCH_ROWS, which MySQL rewrites
+ * into multi-row INSERTs, instead of one statement and one round trip per row. On MySQL
+ * nothing the upload writes through {@link #getConnection()}, including its files row, is
+ * visible to other connections before {@link #commit()}.
+ *
+ * SQLite has a single write lock, which a transaction spanning the whole upload would hold
+ * against every other writer, such as the upload's own log entries. There the rows are queued
+ * and written in short BEGIN IMMEDIATE transactions: one when the caller commits or writes
+ * through {@link #getConnection()}, and, for a file passed to {@link #hideUntilCommit(int)},
+ * one every StorageConfig.METADATA_COMMIT_ROWS rows, while a placeholder upload session keeps
+ * the file out of the file lists until the upload commits.
+ *
+ * The rows written since the last commit are remembered, so that after a rollback the caller
+ * can delete the chunks they pointed to. Not thread-safe; used by the thread driving the upload.
+ */
+final class ChunkMetadataBatch implements AutoCloseable {
+
+    private static final String INSERT_SQL = "INSERT INTO file_chunks (file_id, chunk_number, server_id, checksum, content_id, codec, length, data_shards, parity_shards)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // source_modified = -1 matches no local file, so findUploadSession never resumes a placeholder.
+    private static final String PLACEHOLDER_SQL = "INSERT INTO upload_sessions (session_id, file_id, chunk_bitmap, updated_at, source_modified)"
+            + " VALUES (?, ?, ?, ?, -1)";
+
+    private final boolean sqlite;
+    private final Connection conn;
+    private final PreparedStatement insert;
+    private final List<FileChunk> uncommitted = new ArrayList<>();
+    private int unsent;
+    // SQLite only: whether a BEGIN IMMEDIATE transaction is open on the connection.
+    private boolean inTransaction;
+    // SQLite only: the file hidden by a placeholder session, or -1.
+    private int hiddenFileId = -1;
+    private String placeholderSessionId;
+
+    /**
+     * Opens a connection; on MySQL a transaction is started on it right away.
+     */
+    ChunkMetadataBatch(DatabaseType dbType) throws SQLException {
+        sqlite = dbType == DatabaseType.SQLITE;
+        conn = sqlite ? SqlLiteConnect.openConnection() : DatabaseConnection.getConnection(dbType);
+        try {
+            if (!sqlite) {
+                conn.setAutoCommit(false);
+            }
+            insert = conn.prepareStatement(INSERT_SQL);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The connection of the transaction, for the other rows that belong with the
+     *         chunks. On SQLite a transaction is begun for them, taking in the queued rows.
+     */
+    Connection getConnection() throws SQLException {
+        if (sqlite && !inTransaction) {
+            execute("BEGIN IMMEDIATE");
+            inTransaction = true;
+            flush();
+        }
+        return conn;
+    }
+
+    /**
+     * Makes the files row written through the connection visible to other connections only
+     * as a file whose upload is in progress, until the next commit. On SQLite a placeholder
+     * upload session is committed together with the row, so the rows can be committed as they
+     * come; a rollback deletes them, the row and the placeholder again. If the process dies
+     * first, the placeholder expires like any abandoned session. Nothing to do on MySQL.
+     */
+    void hideUntilCommit(int fileId) throws SQLException {
+        if (!sqlite) {
+            return;
+        }
+        placeholderSessionId = UUID.randomUUID().toString();
+        try (PreparedStatement pstmt = getConnection().prepareStatement(PLACEHOLDER_SQL)) {
+            pstmt.setString(1, placeholderSessionId);
+            pstmt.setInt(2, fileId);
+            pstmt.setBytes(3, new byte[0]);
+            pstmt.setLong(4, System.currentTimeMillis());
+            pstmt.executeUpdate();
+        }
+        execute("COMMIT");
+        inTransaction = false;
+        hiddenFileId = fileId;
+    }
+
+    /**
+     * Queues the row of one chunk replica; a full batch is sent right away.
+     */
+    void add(FileChunk chunk) throws SQLException {
+        // Remembered first, so a row whose batch fails is still rolled back and cleaned up.
+        uncommitted.add(chunk);
+        insert.setInt(1, chunk.getFileId());
+        insert.setInt(2, chunk.getChunkNumber());
+        insert.setInt(3, chunk.getServerId());
+        insert.setString(4, chunk.getChecksum());
+        if (chunk.isContentAddressed()) {
+            insert.setInt(5, chunk.getContentId());
+        } else {
+            insert.setNull(5, Types.INTEGER);
+        }
+        insert.setInt(6, chunk.getCodec().getId());
+        insert.setInt(7, chunk.getLength());
+        insert.setInt(8, chunk.getDataShards());
+        insert.setInt(9, chunk.getParityShards());
+        insert.addBatch();
+        unsent++;
+        if (hiddenFileId != -1 && unsent >= StorageConfig.METADATA_COMMIT_ROWS) {
+            checkpoint();
+        } else if (unsent >= StorageConfig.METADATA_BATCH_ROWS) {
+            flush();
+        }
+    }
+
+    /**
+     * @return The number of rows written since the last commit.
+     */
+    int uncommittedRows() {
+        return uncommitted.size();
+    }
+
+    /**
+     * Sends the queued rows without committing them. On SQLite they are only sent inside a
+     * transaction, and otherwise stay queued until the next one.
+     */
+    void flush() throws SQLException {
+        if (unsent > 0 && (!sqlite || inTransaction)) {
+            unsent = 0;
+            insert.executeBatch();
+        }
+    }
+
+    /**
+     * Sends the queued rows and commits everything written through the connection. A file
+     * hidden until the commit becomes visible.
+     */
+    void commit() throws SQLException {
+        if (sqlite) {
+            if (hiddenFileId != -1) {
+                try (PreparedStatement pstmt = getConnection().prepareStatement("DELETE FROM upload_sessions WHERE session_id = ?")) {
+                    pstmt.setString(1, placeholderSessionId);
+                    pstmt.executeUpdate();
+                }
+            }
+            if (unsent > 0 || inTransaction) {
+                getConnection();
+                execute("COMMIT");
+                inTransaction = false;
+            }
+            hiddenFileId = -1;
+        } else {
+            flush();
+            conn.commit();
+        }
+        uncommitted.clear();
+    }
+
+    /**
+     * Commits the queued rows of a hidden file in a transaction of their own, refreshing its
+     * placeholder session so it does not expire while the upload is still running. Fails if
+     * the session expired anyway and the file is being cleaned up.
+     */
+    private void checkpoint() throws SQLException {
+        try (PreparedStatement pstmt = getConnection().prepareStatement("UPDATE upload_sessions SET updated_at = ? WHERE session_id = ?")) {
+            pstmt.setLong(1, System.currentTimeMillis());
+            pstmt.setString(2, placeholderSessionId);
+            if (pstmt.executeUpdate() == 0) {
+                throw new SQLException("The placeholder session of file " + hiddenFileId + " has expired.");
+            }
+        }
+        execute("COMMIT");
+        inTransaction = false;
+    }
+
+    /**
+     * Discards everything written through the connection since the last commit. On SQLite
+     * this includes the rows of a hidden file already committed in between, and the file.
+     *
+     * @return The chunk rows that were discarded.
+     */
+    List<FileChunk> rollback() {
+        List<FileChunk> discarded = new ArrayList<>(uncommitted);
+        uncommitted.clear();
+        unsent = 0;
+        try {
+            insert.clearBatch();
+            if (!sqlite) {
+                conn.rollback();
+                return discarded;
+            }
+            if (inTransaction) {
+                inTransaction = false;
+                execute("ROLLBACK");
+            }
+            if (hiddenFileId != -1) {
+                deleteHiddenFile();
+            }
+        } catch (SQLException e) {
+            System.err.println("❌ Error rolling back chunk metadata: " + e.getMessage());
+        }
+        return discarded;
+    }
+
+    /**
+     * Deletes the committed rows of a hidden file, its files row and its placeholder session.
+     */
+    private void deleteHiddenFile() throws SQLException {
+        int fileId = hiddenFileId;
+        hiddenFileId = -1;
+        getConnection();
+        for (String sql : new String[]{"DELETE FROM file_chunks WHERE file_id = ?",
+                                       "DELETE FROM upload_sessions WHERE file_id = ?",
+                                       "DELETE FROM files WHERE file_id = ?"}) {
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setInt(1, fileId);
+                pstmt.executeUpdate();
+            }
+        }
+        execute("COMMIT");
+        inTransaction = false;
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    /**
+     * Rolls back whatever was not committed and closes the connection.
+     */
+    @Override
+    public void close() {
+        try {
+            if (!sqlite) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            } else if (inTransaction || hiddenFileId != -1) {
+                rollback();
+            }
+            insert.close();
+        } catch (SQLException e) {
+            System.err.println("❌ Error ending chunk metadata transaction: " + e.getMessage());
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                System.err.println("❌ Error closing chunk metadata connection: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -1,18 +1,35 @@
 package com.student.cloudjavafx;
 
+import com.student.cloudjavafx.storage.ByteBufferInputStream;
+import com.student.cloudjavafx.storage.ChunkCodec;
+
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Represents a single chunk of a file.
  * This class is used to manage file parts that are distributed across different servers.
  */
 public class FileChunk {
+    /**
+     * Reserved file ID under which content-addressed chunks are kept on the file servers.
+     * Such chunks are stored once, keyed by their chunk_contents.content_id, and shared by every file that references them.
+     */
+    public static final int CONTENT_FILE_ID = 0;
+
     private int chunkId;
     private int fileId;
     private int chunkNumber;
     private int serverId;
     private String checksum;
+    private int contentId; // chunk_contents row this chunk references, or 0 if it is stored per file
+    private ChunkCodec codec = ChunkCodec.NONE; // how the stored bytes are encoded
+    private int length; // uncompressed bytes of file data the chunk holds, or 0 if unknown
+    private int dataShards; // k of the file's k+m erasure-coding scheme, or 0 if the file is not erasure-coded
+    private int parityShards; // m of the file's k+m erasure-coding scheme
     private InputStream data; // Represents the chunk's content
+    private ByteBuffer buffer; // The chunk's content when it is passed as a buffer
 
     /**
      * Constructor for creating a new chunk (before saving to DB).
@@ -27,6 +44,19 @@ public class FileChunk {
         this.data = data;
     }
 
+    /**
+     * Constructor for a new chunk whose content is already in memory. The buffer is passed on
+     * to the file server as it is, without being copied; the caller keeps it unchanged until
+     * the chunk is stored.
+     */
+    public FileChunk(int fileId, int chunkNumber, int serverId, String checksum, ByteBuffer data) {
+        this.fileId = fileId;
+        this.chunkNumber = chunkNumber;
+        this.serverId = serverId;
+        this.checksum = checksum;
+        this.buffer = data;
+    }
+
     /**
      * Constructor for retrieving a chunk's metadata (from DB).
      * This constructor is used when you don't have the chunk's data yet.
@@ -60,13 +90,102 @@ public class FileChunk {
         return checksum;
     }
 
+    public ChunkCodec getCodec() {
+        return codec;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    /**
+     * @return true if the chunk is a shard of an erasure-coded stripe.
+     *         Shards are numbered stripe * (k + m) + shardIndex; data shards come first.
+     */
+    public boolean isErasureCoded() {
+        return dataShards > 0;
+    }
+
+    public int getStripe() {
+        return chunkNumber / (dataShards + parityShards);
+    }
+
+    public int getShardIndex() {
+        return chunkNumber % (dataShards + parityShards);
+    }
+
+    public int getContentId() {
+        return contentId;
+    }
+
+    /**
+     * @return true if the chunk's bytes live in the shared content-addressed namespace.
+     */
+    public boolean isContentAddressed() {
+        return contentId > 0;
+    }
+
+    /**
+     * @return The file ID under which the chunk's bytes are stored on its file server.
+     */
+    public int getStorageFileId() {
+        return isContentAddressed() ? CONTENT_FILE_ID : fileId;
+    }
+
+    /**
+     * @return The chunk number under which the chunk's bytes are stored on its file server.
+     */
+    public int getStorageChunkNumber() {
+        return isContentAddressed() ? contentId : chunkNumber;
+    }
+
     public InputStream getData() {
-        return data;
+        return buffer != null ? new ByteBufferInputStream(buffer) : data;
+    }
+
+    /**
+     * Returns the chunk's content as a buffer: the chunk's own buffer, without copying it, if it
+     * was created with one, or the stream read into a new buffer otherwise.
+     *
+     * @return A view with its own position and limit, or null if the chunk has no content.
+     * @throws IOException If the stream cannot be read.
+     */
+    public ByteBuffer getDataBuffer() throws IOException {
+        if (buffer != null) {
+            return buffer.duplicate();
+        }
+        return data == null ? null : ByteBuffer.wrap(data.readAllBytes());
     }
 
     // Setters (if needed, e.g., to set data after retrieval)
     public void setData(InputStream data) {
         this.data = data;
+        this.buffer = null;
+    }
+
+    public void setCodec(ChunkCodec codec) {
+        this.codec = codec;
+    }
+
+    public void setContentId(int contentId) {
+        this.contentId = contentId;
+    }
+
+    public void setLength(int length) {
+        this.length = length;
+    }
+
+    public void setErasureScheme(int dataShards, int parityShards) {
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
     }
 
     @Override
@@ -77,6 +196,10 @@ public class FileChunk {
                 ", chunkNumber=" + chunkNumber +
                 ", serverId=" + serverId +
                 ", checksum='" + checksum + '\'' +
+                ", contentId=" + contentId +
+                ", codec=" + codec +
+                ", length=" + length +
+                (isErasureCoded() ? ", erasure=" + dataShards + "+" + parityShards : "") +
                 '}';
     }
 }
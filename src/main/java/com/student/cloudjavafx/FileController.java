@@ -103,7 +103,8 @@ public class FileController implements Initializable {
         masterData.clear();
         String sql = "SELECT f.*, u.username as owner_name, "
                 + "(SELECT GROUP_CONCAT(permission_type) FROM file_permissions fp WHERE fp.file_id = f.file_id AND fp.user_id = ?) AS user_permission "
-                + "FROM files f JOIN users u ON f.owner_id = u.id WHERE f.owner_id = ?";
+                + "FROM files f JOIN users u ON f.owner_id = u.id WHERE f.owner_id = ? "
+                + "AND f.file_id NOT IN (SELECT file_id FROM upload_sessions)";
         try (Connection conn = DatabaseConnection.getConnection(dbType); 
     PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, currentUserId);
@@ -144,7 +145,7 @@ public class FileController implements Initializable {
                 + "FROM files f "
                 + "JOIN users u ON f.owner_id = u.id "
                 + "JOIN file_permissions fp ON f.file_id = fp.file_id "
-                + "WHERE fp.user_id = ?";
+                + "WHERE fp.user_id = ? AND f.file_id NOT IN (SELECT file_id FROM upload_sessions)";
         try (Connection conn = DatabaseConnection.getConnection(dbType); PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, currentUserId);
             ResultSet rs = pstmt.executeQuery();
@@ -178,9 +179,26 @@ public class FileController implements Initializable {
 
         if (file != null) {
             try (FileInputStream fileStream = new FileInputStream(file)) {
-                if (fileManager.uploadFile(file.getName(), fileStream, file.length(), "application/octet-stream") != -1) {
+                int fileId;
+                String sessionId = null;
+                if (fileManager.supportsResumableUpload(file.length())) {
+                    // Resume an earlier attempt at the same file while its session has not expired.
+                    sessionId = fileManager.findUploadSession(SessionManager.getCurrentUserId(), file.getName(),
+                                                              file.length(), file.lastModified());
+                    if (sessionId == null) {
+                        sessionId = fileManager.startUpload(file.getName(), file.length(), "application/octet-stream",
+                                                            file.lastModified());
+                    }
+                    fileId = sessionId == null ? -1 : fileManager.resumeUpload(sessionId, fileStream);
+                } else {
+                    fileId = fileManager.uploadFile(file.getName(), fileStream, file.length(), "application/octet-stream");
+                }
+                if (fileId != -1) {
                     showInfoAlert("Upload Successful", "File '" + file.getName() + "' uploaded successfully.");
                     loadMyFiles(); // Refresh the table
+                } else if (sessionId != null) {
+                    showErrorAlert("Upload Failed", "Failed to upload file '" + file.getName()
+                            + "'. Upload it again to send the missing parts.");
                 } else {
                     showErrorAlert("Upload Failed", "Failed to upload file '" + file.getName() + "'.");
                 }
@@ -203,11 +221,12 @@ public class FileController implements Initializable {
 
             if (file != null) {
                 try {
-                    // Corrected method call: fileManager.downloadFile now takes the file ID and the save path.
-                    // The error was caused by passing two arguments (fileId and file.getAbsolutePath())
-                    // to a method that only expected one (fileId).
-                    fileManager.downloadFile(selectedFile.getFileId(), file.getAbsolutePath());
-                    showInfoAlert("Download Successful", "File '" + selectedFile.getOriginalName() + "' downloaded successfully.");
+                    // fileManager.downloadFile streams the file's chunks straight into the chosen file.
+                    if (fileManager.downloadFile(selectedFile.getFileId(), file.getAbsolutePath())) {
+                        showInfoAlert("Download Successful", "File '" + selectedFile.getOriginalName() + "' downloaded successfully.");
+                    } else {
+                        showErrorAlert("Download Failed", "Failed to download file '" + selectedFile.getOriginalName() + "'.");
+                    }
                 } catch (IOException e) {
                     showErrorAlert("Download Failed", "An error occurred during file download: " + e.getMessage());
                     e.printStackTrace();
@@ -88,7 +88,8 @@ public class PermissionsController implements Initializable {
     private void loadFilesIntoComboBox() {
         ObservableList<FileItem> files = FXCollections.observableArrayList();
         String sql = "SELECT f.file_id, f.original_name, f.storage_path, f.size, f.owner_id, u.username AS owner_username, f.file_type, f.created_at, f.is_encrypted " +
-                     "FROM files f JOIN users u ON f.owner_id = u.id";
+                     "FROM files f JOIN users u ON f.owner_id = u.id " +
+                     "WHERE f.file_id NOT IN (SELECT file_id FROM upload_sessions)";
 
         try (Connection conn = DatabaseConnection.getConnection(dbType);
              PreparedStatement pstmt = conn.prepareStatement(sql);
@@ -0,0 +1,76 @@
+package com.student.cloudjavafx.fileserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary wire protocol spoken between FileServerClient and ChunkServer.
+ * Every message is a frame prefixed with its length, so a receiver always knows how many
+ * bytes to wait for. All integers are big-endian.
+ *
+ * Request:  [length:int][requestId:int][opcode:byte][fileId:int][chunkNumber:int][crc32c:int][payload]
+ * Response: [length:int][requestId:int][status:byte][payload]
+ *
+ * length counts the bytes that follow it. The request id is echoed back unchanged so that
+ * responses can be matched to requests. Payloads per opcode:
+ * STORE sends the chunk bytes and the CRC32C the server verifies them against;
+ * a successful RETRIEVE answers with [crc32c:int][chunk bytes];
+ * RETRIEVE_RANGE sends [offset:int][length:int] and answers like RETRIEVE with just that part
+ * of the chunk, the CRC32C being computed over the returned bytes;
+ * LIST answers with [count:int][chunkNumber:int]*;
+ * FILTER answers with the server's ChunkBloomFilter in its serialized form;
+ * an ERROR status carries a UTF-8 message.
+ */
+public final class ChunkProtocol {
+
+    public static final byte OP_STORE = 1;
+    public static final byte OP_RETRIEVE = 2;
+    public static final byte OP_DELETE = 3;
+    public static final byte OP_DELETE_FILE = 4;
+    public static final byte OP_LIST = 5;
+    public static final byte OP_RETRIEVE_RANGE = 6;
+    public static final byte OP_FILTER = 7;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_NOT_FOUND = 1;
+    public static final byte STATUS_CORRUPTED = 2;
+    public static final byte STATUS_ERROR = 3;
+
+    /** Request header including the length prefix. */
+    public static final int REQUEST_HEADER_BYTES = 21;
+    /** Response header including the length prefix. */
+    public static final int RESPONSE_HEADER_BYTES = 9;
+    /** Frames larger than this are treated as a protocol error. */
+    public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    /** Server N listens on DEFAULT_BASE_PORT + N unless told otherwise. */
+    public static final int DEFAULT_BASE_PORT = 9100;
+
+    private ChunkProtocol() {
+    }
+
+    /**
+     * @return A flipped buffer holding a request header for a payload of the given length.
+     */
+    public static ByteBuffer requestHeader(int requestId, byte opcode, int fileId, int chunkNumber, int crc, int payloadLength) {
+        ByteBuffer header = ByteBuffer.allocate(REQUEST_HEADER_BYTES);
+        header.putInt(REQUEST_HEADER_BYTES - 4 + payloadLength)
+              .putInt(requestId)
+              .put(opcode)
+              .putInt(fileId)
+              .putInt(chunkNumber)
+              .putInt(crc);
+        return header.flip();
+    }
+
+    /**
+     * @param extra Additional bytes the caller will put right after the header, e.g. a CRC.
+     * @return A buffer holding a response header, positioned after it for the extra bytes.
+     */
+    public static ByteBuffer responseHeader(int requestId, byte status, int payloadLength, int extra) {
+        ByteBuffer header = ByteBuffer.allocate(RESPONSE_HEADER_BYTES + extra);
+        header.putInt(RESPONSE_HEADER_BYTES - 4 + payloadLength)
+              .putInt(requestId)
+              .put(status);
+        return header;
+    }
+}
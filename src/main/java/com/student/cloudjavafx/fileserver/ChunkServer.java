@@ -0,0 +1,601 @@
+package com.student.cloudjavafx.fileserver;
+
+import com.student.cloudjavafx.storage.BufferPool;
+import com.student.cloudjavafx.storage.ChunkBloomFilter;
+import com.student.cloudjavafx.storage.ChunkChecksums;
+import com.student.cloudjavafx.storage.ChunkCorruptedException;
+import com.student.cloudjavafx.storage.ChunkLocation;
+import com.student.cloudjavafx.storage.ChunkScrubber;
+import com.student.cloudjavafx.storage.PooledBuffer;
+import com.student.cloudjavafx.storage.ReadMode;
+import com.student.cloudjavafx.storage.SegmentChunkStore;
+import com.student.cloudjavafx.storage.SegmentCompactor;
+import com.student.cloudjavafx.storage.StorageConfig;
+import com.student.cloudjavafx.storage.TieredChunkStore;
+import com.student.cloudjavafx.storage.TieringMover;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Standalone file server daemon: one process per SERVER_ID, each owning its own
+ * TieredChunkStore. A single selector thread multiplexes every client connection and
+ * speaks {@link ChunkProtocol}. Chunks in the fast tier are sent with FileChannel.transferTo,
+ * so their bytes go from the segment file to the socket without passing through the heap;
+ * the stored CRC32C travels with them and is checked by the client.
+ *
+ * The selector thread only does socket I/O and in-memory lookups. Requests that compute
+ * checksums or wait for the disk (stores, deletes, range reads and reads from the bulk tier,
+ * which are inflated and sent with a CRC32C over the inflated bytes) run on a pool of
+ * StorageConfig.SERVER_WORKER_THREADS workers, which hand their responses back to the
+ * selector through a queue. Stores from all connections therefore share group commits, and
+ * a slow request only holds up its own response. Responses may be sent out of order; clients
+ * match them by request id.
+ *
+ * Run with: java -cp ... com.student.cloudjavafx.fileserver.ChunkServer [serverId] [port]
+ * The server ID defaults to the SERVER_ID environment variable and the port to
+ * CHUNK_SERVER_PORT, or ChunkProtocol.DEFAULT_BASE_PORT + serverId.
+ */
+public class ChunkServer implements Runnable, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ChunkServer.class.getName());
+    private static final int INITIAL_READ_BUFFER = 64 * 1024;
+    // The largest request is a store of the largest chunk an upload produces; 1 MB is
+    // FileManager's fixed chunk size.
+    private static final int MAX_REQUEST_FRAME_BYTES = ChunkProtocol.REQUEST_HEADER_BYTES - 4
+            + Math.max(1024 * 1024, Math.max(StorageConfig.MAX_CHUNK_BYTES, StorageConfig.CDC_MAX_CHUNK_BYTES));
+    // Requests of one connection handed to the workers before it is no longer read from.
+    private static final int MAX_PENDING_REQUESTS = 64;
+
+    private final TieredChunkStore store;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+    private volatile boolean started;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final ExecutorService workers;
+    // Responses of finished worker requests, queued by them for the selector thread to send.
+    private final Queue<Completion> completions = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Binds the server; call {@link #run()} to start serving.
+     *
+     * @param store The store whose chunks are served.
+     * @param address The address to listen on; port 0 picks a free port.
+     * @throws IOException If the address cannot be bound.
+     */
+    public ChunkServer(TieredChunkStore store, InetSocketAddress address) throws IOException {
+        this.store = store;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(StorageConfig.SERVER_WORKER_THREADS, r -> {
+            Thread thread = new Thread(r, "chunk-server-" + store.getServerId() + "-worker-" + workerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return The port the server is listening on.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        started = true;
+        LOGGER.log(Level.INFO, "Chunk server {0} listening on port {1}.", new Object[]{store.getServerId(), String.valueOf(getPort())});
+        try {
+            serve();
+        } finally {
+            // Requests already handed to the workers finish, so the store is not closed under them.
+            workers.shutdown();
+            try {
+                workers.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (SelectionKey key : selector.keys()) {
+                closeConnection(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing selector.", e);
+            }
+            stopped.countDown();
+        }
+    }
+
+    private void serve() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Selector failed.", e);
+                break;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Closing connection after I/O error.", e);
+                    closeConnection(key);
+                }
+            }
+            sendCompletions();
+        }
+    }
+
+    /**
+     * Queues the responses the workers finished on their connections and starts sending them.
+     */
+    private void sendCompletions() {
+        Completion completion;
+        while ((completion = completions.poll()) != null) {
+            SelectionKey key = completion.key;
+            if (!key.isValid()) {
+                continue;
+            }
+            Connection connection = (Connection) key.attachment();
+            connection.pending--;
+            connection.out.addAll(completion.response);
+            try {
+                flush(key);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Closing connection after I/O error.", e);
+                closeConnection(key);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (!started) {
+            serverChannel.close();
+            selector.close();
+            return;
+        }
+        selector.wakeup();
+        try {
+            // The selector thread closes every channel on its way out.
+            stopped.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stopping the chunk server.", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+    }
+
+    /**
+     * Runs a request on a worker, which queues its response for the selector thread.
+     */
+    private void submit(SelectionKey key, int requestId, byte opcode, WorkerRequest request) {
+        Connection connection = (Connection) key.attachment();
+        connection.pending++;
+        try {
+            workers.execute(() -> {
+                List<Object> response;
+                try {
+                    response = request.run();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Request " + requestId + " (opcode " + opcode + ") failed.", e);
+                    response = List.of(response(requestId, ChunkProtocol.STATUS_ERROR, String.valueOf(e.getMessage())));
+                }
+                completions.add(new Completion(key, response));
+                selector.wakeup();
+            });
+        } catch (RejectedExecutionException e) {
+            connection.pending--;
+            connection.out.add(response(requestId, ChunkProtocol.STATUS_ERROR, "Server is shutting down."));
+        }
+    }
+
+    /**
+     * Reads what is available and handles every complete request frame in it.
+     */
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.channel.read(connection.in) == -1) {
+            closeConnection(key);
+            return;
+        }
+
+        ByteBuffer in = connection.in.flip();
+        int needed = 0;
+        while (in.remaining() >= 4) {
+            int frameLength = in.getInt(in.position());
+            if (frameLength < ChunkProtocol.REQUEST_HEADER_BYTES - 4 || frameLength > MAX_REQUEST_FRAME_BYTES) {
+                throw new IOException("Invalid frame length " + frameLength + ".");
+            }
+            if (in.remaining() < 4 + frameLength) {
+                needed = 4 + frameLength;
+                break;
+            }
+            ByteBuffer frame = in.slice(in.position(), 4 + frameLength);
+            in.position(in.position() + 4 + frameLength);
+            handle(key, frame);
+        }
+        in.compact();
+
+        if (needed > in.capacity()) {
+            connection.resize(needed);
+        } else if (in.capacity() > INITIAL_READ_BUFFER && in.position() <= INITIAL_READ_BUFFER
+                   && needed <= INITIAL_READ_BUFFER) {
+            // Give the buffer a large frame needed back once the frame is handled.
+            connection.resize(INITIAL_READ_BUFFER);
+        }
+        flush(key);
+    }
+
+    private void handle(SelectionKey key, ByteBuffer frame) {
+        Connection connection = (Connection) key.attachment();
+        frame.position(4);
+        int requestId = frame.getInt();
+        byte opcode = frame.get();
+        int fileId = frame.getInt();
+        int chunkNumber = frame.getInt();
+        int crc = frame.getInt();
+        ByteBuffer payload = frame.slice();
+
+        try {
+            switch (opcode) {
+                case ChunkProtocol.OP_STORE: {
+                    // The frame's bytes are reused by the next read, so the worker gets a copy.
+                    PooledBuffer data = BufferPool.shared().acquireDirect(payload.remaining());
+                    data.buffer().put(payload);
+                    submit(key, requestId, opcode, () -> {
+                        try {
+                            return List.of(store(requestId, fileId, chunkNumber, data.buffer(), crc));
+                        } finally {
+                            data.release();
+                        }
+                    });
+                    return;
+                }
+                case ChunkProtocol.OP_RETRIEVE: {
+                    store.recordAccess(fileId, chunkNumber);
+                    ChunkLocation location = store.getFastTier().locate(fileId, chunkNumber);
+                    if (location != null) {
+                        connection.out.addAll(transfer(requestId, location));
+                    } else if (store.getBulkTier() != null) {
+                        submit(key, requestId, opcode, () -> retrieveBulk(requestId, fileId, chunkNumber));
+                    } else {
+                        connection.out.add(response(requestId, ChunkProtocol.STATUS_NOT_FOUND, null));
+                    }
+                    return;
+                }
+                case ChunkProtocol.OP_RETRIEVE_RANGE: {
+                    int offset = payload.getInt(0);
+                    int length = payload.getInt(4);
+                    submit(key, requestId, opcode, () -> retrieveRange(requestId, fileId, chunkNumber, offset, length));
+                    return;
+                }
+                case ChunkProtocol.OP_DELETE:
+                    submit(key, requestId, opcode, () -> List.of(response(requestId, store.delete(fileId, chunkNumber)
+                            ? ChunkProtocol.STATUS_OK : ChunkProtocol.STATUS_NOT_FOUND, null)));
+                    return;
+                case ChunkProtocol.OP_DELETE_FILE:
+                    submit(key, requestId, opcode, () -> List.of(response(requestId, store.deleteFile(fileId)
+                            ? ChunkProtocol.STATUS_OK : ChunkProtocol.STATUS_NOT_FOUND, null)));
+                    return;
+                case ChunkProtocol.OP_LIST: {
+                    int[] chunkNumbers = store.listChunks(fileId);
+                    ByteBuffer response = ChunkProtocol.responseHeader(requestId, ChunkProtocol.STATUS_OK,
+                                                                       4 + 4 * chunkNumbers.length, 4 + 4 * chunkNumbers.length);
+                    response.putInt(chunkNumbers.length);
+                    for (int number : chunkNumbers) {
+                        response.putInt(number);
+                    }
+                    connection.out.add(response.flip());
+                    return;
+                }
+                case ChunkProtocol.OP_FILTER: {
+                    ChunkBloomFilter filter = store.getChunkFilter();
+                    int size = filter.serializedSize();
+                    ByteBuffer response = ChunkProtocol.responseHeader(requestId, ChunkProtocol.STATUS_OK, size, size);
+                    filter.writeTo(response);
+                    connection.out.add(response.flip());
+                    return;
+                }
+                default:
+                    connection.out.add(response(requestId, ChunkProtocol.STATUS_ERROR, "Unknown opcode " + opcode + "."));
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Request " + requestId + " (opcode " + opcode + ") failed.", e);
+            connection.out.add(response(requestId, ChunkProtocol.STATUS_ERROR, String.valueOf(e.getMessage())));
+        }
+    }
+
+    /**
+     * Checks a chunk received for storage and stores it durably, joining the group commit of
+     * the stores running on the other workers. Runs on a worker.
+     */
+    private ByteBuffer store(int requestId, int fileId, int chunkNumber, ByteBuffer data, int crc) throws IOException {
+        int actual = ChunkChecksums.crc32c(data);
+        if (actual != crc) {
+            return response(requestId, ChunkProtocol.STATUS_CORRUPTED,
+                            String.format("Chunk %d for file %d arrived with CRC32C %08x, expected %08x.",
+                                          chunkNumber, fileId, actual, crc));
+        }
+        store.put(fileId, chunkNumber, data, crc);
+        return response(requestId, ChunkProtocol.STATUS_OK, null);
+    }
+
+    /**
+     * Inflates a chunk from the bulk tier for sending. Runs on a worker.
+     */
+    private List<Object> retrieveBulk(int requestId, int fileId, int chunkNumber) throws IOException {
+        ByteBuffer data = store.readBulk(fileId, chunkNumber);
+        if (data != null) {
+            ByteBuffer header = ChunkProtocol.responseHeader(requestId, ChunkProtocol.STATUS_OK, 4 + data.remaining(), 4);
+            return List.of(header.putInt(ChunkChecksums.crc32c(data)).flip(), data);
+        }
+        // Possibly promoted since the selector looked it up.
+        ChunkLocation location = store.getFastTier().locate(fileId, chunkNumber);
+        return location != null ? transfer(requestId, location) : List.of(response(requestId, ChunkProtocol.STATUS_NOT_FOUND, null));
+    }
+
+    /**
+     * Reads part of a chunk, checked against the chunk's CRC32C as SegmentChunkStore.readRange
+     * decides. The stored CRC covers the whole chunk, so the range gets one of its own for the
+     * trip over the wire. Runs on a worker.
+     */
+    private List<Object> retrieveRange(int requestId, int fileId, int chunkNumber, int offset, int length) throws IOException {
+        ByteBuffer range;
+        try {
+            range = store.readRange(fileId, chunkNumber, offset, length, ReadMode.MAPPED);
+        } catch (ChunkCorruptedException e) {
+            return List.of(response(requestId, ChunkProtocol.STATUS_CORRUPTED, e.getMessage()));
+        }
+        if (range == null) {
+            return List.of(response(requestId, ChunkProtocol.STATUS_NOT_FOUND, null));
+        }
+        ByteBuffer header = ChunkProtocol.responseHeader(requestId, ChunkProtocol.STATUS_OK, 4 + range.remaining(), 4);
+        return List.of(header.putInt(ChunkChecksums.crc32c(range)).flip(), range);
+    }
+
+    private static List<Object> transfer(int requestId, ChunkLocation location) {
+        ByteBuffer header = ChunkProtocol.responseHeader(requestId, ChunkProtocol.STATUS_OK, 4 + location.getLength(), 4);
+        return List.of(header.putInt(location.getCrc()).flip(), new Transfer(location));
+    }
+
+    private static ByteBuffer response(int requestId, byte status, String message) {
+        byte[] payload = message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer response = ChunkProtocol.responseHeader(requestId, status, payload.length, payload.length);
+        return response.put(payload).flip();
+    }
+
+    /**
+     * Writes queued responses until the socket would block. While responses are waiting to be
+     * written, or MAX_PENDING_REQUESTS of the connection's requests are with the workers, the
+     * connection is not read from, which keeps a fast client from queueing unbounded work.
+     */
+    private void flush(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        while (!connection.out.isEmpty()) {
+            Object next = connection.out.peek();
+            if (next instanceof ByteBuffer) {
+                ByteBuffer buffer = (ByteBuffer) next;
+                connection.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+            } else {
+                Transfer transfer = (Transfer) next;
+                int length = transfer.location.getLength();
+                transfer.position += store.getFastTier().transferTo(transfer.location, transfer.position,
+                                                      length - transfer.position, connection.channel);
+                if (transfer.position < length) {
+                    break;
+                }
+            }
+            connection.out.poll();
+        }
+        if (!connection.out.isEmpty()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(connection.pending < MAX_PENDING_REQUESTS ? SelectionKey.OP_READ : 0);
+        }
+    }
+
+    private static void closeConnection(SelectionKey key) {
+        key.cancel();
+        if (key.attachment() instanceof Connection) {
+            ((Connection) key.attachment()).releaseBuffer();
+        }
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing connection.", e);
+        }
+    }
+
+    /**
+     * Per-connection state: a read buffer from the shared pool, grown for a large frame and
+     * shrunk again once it is handled, and the queue of responses still to send. Only touched
+     * by the selector thread.
+     */
+    private static final class Connection {
+        private final SocketChannel channel;
+        private PooledBuffer inBuffer = BufferPool.shared().acquireDirect(INITIAL_READ_BUFFER);
+        private ByteBuffer in = inBuffer.buffer();
+        // ByteBuffers and Transfers, in the order they must be written.
+        private final ArrayDeque<Object> out = new ArrayDeque<>();
+        // Requests handed to the workers whose responses have not been queued yet.
+        private int pending;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Moves the unread bytes, which must fit, into a buffer of the given capacity.
+         */
+        private void resize(int capacity) {
+            PooledBuffer resized = BufferPool.shared().acquireDirect(capacity);
+            ByteBuffer buffer = resized.buffer();
+            buffer.put(in.flip());
+            inBuffer.release();
+            inBuffer = resized;
+            in = buffer;
+        }
+
+        private void releaseBuffer() {
+            if (inBuffer != null) {
+                inBuffer.release();
+                inBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * A request run on a worker.
+     */
+    @FunctionalInterface
+    private interface WorkerRequest {
+        /**
+         * @return The ByteBuffers and Transfers of the response, in the order they must be written.
+         */
+        List<Object> run() throws IOException;
+    }
+
+    /**
+     * The response to a worker request, on its way back to the selector thread.
+     */
+    private static final class Completion {
+        private final SelectionKey key;
+        private final List<Object> response;
+
+        private Completion(SelectionKey key, List<Object> response) {
+            this.key = key;
+            this.response = response;
+        }
+    }
+
+    /**
+     * A chunk being sent straight from its segment file.
+     */
+    private static final class Transfer {
+        private final ChunkLocation location;
+        private long position;
+
+        private Transfer(ChunkLocation location) {
+            this.location = location;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String serverIdArg = args.length > 0 ? args[0] : System.getenv("SERVER_ID");
+        if (serverIdArg == null) {
+            System.err.println("Usage: ChunkServer <serverId> [port]  (or set SERVER_ID)");
+            System.exit(2);
+        }
+        int serverId = Integer.parseInt(serverIdArg.trim());
+        String portArg = args.length > 1 ? args[1] : System.getenv("CHUNK_SERVER_PORT");
+        int port = portArg != null ? Integer.parseInt(portArg.trim()) : ChunkProtocol.DEFAULT_BASE_PORT + serverId;
+
+        TieredChunkStore store = TieredChunkStore.open(serverId);
+        List<SegmentChunkStore> tiers = new ArrayList<>();
+        tiers.add(store.getFastTier());
+        if (store.getBulkTier() != null) {
+            tiers.add(store.getBulkTier());
+        }
+        ChunkScrubber scrubber = null;
+        if (StorageConfig.SCRUB_BYTES_PER_SECOND > 0) {
+            scrubber = new ChunkScrubber(1, StorageConfig.SCRUB_BYTES_PER_SECOND, StorageConfig.SCRUB_INTERVAL_MINUTES,
+                    (id, fileId, chunkNumber, details) -> LOGGER.log(Level.SEVERE, details));
+            for (SegmentChunkStore tier : tiers) {
+                scrubber.register(tier);
+            }
+        }
+        SegmentCompactor compactor = null;
+        if (StorageConfig.COMPACTION_LIVE_RATIO > 0) {
+            compactor = new SegmentCompactor(1, StorageConfig.COMPACTION_LIVE_RATIO, StorageConfig.COMPACTION_BYTES_PER_SECOND,
+                                             StorageConfig.COMPACTION_INTERVAL_MINUTES);
+            for (SegmentChunkStore tier : tiers) {
+                compactor.register(tier);
+            }
+        }
+        TieringMover mover = null;
+        if (StorageConfig.FAST_TIER_BYTES > 0) {
+            mover = new TieringMover(1, StorageConfig.FAST_TIER_BYTES, StorageConfig.TIERING_BYTES_PER_SECOND,
+                                     StorageConfig.TIERING_INTERVAL_MINUTES);
+            mover.register(store);
+        }
+        ChunkServer server = new ChunkServer(store, new InetSocketAddress(port));
+        ChunkScrubber runningScrubber = scrubber;
+        SegmentCompactor runningCompactor = compactor;
+        TieringMover runningMover = mover;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                if (runningScrubber != null) {
+                    runningScrubber.shutdown();
+                }
+                if (runningCompactor != null) {
+                    runningCompactor.shutdown();
+                }
+                if (runningMover != null) {
+                    runningMover.shutdown();
+                }
+                store.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error during shutdown.", e);
+            }
+        }, "chunk-server-shutdown"));
+        server.run();
+    }
+}
@@ -0,0 +1,502 @@
+package com.student.cloudjavafx.loadbalancing;
+
+import com.student.cloudjavafx.FileChunk;
+import com.student.cloudjavafx.auth.SessionManager;
+import com.student.cloudjavafx.storage.ChunkChecksums;
+import com.student.cloudjavafx.utils.DatabaseConnection;
+import com.student.cloudjavafx.utils.DatabaseConnection.DatabaseType;
+import com.student.cloudjavafx.utils.DatabaseLease;
+import com.student.cloudjavafx.utils.LogManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Moves chunks between file servers so that every active server holds about the same number
+ * of them. Chunks on servers that left the active set are moved off first; then chunks on
+ * servers holding more than their share (the total divided by the number of active servers,
+ * rounded up) are moved to the least loaded servers until none is over its share. Replicas
+ * of a chunk, and the shards of an erasure-coded stripe, are kept on distinct servers.
+ *
+ * A chunk is copied to its new server, checked against its CRC32C, and only then is its
+ * file_chunks row pointed at the new server, with a single conditional UPDATE. The old copy
+ * is deleted StorageConfig.REBALANCE_RETIRE_SECONDS later, so downloads that looked up the
+ * chunk just before the move still find it. Copies run in parallel under a shared byte rate.
+ *
+ * Every client schedules the checks, but a pass only runs in the client holding the
+ * "chunk-rebalancer" {@link DatabaseLease}, so two clients never plan moves from the same
+ * loads. The holder renews the lease on every check and while a long pass runs, and stops a
+ * pass whose lease it lost.
+ *
+ * Content-addressed chunks are left where they are, as their replica list in chunk_contents
+ * is shared by every file referencing them.
+ */
+public class ChunkRebalancer {
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService copiers;
+    private final int threads;
+    private final long bytesPerSecond;
+    private final long retireSeconds;
+    private final long leaseMillis;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private Set<Integer> lastActiveServers; // only touched by the scheduler thread
+    private boolean lastPassIncomplete;
+    private long leaseRenewDue = System.nanoTime(); // when a pass next renews the lease, in System.nanoTime()
+
+    private static final String LEASE_NAME = "chunk-rebalancer";
+
+    /**
+     * @param threads Number of chunks copied at the same time.
+     * @param bytesPerSecond Copy budget over all servers (0 means unthrottled).
+     * @param retireSeconds Delay before the old copy of a moved chunk is deleted.
+     * @param leaseSeconds How long the rebalancing lease is held after it is taken or renewed.
+     */
+    public ChunkRebalancer(int threads, long bytesPerSecond, long retireSeconds, long leaseSeconds) {
+        this.threads = threads;
+        this.bytesPerSecond = bytesPerSecond;
+        this.retireSeconds = retireSeconds;
+        this.leaseMillis = TimeUnit.SECONDS.toMillis(leaseSeconds);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chunk-rebalancer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        this.copiers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "chunk-rebalance-copier");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts checking the active server set every interval, rebalancing whenever it changed or
+     * the previous pass left chunks behind. The first check rebalances unconditionally.
+     * Calling it again has no effect.
+     */
+    public void start(long intervalSeconds) {
+        if (started.compareAndSet(false, true)) {
+            scheduler.scheduleWithFixedDelay(this::check, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        copiers.shutdownNow();
+    }
+
+    private void check() {
+        try {
+            DatabaseType dbType = SessionManager.getCurrentDatabaseType();
+            if (dbType == null) {
+                return; // nobody logged in yet
+            }
+            if (!renewLease(dbType)) {
+                // Another client rebalances; should its lease lapse, start over with a full pass.
+                lastActiveServers = null;
+                return;
+            }
+            // LoadBalancerService binds the database chosen at login when it is created, so it is
+            // created per pass, like rebalance() reads the database type per pass.
+            Set<Integer> active = new TreeSet<>(new LoadBalancerService().getActiveServerIds());
+            if (active.isEmpty() || (active.equals(lastActiveServers) && !lastPassIncomplete)) {
+                return;
+            }
+            if (lastActiveServers != null && !active.equals(lastActiveServers)) {
+                LogManager.logLoadBalancerAction("REBALANCE", "Active servers changed from " + lastActiveServers + " to " + active + ".");
+            }
+            lastActiveServers = active;
+            lastPassIncomplete = rebalance(active) < 0;
+        } catch (RuntimeException e) {
+            // Never let one failed pass cancel the periodic schedule.
+            System.err.println("❌ ChunkRebalancer: Rebalancing failed: " + e);
+            LogManager.logLoadBalancerError("REBALANCE_FAILED", String.valueOf(e.getMessage()));
+            lastPassIncomplete = true;
+        }
+    }
+
+    /**
+     * Takes or renews the rebalancing lease; a pass renews it again once half of it has passed.
+     *
+     * @return Whether this client holds the lease.
+     */
+    private boolean renewLease(DatabaseType dbType) {
+        try {
+            if (DatabaseLease.tryAcquire(dbType, LEASE_NAME, leaseMillis)) {
+                leaseRenewDue = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis / 2);
+                return true;
+            }
+        } catch (SQLException e) {
+            System.err.println("❌ ChunkRebalancer: Error taking the rebalancing lease: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Runs a single pass on the calling thread.
+     *
+     * @param activeServerIds The servers chunks may be placed on.
+     * @return The number of chunks moved, or -1 if some chunks that should have moved could not be.
+     */
+    public int rebalance(Set<Integer> activeServerIds) {
+        DatabaseType dbType = SessionManager.getCurrentDatabaseType();
+        Map<Integer, Integer> loads;
+        List<Integer> fileIds;
+        int share;
+        try {
+            loads = chunkCounts(dbType);
+            for (int serverId : activeServerIds) {
+                loads.putIfAbsent(serverId, 0);
+            }
+            int total = loads.values().stream().mapToInt(Integer::intValue).sum();
+            share = (total + activeServerIds.size() - 1) / activeServerIds.size();
+            Set<Integer> donors = loads.entrySet().stream()
+                    .filter(e -> e.getValue() > 0 && (!activeServerIds.contains(e.getKey()) || e.getValue() > share))
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toCollection(TreeSet::new));
+            if (donors.isEmpty()) {
+                return 0;
+            }
+            fileIds = filesOn(dbType, donors);
+            LogManager.logLoadBalancerAction("REBALANCE", "Moving chunks off servers " + donors + " onto "
+                    + activeServerIds + "; " + share + " chunks per server.");
+        } catch (SQLException e) {
+            System.err.println("❌ ChunkRebalancer: Error reading chunk placement: " + e.getMessage());
+            LogManager.logLoadBalancerError("REBALANCE_FAILED", "Could not read chunk placement: " + e.getMessage());
+            return -1;
+        }
+
+        long passStarted = System.nanoTime();
+        AtomicLong bytesCopied = new AtomicLong();
+        CompletionService<Boolean> completions = new ExecutorCompletionService<>(copiers);
+        int inFlight = 0;
+        int moved = 0;
+        boolean incomplete = false;
+        for (int fileId : fileIds) {
+            if (System.nanoTime() - leaseRenewDue >= 0 && !renewLease(dbType)) {
+                System.err.println("❌ ChunkRebalancer: Lost the rebalancing lease; stopping the pass.");
+                incomplete = true;
+                break;
+            }
+            List<Move> moves;
+            try {
+                moves = plan(getChunks(dbType, fileId), activeServerIds, loads, share);
+            } catch (SQLException e) {
+                System.err.println("❌ ChunkRebalancer: Error reading chunks of file " + fileId + ": " + e.getMessage());
+                incomplete = true;
+                continue;
+            }
+            for (Move move : moves) {
+                // Keep the queue short, so the plan of later files sees current loads.
+                if (inFlight == threads * 2) {
+                    if (await(completions)) {
+                        moved++;
+                    } else {
+                        incomplete = true;
+                    }
+                    inFlight--;
+                }
+                completions.submit(() -> migrate(dbType, move, passStarted, bytesCopied));
+                inFlight++;
+            }
+        }
+        for (; inFlight > 0; inFlight--) {
+            if (await(completions)) {
+                moved++;
+            } else {
+                incomplete = true;
+            }
+        }
+        System.out.println(String.format("ChunkRebalancer: Moved %d chunk(s), %d bytes.", moved, bytesCopied.get()));
+        LogManager.logLoadBalancerAction("REBALANCE", "Moved " + moved + " chunk(s), " + bytesCopied.get() + " bytes"
+                + (incomplete ? "; some chunks could not be moved." : "."));
+        return incomplete ? -1 : moved;
+    }
+
+    /**
+     * Decides which chunks of one file move where, updating the loads as if every move succeeds.
+     * Replicas of one chunk, or the shards of one stripe, form a group whose members must stay
+     * on distinct servers.
+     */
+    private static List<Move> plan(List<FileChunk> chunks, Set<Integer> activeServerIds,
+                                   Map<Integer, Integer> loads, int share) {
+        Map<Integer, List<FileChunk>> groups = new LinkedHashMap<>();
+        for (FileChunk chunk : chunks) {
+            int group = chunk.isErasureCoded() ? chunk.getStripe() : chunk.getChunkNumber();
+            groups.computeIfAbsent(group, k -> new ArrayList<>()).add(chunk);
+        }
+        List<Move> moves = new ArrayList<>();
+        for (List<FileChunk> group : groups.values()) {
+            Map<Integer, Integer> holders = new HashMap<>(); // server -> members of the group on it
+            for (FileChunk chunk : group) {
+                holders.merge(chunk.getServerId(), 1, Integer::sum);
+            }
+            for (FileChunk chunk : group) {
+                int source = chunk.getServerId();
+                boolean leaving = !activeServerIds.contains(source);
+                if (!leaving && loads.get(source) <= share) {
+                    continue;
+                }
+                int target = -1;
+                for (int serverId : activeServerIds) {
+                    if (!holders.containsKey(serverId) && (target == -1 || loads.get(serverId) < loads.get(target))) {
+                        target = serverId;
+                    }
+                }
+                if (target == -1 || (!leaving && loads.get(target) >= share)) {
+                    continue;
+                }
+                moves.add(new Move(chunk, target, otherCopies(group, chunk)));
+                loads.merge(source, -1, Integer::sum);
+                loads.merge(target, 1, Integer::sum);
+                holders.computeIfPresent(source, (serverId, count) -> count == 1 ? null : count - 1);
+                holders.put(target, 1);
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * @return The servers holding other replicas of the same chunk, to read from if its own server fails.
+     */
+    private static List<Integer> otherCopies(List<FileChunk> group, FileChunk chunk) {
+        List<Integer> serverIds = new ArrayList<>();
+        for (FileChunk other : group) {
+            if (other != chunk && other.getChunkNumber() == chunk.getChunkNumber()) {
+                serverIds.add(other.getServerId());
+            }
+        }
+        return serverIds;
+    }
+
+    /**
+     * Copies a chunk to its target server and points its row there.
+     *
+     * @return true if the chunk now lives on the target server.
+     */
+    private boolean migrate(DatabaseType dbType, Move move, long passStarted, AtomicLong bytesCopied)
+            throws IOException, SQLException {
+        FileChunk chunk = move.chunk;
+        int fileId = chunk.getFileId();
+        int chunkNumber = chunk.getChunkNumber();
+        ByteBuffer data = readCopy(move);
+        if (data == null) {
+            System.err.println(String.format("❌ ChunkRebalancer: No readable copy of chunk %d of file %d on server %d.",
+                                             chunkNumber, fileId, chunk.getServerId()));
+            LogManager.logLoadBalancerError("REBALANCE_CHUNK_FAILED", String.format(
+                    "No readable copy of chunk %d of file %d to move off server %d.", chunkNumber, fileId, chunk.getServerId()));
+            return false;
+        }
+        throttle(passStarted, bytesCopied.addAndGet(data.remaining()));
+
+        FileServerClient target = FileServerClient.forServer(move.targetServerId);
+        if (!target.storeChunk(new FileChunk(fileId, chunkNumber, move.targetServerId, chunk.getChecksum(), data))) {
+            return false;
+        }
+        if (!reassign(dbType, chunk.getChunkId(), chunk.getServerId(), move.targetServerId)) {
+            // The file was deleted or the chunk moved by someone else meanwhile.
+            dropIfUnreferenced(dbType, fileId, chunkNumber, move.targetServerId);
+            return false;
+        }
+        System.out.println(String.format("ChunkRebalancer: Moved chunk %d of file %d from server %d to server %d.",
+                                         chunkNumber, fileId, chunk.getServerId(), move.targetServerId));
+        LogManager.logLoadBalancerAction("REBALANCE_CHUNK", String.format("Moved chunk %d of file %d from server %d to server %d.",
+                                                                          chunkNumber, fileId, chunk.getServerId(), move.targetServerId));
+        scheduler.schedule(() -> retire(dbType, fileId, chunkNumber, chunk.getServerId(), move.targetServerId),
+                           retireSeconds, TimeUnit.SECONDS);
+        return true;
+    }
+
+    /**
+     * Reads the stored bytes of a chunk from its own server or, failing that, another replica,
+     * and checks them against the chunk's CRC32C.
+     */
+    private static ByteBuffer readCopy(Move move) {
+        List<Integer> sources = new ArrayList<>();
+        sources.add(move.chunk.getServerId());
+        sources.addAll(move.otherCopies);
+        for (int serverId : sources) {
+            ByteBuffer stored = FileServerClient.forServer(serverId)
+                    .retrieveChunkBuffer(move.chunk.getFileId(), move.chunk.getChunkNumber());
+            if (stored == null) {
+                continue;
+            }
+            String checksum = move.chunk.getChecksum();
+            if (ChunkChecksums.isCrc32c(checksum) && ChunkChecksums.crc32c(stored) != ChunkChecksums.parse(checksum)) {
+                continue;
+            }
+            return stored;
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the copies of a moved chunk that no row points at any more: normally the old one,
+     * and the new one too if the file was deleted in the meantime.
+     */
+    private void retire(DatabaseType dbType, int fileId, int chunkNumber, int sourceServerId, int targetServerId) {
+        try {
+            dropIfUnreferenced(dbType, fileId, chunkNumber, sourceServerId);
+            dropIfUnreferenced(dbType, fileId, chunkNumber, targetServerId);
+        } catch (SQLException e) {
+            System.err.println("❌ ChunkRebalancer: Error retiring chunk " + chunkNumber + " of file " + fileId + ": " + e.getMessage());
+        }
+    }
+
+    private static void dropIfUnreferenced(DatabaseType dbType, int fileId, int chunkNumber, int serverId) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM file_chunks WHERE file_id = ? AND chunk_number = ? AND server_id = ?";
+        try (Connection conn = DatabaseConnection.getConnection(dbType);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, fileId);
+            pstmt.setInt(2, chunkNumber);
+            pstmt.setInt(3, serverId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next() && rs.getInt(1) > 0) {
+                    return;
+                }
+            }
+        }
+        FileServerClient.forServer(serverId).deleteChunk(fileId, chunkNumber);
+    }
+
+    /**
+     * Points a chunk row at its new server, unless the row no longer points at the old one.
+     */
+    private static boolean reassign(DatabaseType dbType, int chunkId, int fromServerId, int toServerId) throws SQLException {
+        String sql = "UPDATE file_chunks SET server_id = ? WHERE chunk_id = ? AND server_id = ?";
+        try (Connection conn = DatabaseConnection.getConnection(dbType);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, toServerId);
+            pstmt.setInt(2, chunkId);
+            pstmt.setInt(3, fromServerId);
+            return pstmt.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * @return The number of per-file chunks on every server that holds any.
+     */
+    private static Map<Integer, Integer> chunkCounts(DatabaseType dbType) throws SQLException {
+        Map<Integer, Integer> counts = new HashMap<>();
+        String sql = "SELECT server_id, COUNT(*) AS chunks FROM file_chunks WHERE COALESCE(content_id, 0) = 0 GROUP BY server_id";
+        try (Connection conn = DatabaseConnection.getConnection(dbType);
+             PreparedStatement pstmt = conn.prepareStatement(sql);
+             ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                counts.put(rs.getInt("server_id"), rs.getInt("chunks"));
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return The files with per-file chunks on any of the given servers.
+     */
+    private static List<Integer> filesOn(DatabaseType dbType, Set<Integer> serverIds) throws SQLException {
+        List<Integer> fileIds = new ArrayList<>();
+        String placeholders = serverIds.stream().map(id -> "?").collect(Collectors.joining(", "));
+        String sql = "SELECT DISTINCT file_id FROM file_chunks WHERE COALESCE(content_id, 0) = 0 AND server_id IN ("
+                + placeholders + ") ORDER BY file_id";
+        try (Connection conn = DatabaseConnection.getConnection(dbType);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            int index = 1;
+            for (int serverId : serverIds) {
+                pstmt.setInt(index++, serverId);
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    fileIds.add(rs.getInt("file_id"));
+                }
+            }
+        }
+        return fileIds;
+    }
+
+    private static List<FileChunk> getChunks(DatabaseType dbType, int fileId) throws SQLException {
+        List<FileChunk> chunks = new ArrayList<>();
+        String sql = "SELECT chunk_id, file_id, chunk_number, server_id, checksum, data_shards, parity_shards"
+                + " FROM file_chunks WHERE file_id = ? AND COALESCE(content_id, 0) = 0 ORDER BY chunk_number";
+        try (Connection conn = DatabaseConnection.getConnection(dbType);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, fileId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    FileChunk chunk = new FileChunk(rs.getInt("chunk_id"), rs.getInt("file_id"), rs.getInt("chunk_number"),
+                                                    rs.getInt("server_id"), rs.getString("checksum"));
+                    chunk.setErasureScheme(rs.getInt("data_shards"), rs.getInt("parity_shards"));
+                    chunks.add(chunk);
+                }
+            }
+        }
+        return chunks;
+    }
+
+    private static boolean await(CompletionService<Boolean> completions) {
+        try {
+            return completions.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            System.err.println("❌ ChunkRebalancer: Moving a chunk failed: " + e.getCause());
+            LogManager.logLoadBalancerError("REBALANCE_CHUNK_FAILED", String.valueOf(e.getCause()));
+            return false;
+        }
+    }
+
+    /**
+     * Sleeps just long enough to keep the average copy rate of the pass under the budget.
+     */
+    private void throttle(long startedNanos, long bytesCopied) throws IOException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long dueNanos = (long) (bytesCopied * 1_000_000_000d / bytesPerSecond);
+        long aheadNanos = dueNanos - (System.nanoTime() - startedNanos);
+        if (aheadNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Rebalancing interrupted.", e);
+            }
+        }
+    }
+
+    /**
+     * One chunk to copy to another server.
+     */
+    private static final class Move {
+        private final FileChunk chunk;
+        private final int targetServerId;
+        private final List<Integer> otherCopies;
+
+        private Move(FileChunk chunk, int targetServerId, List<Integer> otherCopies) {
+            this.chunk = chunk;
+            this.targetServerId = targetServerId;
+            this.otherCopies = otherCopies;
+        }
+    }
+}
@@ -1,30 +1,119 @@
 package com.student.cloudjavafx.loadbalancing;
 
 import com.student.cloudjavafx.FileChunk;
+import com.student.cloudjavafx.storage.ByteBufferInputStream;
+import com.student.cloudjavafx.storage.ChunkCache;
+import com.student.cloudjavafx.storage.ChunkChecksums;
+import com.student.cloudjavafx.storage.ChunkCorruptedException;
+import com.student.cloudjavafx.storage.ChunkScrubber;
+import com.student.cloudjavafx.storage.SegmentCompactor;
+import com.student.cloudjavafx.storage.StorageConfig;
+import com.student.cloudjavafx.storage.TieredChunkStore;
+import com.student.cloudjavafx.storage.TieringMover;
 import com.student.cloudjavafx.utils.LogManager;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Simulates a client for interacting with a distributed file server.
- * In a real application, this would involve network communication (e.g., HTTP, gRPC).
- * For this simulation, it uses an in-memory map to represent server storage.
+ * For this simulation, each server's chunks live in a disk-backed TieredChunkStore
+ * under StorageConfig.STORAGE_ROOT, so stored chunks survive a restart and do not occupy the heap.
+ * Servers listed in StorageConfig.FILE_SERVERS are reached over the network instead;
+ * use {@link #forServer(int)} to get the right client for a server.
  */
 public class FileServerClient {
     private final int serverId;
-    // Simulates storage on a file server: Map<ServerId, Map<FileId, Map<ChunkNumber, ChunkData>>>
-    // Note: The outer map key is serverId, as this class represents a client for a specific server.
-    // The inner map is for fileId -> Map<ChunkNumber, ChunkData>
-    private static final Map<Integer, Map<Integer, Map<Integer, byte[]>>> serverStorage = new ConcurrentHashMap<>();
+    // One segment store per server ID, shared by every client talking to that server.
+    private static final Map<Integer, TieredChunkStore> serverStorage = new ConcurrentHashMap<>();
+    // Read-through cache shared by all clients, so hot chunks skip the trip to the server.
+    private static final ChunkCache chunkCache = StorageConfig.CACHE_BYTES > 0
+            ? new ChunkCache(StorageConfig.CACHE_BYTES)
+            : null;
+    // Walks every opened store in the background and reports chunks that fail their CRC32C.
+    private static final ChunkScrubber scrubber = StorageConfig.SCRUB_BYTES_PER_SECOND > 0
+            ? new ChunkScrubber(4, StorageConfig.SCRUB_BYTES_PER_SECOND, StorageConfig.SCRUB_INTERVAL_MINUTES,
+                                FileServerClient::reportCorruption)
+            : null;
+
+    // Rewrites sparse segments in the background, reclaiming the space of deleted chunks.
+    private static final SegmentCompactor compactor = StorageConfig.COMPACTION_LIVE_RATIO > 0
+            ? new SegmentCompactor(2, StorageConfig.COMPACTION_LIVE_RATIO, StorageConfig.COMPACTION_BYTES_PER_SECOND,
+                                   StorageConfig.COMPACTION_INTERVAL_MINUTES)
+            : null;
+
+    // Moves cold chunks to the compressed bulk tier and hot ones back.
+    private static final TieringMover tieringMover = StorageConfig.FAST_TIER_BYTES > 0
+            ? new TieringMover(2, StorageConfig.FAST_TIER_BYTES, StorageConfig.TIERING_BYTES_PER_SECOND,
+                               StorageConfig.TIERING_INTERVAL_MINUTES)
+            : null;
 
     public FileServerClient(int serverId) {
         this.serverId = serverId;
-        // Initialize storage for this specific server if not already present
-        serverStorage.putIfAbsent(serverId, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Returns a client for a server: a {@link NetworkFileServerClient} if the server has an
+     * address in StorageConfig.FILE_SERVERS, the in-process simulation otherwise.
+     *
+     * @param serverId The ID of the file server.
+     * @return A client for that server.
+     */
+    public static FileServerClient forServer(int serverId) {
+        InetSocketAddress address = StorageConfig.FILE_SERVERS.get(serverId);
+        return address != null ? new NetworkFileServerClient(serverId, address) : new FileServerClient(serverId);
+    }
+
+    public int getServerId() {
+        return serverId;
+    }
+
+    private static TieredChunkStore openStore(int serverId) {
+        try {
+            TieredChunkStore store = TieredChunkStore.open(serverId);
+            if (scrubber != null) {
+                scrubber.register(store.getFastTier());
+                if (store.getBulkTier() != null) {
+                    scrubber.register(store.getBulkTier());
+                }
+            }
+            if (compactor != null) {
+                compactor.register(store.getFastTier());
+                if (store.getBulkTier() != null) {
+                    compactor.register(store.getBulkTier());
+                }
+            }
+            if (tieringMover != null) {
+                tieringMover.register(store);
+            }
+            return store;
+        } catch (IOException e) {
+            LogManager.logServerError(serverId, "STORAGE_OPEN_FAILED", e.getMessage());
+            throw new UncheckedIOException("Could not open chunk storage for server " + serverId, e);
+        }
+    }
+
+    private TieredChunkStore store() {
+        // Open (and recover) the storage for this specific server if not already open
+        return serverStorage.computeIfAbsent(serverId, FileServerClient::openStore);
+    }
+
+    /**
+     * @return Hit/miss statistics of the shared chunk cache, or null if caching is disabled.
+     */
+    public static ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+    static void reportCorruption(int serverId, int fileId, int chunkNumber, String details) {
+        System.err.println(String.format("FileServerClient (Server %d): %s", serverId, details));
+        LogManager.logServerError(serverId, LogManager.FILE_DOWNLOAD_CHUNK_CORRUPTED, details);
     }
 
     /**
@@ -37,24 +126,59 @@ public class FileServerClient {
         try {
             // Simulate network delay
             Thread.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("FileServerClient (Server " + serverId + "): Interrupted while storing chunk.");
+            LogManager.logServerError(serverId, "STORE_CHUNK_FAILED", "Interrupted while storing chunk.");
+            return false;
+        }
+        return storeLocally(chunk);
+    }
 
-            Map<Integer, Map<Integer, byte[]>> fileChunks = serverStorage.get(serverId);
-            fileChunks.putIfAbsent(chunk.getFileId(), new ConcurrentHashMap<>());
-            // Read the data from the InputStream and store it as a byte array
-            fileChunks.get(chunk.getFileId()).put(chunk.getChunkNumber(), chunk.getData().readAllBytes());
+    /**
+     * Stores several chunks in one request. The simulated network delay is paid once for the
+     * whole batch rather than once per chunk.
+     *
+     * @param chunks The chunks to store.
+     * @return One flag per chunk, in the same order, telling whether it was stored.
+     */
+    public boolean[] storeChunks(List<FileChunk> chunks) {
+        boolean[] stored = new boolean[chunks.size()];
+        try {
+            // Simulate network delay
+            Thread.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LogManager.logServerError(serverId, "STORE_CHUNK_FAILED", "Interrupted while storing " + chunks.size() + " chunks.");
+            return stored;
+        }
+        for (int i = 0; i < stored.length; i++) {
+            stored[i] = storeLocally(chunks.get(i));
+        }
+        return stored;
+    }
+
+    private boolean storeLocally(FileChunk chunk) {
+        try {
+            // Append the chunk's buffer to the server's segment files without copying it first.
+            // A CRC32C computed by the uploader is reused, so the payload is not scanned again.
+            ByteBuffer data = chunk.getDataBuffer();
+            int crc = ChunkChecksums.isCrc32c(chunk.getChecksum())
+                    ? ChunkChecksums.parse(chunk.getChecksum())
+                    : ChunkChecksums.crc32c(data);
+            store().put(chunk.getFileId(), chunk.getChunkNumber(), data, crc);
+            // Invalidate after the write, so a concurrent read of the old bytes cannot be cached.
+            if (chunkCache != null) {
+                chunkCache.invalidate(chunk.getFileId(), chunk.getChunkNumber());
+            }
 
             System.out.println(String.format("FileServerClient (Server %d): Stored chunk %d for file %d.",
                                              serverId, chunk.getChunkNumber(), chunk.getFileId()));
             LogManager.logServerAction(serverId, "STORE_CHUNK",
                                        String.format("Chunk %d for file %d stored successfully.", chunk.getChunkNumber(), chunk.getFileId()));
             return true;
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            System.err.println("FileServerClient (Server " + serverId + "): Interrupted while storing chunk.");
-            LogManager.logServerError(serverId, "STORE_CHUNK_FAILED", "Interrupted while storing chunk.");
-            return false;
         } catch (java.io.IOException e) {
-            System.err.println("FileServerClient (Server " + serverId + "): I/O error while reading chunk data.");
+            System.err.println("FileServerClient (Server " + serverId + "): I/O error while storing chunk data.");
             LogManager.logServerError(serverId, "STORE_CHUNK_FAILED", "I/O error while storing chunk.");
             return false;
         }
@@ -63,27 +187,182 @@ public class FileServerClient {
     /**
      * Retrieves a specific file chunk from this simulated file server.
      * This method is now named 'retrieveChunk' and returns an InputStream.
+     * The stream wraps the buffer from {@link #retrieveChunkBuffer} without copying it.
      *
      * @param fileId The ID of the file.
      * @param chunkNumber The number of the chunk.
      * @return The chunk data as an InputStream, or null if not found.
      */
     public InputStream retrieveChunk(int fileId, int chunkNumber) {
+        ByteBuffer chunkData = retrieveChunkBuffer(fileId, chunkNumber);
+        return chunkData == null ? null : new ByteBufferInputStream(chunkData);
+    }
+
+    /**
+     * Retrieves a specific file chunk as a read-only ByteBuffer.
+     * Chunks found in the shared ChunkCache are returned without contacting the server.
+     * Otherwise, depending on StorageConfig.READ_MODE, the buffer is a slice of the memory-mapped
+     * segment, a direct buffer or a heap buffer; callers must not assume it has an array.
+     *
+     * @param fileId The ID of the file.
+     * @param chunkNumber The number of the chunk.
+     * @return The chunk data, or null if not found.
+     */
+    public ByteBuffer retrieveChunkBuffer(int fileId, int chunkNumber) {
+        if (chunkCache != null) {
+            ByteBuffer cached = chunkCache.get(fileId, chunkNumber);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        if (!mightHoldChunk(fileId, chunkNumber)) {
+            // Never stored here: no round trip, and nothing worth reporting.
+            return null;
+        }
+        long loadToken = chunkCache != null ? chunkCache.beginLoad(fileId, chunkNumber) : 0;
+        long started = System.nanoTime();
         try {
             // Simulate network delay
             Thread.sleep(50);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LogManager.logServerError(serverId, "GET_CHUNK_FAILED", "Interrupted while retrieving chunk.");
+            ServerHealth.recordFailure(serverId);
+            return null;
+        }
+        return readLocally(fileId, chunkNumber, loadToken, started);
+    }
 
-            Map<Integer, Map<Integer, byte[]>> fileChunks = serverStorage.get(serverId);
-            if (fileChunks != null && fileChunks.containsKey(fileId)) {
-                byte[] chunkData = fileChunks.get(fileId).get(chunkNumber);
-                if (chunkData != null) {
-                    return new ByteArrayInputStream(chunkData);
-                }
+    /**
+     * Retrieves part of a chunk. A chunk held by the ChunkCache is sliced from there; otherwise
+     * only the requested bytes are read from the server and nothing is cached. A range the
+     * server found to fail its chunk's CRC32C is reported and not returned, so the caller
+     * moves on to another replica.
+     *
+     * @param fileId The ID of the file.
+     * @param chunkNumber The number of the chunk.
+     * @param offset The first byte of the chunk to return.
+     * @param length The number of bytes to return; clipped to the end of the chunk.
+     * @return The requested bytes, or null if the chunk could not be read.
+     */
+    public ByteBuffer retrieveChunkRange(int fileId, int chunkNumber, int offset, int length) {
+        if (chunkCache != null) {
+            ByteBuffer cached = chunkCache.peek(fileId, chunkNumber);
+            if (cached != null) {
+                return sliceRange(cached, offset, length);
+            }
+        }
+        if (!mightHoldChunk(fileId, chunkNumber)) {
+            return null;
+        }
+        long started = System.nanoTime();
+        try {
+            // Simulate network delay
+            Thread.sleep(50);
+            ByteBuffer range = store().readRange(fileId, chunkNumber, offset, length, StorageConfig.READ_MODE);
+            if (range != null) {
+                ServerHealth.recordSuccess(serverId, System.nanoTime() - started);
+                return range;
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            LogManager.logServerError(serverId, "GET_CHUNK_FAILED", "Interrupted while retrieving chunk.");
+            LogManager.logServerError(serverId, "GET_CHUNK_FAILED", "Interrupted while retrieving chunk range.");
+        } catch (ChunkCorruptedException e) {
+            ServerHealth.recordFailure(serverId);
+            reportCorruption(serverId, fileId, chunkNumber, e.getMessage());
+            return null;
+        } catch (IOException e) {
+            LogManager.logServerError(serverId, "GET_CHUNK_FAILED", "I/O error while reading chunk range: " + e.getMessage());
+        }
+        ServerHealth.recordFailure(serverId);
+        LogManager.logServerError(serverId, "GET_CHUNK_FAILED",
+                                  String.format("Range %d+%d of chunk %d for file %d not found.", offset, length, chunkNumber, fileId));
+        return null;
+    }
+
+    /**
+     * @return The given range of a whole chunk, clipped to its end, or null if it starts past the end.
+     */
+    static ByteBuffer sliceRange(ByteBuffer chunk, int offset, int length) {
+        if (offset < 0 || offset > chunk.remaining()) {
+            return null;
         }
+        return chunk.slice(chunk.position() + offset, Math.min(length, chunk.remaining() - offset));
+    }
+
+    /**
+     * Retrieves a contiguous range of chunks of a file.
+     *
+     * @see #retrieveChunks(int, int[])
+     */
+    public ByteBuffer[] retrieveChunks(int fileId, int firstChunkNumber, int count) {
+        int[] chunkNumbers = new int[count];
+        for (int i = 0; i < count; i++) {
+            chunkNumbers[i] = firstChunkNumber + i;
+        }
+        return retrieveChunks(fileId, chunkNumbers);
+    }
+
+    /**
+     * Retrieves several chunks of a file in one request. Cached chunks are served from the
+     * ChunkCache; the simulated network delay is paid once for the rest of the batch.
+     *
+     * @param fileId The ID of the file.
+     * @param chunkNumbers The chunks to retrieve.
+     * @return One buffer per requested chunk, in the same order; an entry is null if that
+     *         chunk could not be retrieved. Buffers follow the rules of {@link #retrieveChunkBuffer}.
+     */
+    public ByteBuffer[] retrieveChunks(int fileId, int[] chunkNumbers) {
+        ByteBuffer[] chunks = new ByteBuffer[chunkNumbers.length];
+        // Chunks left to ask the server for: not cached, and possibly held by it.
+        boolean[] wanted = new boolean[chunkNumbers.length];
+        long[] loadTokens = new long[chunkNumbers.length];
+        boolean anyWanted = false;
+        for (int i = 0; i < chunkNumbers.length; i++) {
+            chunks[i] = chunkCache != null ? chunkCache.get(fileId, chunkNumbers[i]) : null;
+            wanted[i] = chunks[i] == null && mightHoldChunk(fileId, chunkNumbers[i]);
+            anyWanted |= wanted[i];
+            if (wanted[i] && chunkCache != null) {
+                loadTokens[i] = chunkCache.beginLoad(fileId, chunkNumbers[i]);
+            }
+        }
+        if (!anyWanted) {
+            return chunks;
+        }
+        long started = System.nanoTime();
+        try {
+            // Simulate network delay
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LogManager.logServerError(serverId, "GET_CHUNK_FAILED", "Interrupted while retrieving chunks.");
+            ServerHealth.recordFailure(serverId);
+            return chunks;
+        }
+        for (int i = 0; i < chunkNumbers.length; i++) {
+            if (wanted[i]) {
+                chunks[i] = readLocally(fileId, chunkNumbers[i], loadTokens[i], started);
+            }
+        }
+        return chunks;
+    }
+
+    private ByteBuffer readLocally(int fileId, int chunkNumber, long loadToken, long started) {
+        try {
+            ByteBuffer chunkData = store().read(fileId, chunkNumber, StorageConfig.READ_MODE);
+            if (chunkData != null) {
+                ServerHealth.recordSuccess(serverId, System.nanoTime() - started);
+                return chunkCache != null ? chunkCache.put(fileId, chunkNumber, chunkData, loadToken) : chunkData;
+            }
+        } catch (ChunkCorruptedException e) {
+            // Never hand out bytes that no longer match their checksum.
+            ServerHealth.recordFailure(serverId);
+            reportCorruption(serverId, fileId, chunkNumber, e.getMessage());
+            return null;
+        } catch (IOException e) {
+            LogManager.logServerError(serverId, "GET_CHUNK_FAILED", "I/O error while reading chunk: " + e.getMessage());
+        }
+        ServerHealth.recordFailure(serverId);
         System.err.println(String.format("FileServerClient (Server %d): Chunk %d for file %d not found.",
                                          serverId, chunkNumber, fileId));
         LogManager.logServerError(serverId, "GET_CHUNK_FAILED",
@@ -91,6 +370,38 @@ public class FileServerClient {
         return null;
     }
 
+    /**
+     * Lists the chunks of a file held by this server.
+     *
+     * @param fileId The ID of the file.
+     * @return The chunk numbers in ascending order, or null if the server could not be asked.
+     */
+    public int[] listChunks(int fileId) {
+        return store().listChunks(fileId);
+    }
+
+    /**
+     * Consults the server's Bloom filter of stored chunks, without a request per chunk.
+     * A false answer is definite for the simulation; network clients may answer from a copy
+     * that is a little behind the server, so callers that must not miss a chunk should treat
+     * false as "try this server last" rather than "skip it".
+     *
+     * @param fileId The ID of the file.
+     * @param chunkNumber The number of the chunk.
+     * @return false if the server does not hold the chunk, true if it may.
+     */
+    public boolean mightHoldChunk(int fileId, int chunkNumber) {
+        return store().mightContain(fileId, chunkNumber);
+    }
+
+    /**
+     * @return false if the server holds no chunk of the file, true if it may.
+     * @see #mightHoldChunk(int, int)
+     */
+    public boolean mightHoldFile(int fileId) {
+        return store().mightContainFile(fileId);
+    }
+
     /**
      * Deletes a specific file chunk from this server.
      *
@@ -99,9 +410,41 @@ public class FileServerClient {
      * @return true if deletion was successful, false otherwise.
      */
     public boolean deleteChunk(int fileId, int chunkNumber) {
-        Map<Integer, Map<Integer, byte[]>> fileChunks = serverStorage.get(serverId);
-        if (fileChunks != null && fileChunks.containsKey(fileId) && fileChunks.get(fileId).containsKey(chunkNumber)) {
-            fileChunks.get(fileId).remove(chunkNumber);
+        return deleteLocally(fileId, chunkNumber);
+    }
+
+    /**
+     * Deletes several chunks of a file in one request.
+     *
+     * @param fileId The ID of the file.
+     * @param chunkNumbers The chunks to delete.
+     * @return The number of chunks that existed and were deleted.
+     */
+    public int deleteChunks(int fileId, int[] chunkNumbers) {
+        int deleted = 0;
+        for (int chunkNumber : chunkNumbers) {
+            if (deleteLocally(fileId, chunkNumber)) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private boolean deleteLocally(int fileId, int chunkNumber) {
+        if (!mightHoldChunk(fileId, chunkNumber)) {
+            return false;
+        }
+        boolean deleted;
+        try {
+            deleted = store().delete(fileId, chunkNumber);
+            if (chunkCache != null) {
+                chunkCache.invalidate(fileId, chunkNumber);
+            }
+        } catch (IOException e) {
+            LogManager.logServerError(serverId, "DELETE_CHUNK_FAILED", "I/O error while deleting chunk: " + e.getMessage());
+            return false;
+        }
+        if (deleted) {
             System.out.println(String.format("FileServerClient (Server %d): Deleted chunk %d for file %d.",
                                              serverId, chunkNumber, fileId));
             LogManager.logServerAction(serverId, "DELETE_CHUNK",
@@ -123,7 +466,20 @@ public class FileServerClient {
      * @return true if chunks were successfully cleared, false otherwise.
      */
     public boolean deleteAllFileChunks(int fileId) {
-        if (serverStorage.get(serverId).remove(fileId) != null) {
+        if (!mightHoldFile(fileId)) {
+            return false;
+        }
+        boolean cleared;
+        try {
+            cleared = store().deleteFile(fileId);
+            if (chunkCache != null) {
+                chunkCache.invalidateFile(fileId);
+            }
+        } catch (IOException e) {
+            LogManager.logServerError(serverId, "CLEAR_FILE_CHUNKS_FAILED", "I/O error while clearing chunks: " + e.getMessage());
+            return false;
+        }
+        if (cleared) {
             System.out.println(String.format("FileServerClient (Server %d): All chunks for file %d cleared.",
                                              serverId, fileId));
             LogManager.logServerAction(serverId, "CLEAR_FILE_CHUNKS",
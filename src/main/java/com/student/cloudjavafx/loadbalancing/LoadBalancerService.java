@@ -58,6 +58,34 @@ public class LoadBalancerService {
         }
     }
 
+    /**
+     * Selects distinct servers for the replicas of a chunk.
+     * The first replica follows the Round Robin order of {@link #selectServer()}, the others
+     * are the next active servers after it, so replicas always land on different servers.
+     *
+     * @param count The number of replicas wanted.
+     * @return Up to count distinct server IDs; fewer if not enough servers are active.
+     */
+    public List<Integer> selectServers(int count) {
+        List<Integer> activeServerIds = getActiveServerIds();
+        List<Integer> selected = new ArrayList<>();
+        if (activeServerIds.isEmpty()) {
+            System.err.println("❌ No active file servers available.");
+            LogManager.logLoadBalancerAction("SERVER_SELECTION_FAILED", "No active servers found.");
+            return selected;
+        }
+        int first = selectRoundRobinServer(activeServerIds);
+        int start = activeServerIds.indexOf(first);
+        for (int i = 0; i < Math.min(count, activeServerIds.size()); i++) {
+            selected.add(activeServerIds.get((start + i) % activeServerIds.size()));
+        }
+        if (selected.size() < count) {
+            System.err.println("⚠️ LoadBalancerService: Only " + selected.size() + " active servers for " + count + " replicas.");
+            LogManager.logLoadBalancerAction("REPLICA_SELECTION", "Only " + selected.size() + " active servers for " + count + " replicas.");
+        }
+        return selected;
+    }
+
     /**
      * Retrieves a list of active server IDs from the database.
      * This simulates checking the status of the file servers.
@@ -66,7 +94,7 @@ public class LoadBalancerService {
      */
      DatabaseType dbType = SessionManager.getCurrentDatabaseType();
 
-    private List<Integer> getActiveServerIds() {
+    public List<Integer> getActiveServerIds() {
         List<Integer> serverIds = new ArrayList<>();
         String sql = "SELECT server_id FROM servers WHERE status = 'active'";
         try (Connection conn = DatabaseConnection.getConnection(dbType);
@@ -89,6 +117,8 @@ public class LoadBalancerService {
      * @return The selected server ID.
      */
     private int selectRoundRobinServer(List<Integer> activeServerIds) {
+        // The active set may have shrunk since the index was last advanced.
+        lastUsedServerIndex = lastUsedServerIndex % activeServerIds.size();
         int selectedServerId = activeServerIds.get(lastUsedServerIndex);
         lastUsedServerIndex = (lastUsedServerIndex + 1) % activeServerIds.size();
         System.out.println("✅ LoadBalancerService: Selected server " + selectedServerId + " using Round Robin algorithm.");
@@ -0,0 +1,743 @@
+package com.student.cloudjavafx.loadbalancing;
+
+import com.student.cloudjavafx.FileChunk;
+import com.student.cloudjavafx.fileserver.ChunkProtocol;
+import com.student.cloudjavafx.storage.BufferPool;
+import com.student.cloudjavafx.storage.ChunkBloomFilter;
+import com.student.cloudjavafx.storage.ChunkCache;
+import com.student.cloudjavafx.storage.ChunkChecksums;
+import com.student.cloudjavafx.storage.PooledBuffer;
+import com.student.cloudjavafx.storage.StorageConfig;
+import com.student.cloudjavafx.utils.LogManager;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client for a standalone ChunkServer, speaking {@link ChunkProtocol} over TCP.
+ * Offers the same operations as the simulated FileServerClient, so callers obtained through
+ * {@link FileServerClient#forServer(int)} do not care which one they talk to. One connection is
+ * kept open per server and shared by every client instance and thread. Every request is
+ * pipelined over it: the calling thread writes its frame, tagged with a request id, and waits
+ * on a future that the connection's reader thread completes when the response with that id
+ * arrives. Up to PIPELINE_WINDOW requests of all threads are in flight at once, so concurrent
+ * single-chunk calls overlap their round trips, and a batch costs about one round trip
+ * instead of one per chunk.
+ * Retrieved chunks are read straight into direct buffers from the shared BufferPool and checked
+ * against the CRC32C the server sends along, which covers both the disk and the wire; once the
+ * ChunkCache, or a buffer of the chunk's own when it is not cached, has taken a copy, the buffer
+ * goes back to the pool.
+ * The server's chunk filter is fetched at most every StorageConfig.CHUNK_FILTER_REFRESH_SECONDS
+ * and kept per server, so {@link #mightHoldChunk} costs no request.
+ */
+public class NetworkFileServerClient extends FileServerClient {
+
+    private static final Map<Integer, ServerConnection> connections = new ConcurrentHashMap<>();
+    // Requests of a connection sent ahead of their responses. Store requests carry whole chunks,
+    // so the window also bounds how much the server has to buffer for a slow reader.
+    private static final int PIPELINE_WINDOW = 32;
+    private static final Map<Integer, FilterCopy> filters = new ConcurrentHashMap<>();
+
+    private final InetSocketAddress address;
+
+    public NetworkFileServerClient(int serverId, InetSocketAddress address) {
+        super(serverId);
+        this.address = address;
+    }
+
+    @Override
+    public boolean storeChunk(FileChunk chunk) {
+        int serverId = getServerId();
+        try {
+            ByteBuffer data = chunk.getDataBuffer();
+            int crc = ChunkChecksums.isCrc32c(chunk.getChecksum())
+                    ? ChunkChecksums.parse(chunk.getChecksum())
+                    : ChunkChecksums.crc32c(data);
+            filterCopy().noteStored(chunk.getFileId(), chunk.getChunkNumber());
+            Response response = call(ChunkProtocol.OP_STORE, chunk.getFileId(), chunk.getChunkNumber(), crc, data);
+            if (response.status != ChunkProtocol.STATUS_OK) {
+                throw new IOException(response.message());
+            }
+            ChunkCache cache = getChunkCache();
+            if (cache != null) {
+                cache.invalidate(chunk.getFileId(), chunk.getChunkNumber());
+            }
+            LogManager.logServerAction(serverId, "STORE_CHUNK",
+                                       String.format("Chunk %d for file %d stored successfully.", chunk.getChunkNumber(), chunk.getFileId()));
+            return true;
+        } catch (IOException e) {
+            System.err.println("NetworkFileServerClient (Server " + serverId + "): Error while storing chunk: " + e.getMessage());
+            LogManager.logServerError(serverId, "STORE_CHUNK_FAILED", "Error while storing chunk: " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public boolean[] storeChunks(List<FileChunk> chunks) {
+        int serverId = getServerId();
+        boolean[] stored = new boolean[chunks.size()];
+        try {
+            List<Request> requests = new ArrayList<>(chunks.size());
+            for (FileChunk chunk : chunks) {
+                ByteBuffer data = chunk.getDataBuffer();
+                int crc = ChunkChecksums.isCrc32c(chunk.getChecksum())
+                        ? ChunkChecksums.parse(chunk.getChecksum())
+                        : ChunkChecksums.crc32c(data);
+                requests.add(new Request(ChunkProtocol.OP_STORE, chunk.getFileId(), chunk.getChunkNumber(), crc, data));
+                filterCopy().noteStored(chunk.getFileId(), chunk.getChunkNumber());
+            }
+            Response[] responses = callAll(requests);
+            ChunkCache cache = getChunkCache();
+            for (int i = 0; i < stored.length; i++) {
+                FileChunk chunk = chunks.get(i);
+                if (cache != null) {
+                    cache.invalidate(chunk.getFileId(), chunk.getChunkNumber());
+                }
+                stored[i] = responses[i].status == ChunkProtocol.STATUS_OK;
+                if (!stored[i]) {
+                    LogManager.logServerError(serverId, "STORE_CHUNK_FAILED", String.format(
+                            "Chunk %d for file %d: %s", chunk.getChunkNumber(), chunk.getFileId(), responses[i].message()));
+                }
+            }
+            LogManager.logServerAction(serverId, "STORE_CHUNKS",
+                                       String.format("Stored %d chunk(s) in one batch.", chunks.size()));
+        } catch (IOException e) {
+            System.err.println("NetworkFileServerClient (Server " + serverId + "): Error while storing chunks: " + e.getMessage());
+            LogManager.logServerError(serverId, "STORE_CHUNK_FAILED", "Error while storing chunks: " + e.getMessage());
+        }
+        return stored;
+    }
+
+    @Override
+    public ByteBuffer retrieveChunkBuffer(int fileId, int chunkNumber) {
+        int serverId = getServerId();
+        ChunkCache cache = getChunkCache();
+        long loadToken = 0;
+        if (cache != null) {
+            ByteBuffer cached = cache.get(fileId, chunkNumber);
+            if (cached != null) {
+                return cached;
+            }
+            loadToken = cache.beginLoad(fileId, chunkNumber);
+        }
+        long started = System.nanoTime();
+        try {
+            Response response = call(ChunkProtocol.OP_RETRIEVE, fileId, chunkNumber, 0, null);
+            return checkRetrieved(fileId, chunkNumber, response, loadToken, started);
+        } catch (IOException e) {
+            ServerHealth.recordFailure(serverId);
+            System.err.println("NetworkFileServerClient (Server " + serverId + "): Error while retrieving chunk: " + e.getMessage());
+            LogManager.logServerError(serverId, "GET_CHUNK_FAILED", "Error while retrieving chunk: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public ByteBuffer retrieveChunkRange(int fileId, int chunkNumber, int offset, int length) {
+        int serverId = getServerId();
+        ChunkCache cache = getChunkCache();
+        if (cache != null) {
+            ByteBuffer cached = cache.peek(fileId, chunkNumber);
+            if (cached != null) {
+                return sliceRange(cached, offset, length);
+            }
+        }
+        long started = System.nanoTime();
+        try {
+            ByteBuffer range = ByteBuffer.allocate(8).putInt(offset).putInt(length).flip();
+            Response response = call(ChunkProtocol.OP_RETRIEVE_RANGE, fileId, chunkNumber, 0, range);
+            if (response.status == ChunkProtocol.STATUS_NOT_FOUND) {
+                LogManager.logServerError(serverId, "GET_CHUNK_FAILED",
+                                          String.format("Chunk %d for file %d not found.", chunkNumber, fileId));
+                return null;
+            }
+            if (response.status == ChunkProtocol.STATUS_CORRUPTED) {
+                // The server's copy failed its chunk's CRC32C; another replica has to serve the range.
+                ServerHealth.recordFailure(serverId);
+                reportCorruption(serverId, fileId, chunkNumber, response.message());
+                return null;
+            }
+            if (response.status != ChunkProtocol.STATUS_OK) {
+                throw new IOException(response.message());
+            }
+            int expected = response.payload.getInt();
+            ByteBuffer data = response.payload.slice();
+            if (ChunkChecksums.crc32c(data) != expected) {
+                throw new IOException(String.format("Range %d+%d of chunk %d for file %d was damaged in transit.",
+                                                    offset, length, chunkNumber, fileId));
+            }
+            ServerHealth.recordSuccess(serverId, System.nanoTime() - started);
+            return data.asReadOnlyBuffer();
+        } catch (IOException e) {
+            ServerHealth.recordFailure(serverId);
+            LogManager.logServerError(serverId, "GET_CHUNK_FAILED", "Error while retrieving chunk range: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public ByteBuffer[] retrieveChunks(int fileId, int[] chunkNumbers) {
+        int serverId = getServerId();
+        ByteBuffer[] chunks = new ByteBuffer[chunkNumbers.length];
+        ChunkCache cache = getChunkCache();
+        List<Request> requests = new ArrayList<>(chunkNumbers.length);
+        int[] requested = new int[chunkNumbers.length]; // index into chunks of each request
+        long[] loadTokens = new long[chunkNumbers.length];
+        for (int i = 0; i < chunkNumbers.length; i++) {
+            chunks[i] = cache != null ? cache.get(fileId, chunkNumbers[i]) : null;
+            if (chunks[i] == null) {
+                requested[requests.size()] = i;
+                requests.add(new Request(ChunkProtocol.OP_RETRIEVE, fileId, chunkNumbers[i], 0, null));
+                loadTokens[i] = cache != null ? cache.beginLoad(fileId, chunkNumbers[i]) : 0;
+            }
+        }
+        if (requests.isEmpty()) {
+            return chunks;
+        }
+        long started = System.nanoTime();
+        try {
+            Response[] responses = callAll(requests);
+            for (int r = 0; r < responses.length; r++) {
+                int i = requested[r];
+                // Each response is checked on its own, so one failed chunk does not strand the pooled buffers of the rest.
+                try {
+                    chunks[i] = checkRetrieved(fileId, chunkNumbers[i], responses[r], loadTokens[i], started);
+                } catch (IOException e) {
+                    ServerHealth.recordFailure(serverId);
+                    LogManager.logServerError(serverId, "GET_CHUNK_FAILED", String.format(
+                            "Chunk %d for file %d: %s", chunkNumbers[i], fileId, e.getMessage()));
+                }
+            }
+        } catch (IOException e) {
+            ServerHealth.recordFailure(serverId);
+            System.err.println("NetworkFileServerClient (Server " + serverId + "): Error while retrieving chunks: " + e.getMessage());
+            LogManager.logServerError(serverId, "GET_CHUNK_FAILED", "Error while retrieving chunks: " + e.getMessage());
+        }
+        return chunks;
+    }
+
+    /**
+     * Verifies a RETRIEVE response against the CRC32C the server sent along and caches it.
+     * The response's pooled buffer is always released: a chunk the cache does not take is
+     * copied into a buffer of its own first.
+     *
+     * @return The chunk bytes, or null if the chunk was missing or corrupted.
+     */
+    private ByteBuffer checkRetrieved(int fileId, int chunkNumber, Response response, long loadToken, long started) throws IOException {
+        int serverId = getServerId();
+        if (response.status == ChunkProtocol.STATUS_NOT_FOUND) {
+            response.release();
+            LogManager.logServerError(serverId, "GET_CHUNK_FAILED",
+                                      String.format("Chunk %d for file %d not found.", chunkNumber, fileId));
+            return null;
+        }
+        if (response.status != ChunkProtocol.STATUS_OK) {
+            response.release();
+            throw new IOException(response.message());
+        }
+        int expected = response.payload.getInt();
+        ByteBuffer chunkData = response.payload.slice();
+        int actual = ChunkChecksums.crc32c(chunkData);
+        if (actual != expected) {
+            response.release();
+            ServerHealth.recordFailure(serverId);
+            reportCorruption(serverId, fileId, chunkNumber, String.format(
+                    "Chunk %d of file %d failed its CRC32C check: expected %08x, got %08x.", chunkNumber, fileId, expected, actual));
+            return null;
+        }
+        ServerHealth.recordSuccess(serverId, System.nanoTime() - started);
+        chunkData = chunkData.asReadOnlyBuffer();
+        ChunkCache cache = getChunkCache();
+        ByteBuffer result = cache == null ? chunkData : cache.put(fileId, chunkNumber, chunkData, loadToken);
+        if (result == chunkData) {
+            ByteBuffer copy = ByteBuffer.allocateDirect(chunkData.remaining());
+            copy.put(chunkData.duplicate()).flip();
+            result = copy.asReadOnlyBuffer();
+        }
+        response.release();
+        return result;
+    }
+
+    @Override
+    public boolean deleteChunk(int fileId, int chunkNumber) {
+        boolean deleted = delete(ChunkProtocol.OP_DELETE, fileId, chunkNumber, "DELETE_CHUNK");
+        ChunkCache cache = getChunkCache();
+        if (cache != null) {
+            cache.invalidate(fileId, chunkNumber);
+        }
+        return deleted;
+    }
+
+    @Override
+    public int deleteChunks(int fileId, int[] chunkNumbers) {
+        int serverId = getServerId();
+        List<Request> requests = new ArrayList<>(chunkNumbers.length);
+        for (int chunkNumber : chunkNumbers) {
+            requests.add(new Request(ChunkProtocol.OP_DELETE, fileId, chunkNumber, 0, null));
+        }
+        int deleted = 0;
+        try {
+            Response[] responses = callAll(requests);
+            for (Response response : responses) {
+                if (response.status == ChunkProtocol.STATUS_OK) {
+                    deleted++;
+                } else if (response.status != ChunkProtocol.STATUS_NOT_FOUND) {
+                    LogManager.logServerError(serverId, "DELETE_CHUNK_FAILED", response.message());
+                }
+            }
+            LogManager.logServerAction(serverId, "DELETE_CHUNKS",
+                                       String.format("Deleted %d of %d chunk(s) of file %d.", deleted, chunkNumbers.length, fileId));
+        } catch (IOException e) {
+            LogManager.logServerError(serverId, "DELETE_CHUNK_FAILED", "Error while deleting chunks: " + e.getMessage());
+        }
+        ChunkCache cache = getChunkCache();
+        if (cache != null) {
+            for (int chunkNumber : chunkNumbers) {
+                cache.invalidate(fileId, chunkNumber);
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public boolean deleteAllFileChunks(int fileId) {
+        boolean cleared = delete(ChunkProtocol.OP_DELETE_FILE, fileId, -1, "CLEAR_FILE_CHUNKS");
+        ChunkCache cache = getChunkCache();
+        if (cache != null) {
+            cache.invalidateFile(fileId);
+        }
+        return cleared;
+    }
+
+    @Override
+    public int[] listChunks(int fileId) {
+        try {
+            Response response = call(ChunkProtocol.OP_LIST, fileId, -1, 0, null);
+            if (response.status != ChunkProtocol.STATUS_OK) {
+                throw new IOException(response.message());
+            }
+            int[] chunkNumbers = new int[response.payload.getInt()];
+            for (int i = 0; i < chunkNumbers.length; i++) {
+                chunkNumbers[i] = response.payload.getInt();
+            }
+            return chunkNumbers;
+        } catch (IOException e) {
+            LogManager.logServerError(getServerId(), "LIST_CHUNKS_FAILED", "Error while listing chunks: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public boolean mightHoldChunk(int fileId, int chunkNumber) {
+        ChunkBloomFilter filter = filter();
+        return filter == null || filter.mightContain(fileId, chunkNumber);
+    }
+
+    @Override
+    public boolean mightHoldFile(int fileId) {
+        ChunkBloomFilter filter = filter();
+        return filter == null || filter.mightContainFile(fileId);
+    }
+
+    private FilterCopy filterCopy() {
+        return filters.computeIfAbsent(getServerId(), id -> new FilterCopy());
+    }
+
+    /**
+     * Returns this client's copy of the server's chunk filter, fetching a new one when it is
+     * older than the refresh interval. Only one thread fetches; the others keep using the old copy.
+     *
+     * @return The filter, or null if the server's filter could not be fetched yet.
+     */
+    private ChunkBloomFilter filter() {
+        FilterCopy copy = filterCopy();
+        long refreshNanos = TimeUnit.SECONDS.toNanos(StorageConfig.CHUNK_FILTER_REFRESH_SECONDS);
+        if (copy.filter != null && System.nanoTime() - copy.fetchedAt < refreshNanos) {
+            return copy.filter;
+        }
+        if (!copy.fetching.compareAndSet(false, true)) {
+            return copy.filter;
+        }
+        try {
+            long started = System.nanoTime();
+            Response response = call(ChunkProtocol.OP_FILTER, 0, -1, 0, null);
+            if (response.status != ChunkProtocol.STATUS_OK) {
+                throw new IOException(response.message());
+            }
+            copy.install(ChunkBloomFilter.readFrom(response.payload), started);
+        } catch (IOException | IllegalArgumentException e) {
+            // Keep answering from the old copy, or with "maybe" if there is none.
+            LogManager.logServerError(getServerId(), "GET_FILTER_FAILED", "Error while fetching chunk filter: " + e.getMessage());
+        } finally {
+            copy.fetching.set(false);
+        }
+        return copy.filter;
+    }
+
+    private boolean delete(byte opcode, int fileId, int chunkNumber, String action) {
+        int serverId = getServerId();
+        try {
+            Response response = call(opcode, fileId, chunkNumber, 0, null);
+            if (response.status == ChunkProtocol.STATUS_OK) {
+                LogManager.logServerAction(serverId, action,
+                                           String.format("Chunk %d for file %d deleted.", chunkNumber, fileId));
+                return true;
+            }
+            if (response.status != ChunkProtocol.STATUS_NOT_FOUND) {
+                throw new IOException(response.message());
+            }
+            LogManager.logServerError(serverId, action + "_FAILED",
+                                      String.format("File %d, Chunk %d not found for deletion.", fileId, chunkNumber));
+        } catch (IOException e) {
+            LogManager.logServerError(serverId, action + "_FAILED", "Error while deleting: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Sends one request and waits for its response. A broken connection is reopened and the
+     * request retried once; every operation of the protocol is idempotent.
+     */
+    private Response call(byte opcode, int fileId, int chunkNumber, int crc, ByteBuffer payload) throws IOException {
+        return callAll(Collections.singletonList(new Request(opcode, fileId, chunkNumber, crc, payload)))[0];
+    }
+
+    /**
+     * Sends a batch of requests pipelined over the server's connection.
+     *
+     * @return The responses, in the order of the requests.
+     */
+    private Response[] callAll(List<Request> requests) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            ServerConnection connection = connections.computeIfAbsent(getServerId(), id -> new ServerConnection(address));
+            try {
+                return connection.callAll(requests);
+            } catch (InterruptedIOException e) {
+                // Only this caller gave up; the connection is fine for everyone else.
+                throw e;
+            } catch (IOException e) {
+                connections.remove(getServerId(), connection);
+                connection.close(e);
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * A connection to one chunk server, shared by every thread. Writers send their frames one
+     * at a time under a lock; a single reader thread matches each response to its request by
+     * id and completes the request's future. Whoever takes a request out of the outstanding
+     * map completes it and returns its window permit, so that happens exactly once.
+     */
+    private static final class ServerConnection {
+        private final InetSocketAddress address;
+        private final Semaphore window = new Semaphore(PIPELINE_WINDOW);
+        private final AtomicInteger nextRequestId = new AtomicInteger();
+        // request id -> request waiting for its response
+        private final Map<Integer, Pending> outstanding = new ConcurrentHashMap<>();
+        private final Object writeLock = new Object();
+        private SocketChannel channel;
+        private volatile IOException closedBy;
+
+        private ServerConnection(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * Sends the requests, waiting for a window permit before each, and then waits for
+         * their responses. If any request fails, the responses that did or still will arrive
+         * are released and the failure is thrown.
+         */
+        private Response[] callAll(List<Request> requests) throws IOException {
+            List<CompletableFuture<Response>> futures = new ArrayList<>(requests.size());
+            try {
+                for (Request request : requests) {
+                    futures.add(submit(request));
+                }
+                Response[] responses = new Response[futures.size()];
+                for (int i = 0; i < responses.length; i++) {
+                    responses[i] = futures.get(i).get();
+                }
+                return responses;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandon(futures);
+                throw new InterruptedIOException("Interrupted while waiting for chunk server at " + address + ".");
+            } catch (ExecutionException e) {
+                abandon(futures);
+                throw e.getCause() instanceof IOException
+                        ? (IOException) e.getCause()
+                        : new IOException("Request to chunk server at " + address + " failed.", e.getCause());
+            } catch (IOException | RuntimeException e) {
+                abandon(futures);
+                throw e;
+            }
+        }
+
+        private CompletableFuture<Response> submit(Request request) throws IOException {
+            try {
+                window.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to send to chunk server at " + address + ".");
+            }
+            int requestId = nextRequestId.incrementAndGet();
+            Pending pending = new Pending(request.opcode);
+            outstanding.put(requestId, pending);
+            if (closedBy != null) {
+                // Closed before the put was visible to close(), which therefore missed it.
+                fail(requestId, closedBy);
+                return pending.future;
+            }
+            try {
+                synchronized (writeLock) {
+                    send(open(), requestId, request);
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+            return pending.future;
+        }
+
+        /**
+         * Opens the connection and starts its reader on first use.
+         */
+        private synchronized SocketChannel open() throws IOException {
+            if (closedBy != null) {
+                throw new IOException("Connection to chunk server at " + address + " is closed.", closedBy);
+            }
+            if (channel == null) {
+                InetSocketAddress resolved = address.isUnresolved()
+                        ? new InetSocketAddress(address.getHostString(), address.getPort())
+                        : address;
+                channel = SocketChannel.open(resolved);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Thread reader = new Thread(this::readResponses, "chunk-client-reader-" + address);
+                reader.setDaemon(true);
+                reader.start();
+            }
+            return channel;
+        }
+
+        private void send(SocketChannel channel, int requestId, Request request) throws IOException {
+            ByteBuffer payload = request.payload == null ? null : request.payload.duplicate();
+            int payloadLength = payload == null ? 0 : payload.remaining();
+            ByteBuffer header = ChunkProtocol.requestHeader(requestId, request.opcode, request.fileId,
+                                                            request.chunkNumber, request.crc, payloadLength);
+            ByteBuffer[] frame = payload == null ? new ByteBuffer[]{header} : new ByteBuffer[]{header, payload};
+            while (header.hasRemaining() || (payload != null && payload.hasRemaining())) {
+                channel.write(frame);
+            }
+        }
+
+        /**
+         * Body of the reader thread: completes requests as their responses arrive, until the
+         * connection breaks or is closed.
+         */
+        private void readResponses() {
+            SocketChannel in;
+            synchronized (this) {
+                in = channel;
+            }
+            try {
+                ByteBuffer responseHeader = ByteBuffer.allocate(ChunkProtocol.RESPONSE_HEADER_BYTES);
+                while (true) {
+                    readFully(in, responseHeader.clear());
+                    int length = responseHeader.getInt();
+                    int responseId = responseHeader.getInt();
+                    byte status = responseHeader.get();
+                    Pending pending = outstanding.remove(responseId);
+                    if (pending == null || length < ChunkProtocol.RESPONSE_HEADER_BYTES - 4 || length > ChunkProtocol.MAX_FRAME_BYTES) {
+                        throw new IOException("Unexpected response " + responseId + " from " + address + ".");
+                    }
+                    window.release();
+                    int bodyLength = length - (ChunkProtocol.RESPONSE_HEADER_BYTES - 4);
+                    // Whole chunks go through the pool; ranges are handed out as they are.
+                    PooledBuffer pooled = null;
+                    ByteBuffer body;
+                    if (pending.opcode == ChunkProtocol.OP_RETRIEVE && status == ChunkProtocol.STATUS_OK) {
+                        pooled = BufferPool.shared().acquireDirect(bodyLength);
+                        body = pooled.buffer();
+                    } else if (pending.opcode == ChunkProtocol.OP_RETRIEVE_RANGE && status == ChunkProtocol.STATUS_OK) {
+                        body = ByteBuffer.allocateDirect(bodyLength);
+                    } else {
+                        body = ByteBuffer.allocate(bodyLength);
+                    }
+                    try {
+                        readFully(in, body);
+                    } catch (IOException e) {
+                        if (pooled != null) {
+                            pooled.release();
+                        }
+                        pending.future.completeExceptionally(e);
+                        throw e;
+                    }
+                    pending.future.complete(new Response(status, body, pooled));
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void readFully(SocketChannel in, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer) == -1) {
+                    throw new EOFException("Chunk server at " + address + " closed the connection.");
+                }
+            }
+            buffer.flip();
+        }
+
+        /**
+         * Fails a request that is still outstanding.
+         */
+        private void fail(int requestId, IOException cause) {
+            Pending pending = outstanding.remove(requestId);
+            if (pending != null) {
+                window.release();
+                pending.future.completeExceptionally(cause);
+            }
+        }
+
+        /**
+         * Closes the connection for good and fails every request still waiting on it.
+         */
+        private void close(IOException cause) {
+            synchronized (this) {
+                if (closedBy == null) {
+                    closedBy = cause;
+                }
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // already broken
+                    }
+                }
+            }
+            for (Integer requestId : outstanding.keySet()) {
+                fail(requestId, closedBy);
+            }
+        }
+
+        /**
+         * Releases the responses of a batch that is given up, including those still to arrive.
+         */
+        private static void abandon(List<CompletableFuture<Response>> futures) {
+            for (CompletableFuture<Response> future : futures) {
+                future.whenComplete((response, error) -> {
+                    if (response != null) {
+                        response.release();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * A request sent and waiting for its response.
+     */
+    private static final class Pending {
+        private final byte opcode;
+        private final CompletableFuture<Response> future = new CompletableFuture<>();
+
+        private Pending(byte opcode) {
+            this.opcode = opcode;
+        }
+    }
+
+    /**
+     * A client's copy of one server's chunk filter.
+     */
+    private static final class FilterCopy {
+        private volatile ChunkBloomFilter filter;
+        private volatile long fetchedAt;
+        private final AtomicBoolean fetching = new AtomicBoolean();
+        // Chunks stored through this client since the last two fetches. The server may not have
+        // applied a store yet when it answers a fetch, so these are added to each new copy too.
+        private Set<Long> recent = new HashSet<>();
+        private Set<Long> previous = new HashSet<>();
+
+        /**
+         * Records a chunk about to be stored, so the copy never denies holding it.
+         */
+        private synchronized void noteStored(int fileId, int chunkNumber) {
+            recent.add(((long) fileId << 32) | (chunkNumber & 0xFFFFFFFFL));
+            if (filter != null) {
+                filter.add(fileId, chunkNumber);
+            }
+        }
+
+        private synchronized void install(ChunkBloomFilter fetched, long fetchedAt) {
+            for (Set<Long> keys : List.of(previous, recent)) {
+                for (long key : keys) {
+                    fetched.add((int) (key >>> 32), (int) key);
+                }
+            }
+            previous = recent;
+            recent = new HashSet<>();
+            filter = fetched;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private static final class Request {
+        private final byte opcode;
+        private final int fileId;
+        private final int chunkNumber;
+        private final int crc;
+        private final ByteBuffer payload;
+
+        private Request(byte opcode, int fileId, int chunkNumber, int crc, ByteBuffer payload) {
+            this.opcode = opcode;
+            this.fileId = fileId;
+            this.chunkNumber = chunkNumber;
+            this.crc = crc;
+            this.payload = payload;
+        }
+    }
+
+    private static final class Response {
+        private final byte status;
+        private final ByteBuffer payload;
+        private final PooledBuffer pooled; // holds the payload, or null if it is not pooled
+
+        private Response(byte status, ByteBuffer payload, PooledBuffer pooled) {
+            this.status = status;
+            this.payload = payload;
+            this.pooled = pooled;
+        }
+
+        private void release() {
+            if (pooled != null) {
+                pooled.release();
+            }
+        }
+
+        private String message() {
+            String text = StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+            return "Chunk server answered with status " + status + (text.isEmpty() ? "" : ": " + text);
+        }
+    }
+}
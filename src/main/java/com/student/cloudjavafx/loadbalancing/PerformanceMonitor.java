@@ -1,8 +1,10 @@
 package com.student.cloudjavafx.loadbalancing;
 
 import com.student.cloudjavafx.auth.SessionManager;
+import com.student.cloudjavafx.storage.ChunkCache;
 import com.student.cloudjavafx.utils.DatabaseConnection;
 import com.student.cloudjavafx.utils.DatabaseConnection.DatabaseType;
+import com.student.cloudjavafx.utils.LogManager;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
@@ -20,6 +22,8 @@ public class PerformanceMonitor {
     // This would typically be passed in or read from a configuration file.
     private final int serverId;
     private final Random random = new Random();
+    // Lookups counted by the last cache report, so idle periods are not reported.
+    private static long reportedLookups;
 
     public PerformanceMonitor(int serverId) {
         this.serverId = serverId;
@@ -86,4 +90,28 @@ public class PerformanceMonitor {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Reports the hit ratio of the client-side chunk cache since startup, along with its
+     * evictions and fill level. Nothing is reported while the cache is disabled or saw no
+     * lookups since the last report.
+     */
+    public static synchronized void reportChunkCacheStatistics() {
+        ChunkCache cache = FileServerClient.getChunkCache();
+        if (cache == null) {
+            return;
+        }
+        long lookups = cache.getHits() + cache.getMisses();
+        if (lookups == reportedLookups) {
+            return;
+        }
+        reportedLookups = lookups;
+        System.out.println("✅ PerformanceMonitor: " + cache);
+        try {
+            LogManager.logLoadBalancerAction("CACHE_STATS", cache.toString());
+        } catch (RuntimeException e) {
+            // E.g. no database chosen yet; a scheduled report that throws would never run again.
+            System.err.println("❌ Error logging chunk cache statistics: " + e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,196 @@
+package com.student.cloudjavafx.loadbalancing;
+
+import com.student.cloudjavafx.FileChunk;
+import com.student.cloudjavafx.storage.PooledBuffer;
+import com.student.cloudjavafx.storage.StorageConfig;
+import com.student.cloudjavafx.utils.LogManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Writes the replicas of a chunk to several file servers in parallel.
+ * A write succeeds as soon as the write quorum has acknowledged it; the remaining
+ * replicas keep writing in the background and are collected later with
+ * {@link ReplicaWrite#awaitRemaining()}, so a slow server does not hold up the upload.
+ * Every replica holds its own reference to the chunk's buffer until it has finished, so the
+ * replicas share one copy of the bytes however long the stragglers take.
+ */
+public class ReplicatedChunkWriter {
+
+    // Replica writes mostly wait on their server, so each gets a virtual thread.
+    private static final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("replica-writer-", 0).factory());
+    // Caps the writes in flight to each server, so parallel uploads cannot pile onto one of them.
+    private static final Map<Integer, Semaphore> serverSlots = new ConcurrentHashMap<>();
+
+    /**
+     * Starts writing a chunk to every given server and waits for the quorum.
+     *
+     * @param fileId The file ID the chunk is stored under.
+     * @param chunkNumber The chunk number the chunk is stored under.
+     * @param checksum The chunk checksum passed on to the servers.
+     * @param data The chunk bytes; the caller keeps its own reference and may release it as
+     *             soon as this returns.
+     * @param length The number of bytes of data to store.
+     * @param serverIds Distinct servers that should each receive a replica.
+     * @param quorum How many acknowledgements make the write successful.
+     * @return The in-flight write, with the servers that acknowledged so far.
+     * @throws IOException If the quorum can no longer be reached; any replicas that were
+     *                     stored anyway have been deleted again.
+     */
+    public ReplicaWrite write(int fileId, int chunkNumber, String checksum, PooledBuffer data, int length,
+                              List<Integer> serverIds, int quorum) throws IOException {
+        if (serverIds.size() < quorum) {
+            throw new IOException("Only " + serverIds.size() + " servers available for a write quorum of " + quorum + ".");
+        }
+
+        ReplicaWrite write = new ReplicaWrite(serverIds);
+        if (serverIds.size() == 1) {
+            // Nothing to parallelise; store on the calling thread.
+            data.retain();
+            if (storeReplica(fileId, chunkNumber, checksum, data, length, serverIds.get(0)) != -1) {
+                write.acknowledged.add(serverIds.get(0));
+            }
+        } else {
+            CompletionService<Integer> completions = new ExecutorCompletionService<>(executor);
+            for (int serverId : serverIds) {
+                data.retain();
+                try {
+                    write.pending.add(completions.submit(() -> storeReplica(fileId, chunkNumber, checksum, data, length, serverId)));
+                } catch (RuntimeException e) {
+                    data.release();
+                    throw e;
+                }
+            }
+            int failures = 0;
+            while (write.acknowledged.size() < quorum && failures <= serverIds.size() - quorum) {
+                Future<Integer> done = take(completions);
+                write.pending.remove(done);
+                int serverId = result(done);
+                if (serverId == -1) {
+                    failures++;
+                } else {
+                    write.acknowledged.add(serverId);
+                }
+            }
+        }
+
+        if (write.acknowledged.size() < quorum) {
+            // Let the stragglers finish and remove whatever did get stored, so a failed
+            // write leaves nothing behind that the caller does not know about.
+            List<Integer> stored = new ArrayList<>(write.acknowledged);
+            stored.addAll(write.awaitRemaining());
+            for (int serverId : stored) {
+                FileServerClient.forServer(serverId).deleteChunk(fileId, chunkNumber);
+            }
+            throw new IOException(String.format("Chunk %d for file %d reached %d of %d required acknowledgements.",
+                                                chunkNumber, fileId, write.acknowledged.size(), quorum));
+        }
+        return write;
+    }
+
+    /**
+     * Stores one replica and then releases the reference to data taken for it.
+     */
+    private static int storeReplica(int fileId, int chunkNumber, String checksum, PooledBuffer data, int length, int serverId) {
+        Semaphore slots = serverSlots.computeIfAbsent(serverId, id -> new Semaphore(StorageConfig.SERVER_WRITE_CONCURRENCY, true));
+        boolean stored;
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            data.release();
+            return -1;
+        }
+        try {
+            FileChunk chunk = new FileChunk(fileId, chunkNumber, serverId, checksum, data.buffer().limit(length));
+            stored = FileServerClient.forServer(serverId).storeChunk(chunk);
+        } finally {
+            slots.release();
+            data.release();
+        }
+        if (stored) {
+            return serverId;
+        }
+        LogManager.logLoadBalancerError("REPLICA_WRITE_FAILED",
+                String.format("Replica of chunk %d for file %d was not stored on server %d.", chunkNumber, fileId, serverId));
+        return -1;
+    }
+
+    private static Future<Integer> take(CompletionService<Integer> completions) throws IOException {
+        try {
+            return completions.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for replica acknowledgements.", e);
+        }
+    }
+
+    private static int result(Future<Integer> done) throws IOException {
+        try {
+            return done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for replica acknowledgements.", e);
+        } catch (ExecutionException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A chunk write that has reached its quorum but may still have replicas in flight.
+     */
+    public static class ReplicaWrite {
+        private final List<Integer> targetServerIds;
+        private final List<Integer> acknowledged = Collections.synchronizedList(new ArrayList<>());
+        private final List<Future<Integer>> pending = new ArrayList<>();
+
+        private ReplicaWrite(List<Integer> targetServerIds) {
+            this.targetServerIds = targetServerIds;
+        }
+
+        /**
+         * @return Every server a replica was sent to, whether or not it acknowledged.
+         */
+        public List<Integer> getTargetServerIds() {
+            return targetServerIds;
+        }
+
+        /**
+         * @return The servers that had acknowledged when the quorum was reached.
+         */
+        public List<Integer> getAcknowledged() {
+            return new ArrayList<>(acknowledged);
+        }
+
+        /**
+         * Waits for the replicas still in flight.
+         *
+         * @return The servers among them that stored their replica successfully.
+         * @throws IOException If interrupted while waiting.
+         */
+        public List<Integer> awaitRemaining() throws IOException {
+            List<Integer> late = new ArrayList<>();
+            for (Future<Integer> future : pending) {
+                int serverId = result(future);
+                if (serverId != -1) {
+                    late.add(serverId);
+                }
+            }
+            pending.clear();
+            return late;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.student.cloudjavafx.loadbalancing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * Tracks how quickly and how reliably each file server has answered recent chunk reads,
+ * so downloads can try the fastest healthy replica of a chunk first.
+ * Latency is kept as an exponentially weighted moving average; a server that failed
+ * recently is ranked behind every server that did not.
+ */
+public class ServerHealth {
+
+    private static final double EWMA_WEIGHT = 0.2;
+    private static final long FAILURE_PENALTY_MILLIS = 30_000;
+
+    private static final Map<Integer, Stats> servers = new ConcurrentHashMap<>();
+
+    private ServerHealth() {
+    }
+
+    /**
+     * Records a successful read from a server.
+     *
+     * @param serverId The ID of the server.
+     * @param nanos How long the read took.
+     */
+    public static void recordSuccess(int serverId, long nanos) {
+        Stats stats = servers.computeIfAbsent(serverId, id -> new Stats());
+        synchronized (stats) {
+            stats.latencyNanos = stats.latencyNanos == 0 ? nanos
+                    : (long) (EWMA_WEIGHT * nanos + (1 - EWMA_WEIGHT) * stats.latencyNanos);
+        }
+    }
+
+    /**
+     * Records a failed read from a server.
+     */
+    public static void recordFailure(int serverId) {
+        servers.computeIfAbsent(serverId, id -> new Stats()).lastFailureMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if the server has not failed within the penalty window.
+     */
+    public static boolean isHealthy(int serverId) {
+        Stats stats = servers.get(serverId);
+        return stats == null || System.currentTimeMillis() - stats.lastFailureMillis > FAILURE_PENALTY_MILLIS;
+    }
+
+    /**
+     * @return The smoothed read latency of a server in nanoseconds, or 0 if it was never measured.
+     */
+    public static long getLatencyNanos(int serverId) {
+        Stats stats = servers.get(serverId);
+        return stats == null ? 0 : stats.latencyNanos;
+    }
+
+    /**
+     * Orders replicas so that active, healthy servers come first and, among those, the
+     * fastest one leads. Servers without measurements are tried before slower measured ones
+     * so that every replica gets sampled eventually.
+     *
+     * @param replicas The replicas to order.
+     * @param serverOf Extracts the server ID of a replica.
+     * @param activeServerIds The servers currently marked active, or null if unknown.
+     * @return A new list in the order the replicas should be tried.
+     */
+    public static <T> List<T> rank(Collection<T> replicas, ToIntFunction<T> serverOf, Collection<Integer> activeServerIds) {
+        List<T> ranked = new ArrayList<>(replicas);
+        ranked.sort(Comparator
+                .comparing((T replica) -> activeServerIds != null && !activeServerIds.contains(serverOf.applyAsInt(replica)))
+                .thenComparing(replica -> !isHealthy(serverOf.applyAsInt(replica)))
+                .thenComparingLong(replica -> getLatencyNanos(serverOf.applyAsInt(replica))));
+        return ranked;
+    }
+
+    private static final class Stats {
+        private volatile long latencyNanos;
+        private volatile long lastFailureMillis;
+    }
+}
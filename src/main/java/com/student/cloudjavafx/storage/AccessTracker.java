@@ -0,0 +1,75 @@
+package com.student.cloudjavafx.storage;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Approximate per-chunk read frequencies in constant memory: a count-min sketch of the chunk
+ * keys, whose counters are halved by {@link #decay()} so that old reads fade out. A chunk's
+ * estimate never undercounts its reads since the last decays; collisions can only inflate it.
+ */
+public class AccessTracker {
+
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = Integer.MAX_VALUE / 2;
+
+    private final AtomicIntegerArray counters;
+    private final int rowMask;
+
+    /**
+     * @param expectedChunks Roughly how many distinct chunks are read between two decays.
+     */
+    public AccessTracker(int expectedChunks) {
+        int width = Integer.highestOneBit(Math.max(1024, expectedChunks) - 1) << 1;
+        this.counters = new AtomicIntegerArray(ROWS * width);
+        this.rowMask = width - 1;
+    }
+
+    /**
+     * Counts one read of a chunk.
+     */
+    public void record(int fileId, int chunkNumber) {
+        long hash = mix(ChunkIndex.key(fileId, chunkNumber));
+        for (int row = 0; row < ROWS; row++) {
+            int slot = slot(row, hash);
+            if (counters.get(slot) < MAX_COUNT) {
+                counters.incrementAndGet(slot);
+            }
+        }
+    }
+
+    /**
+     * @return The decayed number of reads of a chunk.
+     */
+    public int frequency(int fileId, int chunkNumber) {
+        long hash = mix(ChunkIndex.key(fileId, chunkNumber));
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < ROWS; row++) {
+            min = Math.min(min, counters.get(slot(row, hash)));
+        }
+        return min;
+    }
+
+    /**
+     * Halves every counter. Reads racing with it may be halved or not.
+     */
+    public void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, counters.get(i) >>> 1);
+        }
+    }
+
+    private int slot(int row, long hash) {
+        // An independent hash per row, derived from the key's hash.
+        int rowHash = (int) mix(hash + row * 0x9E3779B97F4A7C15L);
+        return row * (rowMask + 1) + (rowHash & rowMask);
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
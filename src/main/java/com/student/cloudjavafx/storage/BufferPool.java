@@ -0,0 +1,140 @@
+package com.student.cloudjavafx.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of chunk buffers shared by the uploads, downloads and file server clients, so the
+ * chunk pipeline reuses a working set of buffers instead of allocating one or more per chunk
+ * and leaving them to the garbage collector.
+ *
+ * Buffers come in power-of-two size classes from 4 KB up, kept apart for heap and direct
+ * buffers. A request is served with a buffer of the smallest class that fits it, the most
+ * recently released one first, since it is most likely still in the CPU caches. The pool is
+ * bounded by the total bytes of the idle buffers it keeps: a released buffer that would exceed
+ * the bound is dropped. Buffers in use are not counted; they are bounded by the upload
+ * pipeline and the download windows that hold them. Thread-safe.
+ */
+public class BufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int CLASS_COUNT = 31 - MIN_CLASS_SHIFT;
+
+    private static final BufferPool shared = new BufferPool(StorageConfig.BUFFER_POOL_BYTES);
+
+    private final long capacityBytes;
+    private final Deque<ByteBuffer>[] heapFree;
+    private final Deque<ByteBuffer>[] directFree;
+    private final AtomicLong idleBytes = new AtomicLong();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+
+    /**
+     * @param capacityBytes Most bytes of idle buffers kept for reuse (0 disables reuse).
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+        heapFree = new Deque[CLASS_COUNT];
+        directFree = new Deque[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            heapFree[i] = new ConcurrentLinkedDeque<>();
+            directFree[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    /**
+     * @return The pool shared by the whole client, bounded by StorageConfig.BUFFER_POOL_BYTES.
+     */
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    /**
+     * Takes a heap buffer, whose bytes are reachable through {@link PooledBuffer#array()}.
+     *
+     * @param length The number of bytes needed; the contents are not cleared.
+     */
+    public PooledBuffer acquire(int length) {
+        return acquire(length, false);
+    }
+
+    /**
+     * Takes a direct buffer, for bytes that go to or come from a channel.
+     *
+     * @param length The number of bytes needed; the contents are not cleared.
+     */
+    public PooledBuffer acquireDirect(int length) {
+        return acquire(length, true);
+    }
+
+    /**
+     * @return The number of requests served with a released buffer.
+     */
+    public long getReused() {
+        return reused.sum();
+    }
+
+    /**
+     * @return The number of requests that allocated a new buffer.
+     */
+    public long getAllocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * @return The bytes of the idle buffers kept for reuse.
+     */
+    public long getIdleBytes() {
+        return idleBytes.get();
+    }
+
+    private PooledBuffer acquire(int length, boolean direct) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative buffer length " + length + ".");
+        }
+        int sizeClass = sizeClass(length);
+        if (sizeClass < CLASS_COUNT) {
+            ByteBuffer free = (direct ? directFree : heapFree)[sizeClass].pollFirst();
+            if (free != null) {
+                idleBytes.addAndGet(-free.capacity());
+                reused.increment();
+                return new PooledBuffer(this, free, length);
+            }
+        }
+        allocated.increment();
+        // Allocated at the full size of its class, so it can serve any request of that class later.
+        int capacity = sizeClass < CLASS_COUNT ? 1 << (sizeClass + MIN_CLASS_SHIFT) : length;
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        return new PooledBuffer(this, buffer, length);
+    }
+
+    /**
+     * Takes back a buffer whose last reference was released.
+     */
+    void recycle(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass >= CLASS_COUNT || capacity != 1 << (sizeClass + MIN_CLASS_SHIFT)) {
+            return;
+        }
+        if (idleBytes.addAndGet(capacity) > capacityBytes) {
+            idleBytes.addAndGet(-capacity);
+            return;
+        }
+        (buffer.isDirect() ? directFree : heapFree)[sizeClass].offerFirst(buffer);
+    }
+
+    /**
+     * @return The index of the smallest class holding length bytes, or CLASS_COUNT or more if none does.
+     */
+    private static int sizeClass(int length) {
+        if (length <= 1 << MIN_CLASS_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_CLASS_SHIFT;
+    }
+}
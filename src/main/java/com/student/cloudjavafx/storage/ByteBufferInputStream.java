@@ -0,0 +1,129 @@
+package com.student.cloudjavafx.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An InputStream over one or more ByteBuffers that never copies the buffers themselves.
+ * Consumers that understand buffers can take them unchanged through {@link #getBuffers()};
+ * everyone else reads through the regular InputStream API.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private static final int TRANSFER_SIZE = 64 * 1024;
+
+    private final List<ByteBuffer> buffers;
+    private int current;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this(Collections.singletonList(buffer));
+    }
+
+    /**
+     * @param buffers The buffers to read, in order. Each buffer is duplicated so the caller's
+     *                position and limit are left untouched.
+     */
+    public ByteBufferInputStream(List<ByteBuffer> buffers) {
+        this.buffers = new ArrayList<>(buffers.size());
+        for (ByteBuffer buffer : buffers) {
+            this.buffers.add(buffer.duplicate());
+        }
+    }
+
+    /**
+     * Returns the unread remainder of the stream as read-only buffers, without copying.
+     */
+    public List<ByteBuffer> getBuffers() {
+        List<ByteBuffer> remaining = new ArrayList<>(buffers.size() - current);
+        for (int i = current; i < buffers.size(); i++) {
+            remaining.add(buffers.get(i).asReadOnlyBuffer());
+        }
+        return remaining;
+    }
+
+    @Override
+    public int read() {
+        ByteBuffer buffer = nextBuffer();
+        return buffer == null ? -1 : buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = nextBuffer();
+        if (buffer == null) {
+            return -1;
+        }
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(target, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = 0;
+        ByteBuffer buffer;
+        while (skipped < n && (buffer = nextBuffer()) != null) {
+            int step = (int) Math.min(n - skipped, buffer.remaining());
+            buffer.position(buffer.position() + step);
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        long total = 0;
+        for (int i = current; i < buffers.size(); i++) {
+            total += buffers.get(i).remaining();
+        }
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes the remaining bytes straight from the buffers, using their backing array
+     * when there is one instead of staging through an intermediate copy.
+     */
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        long transferred = 0;
+        byte[] staging = null;
+        ByteBuffer buffer;
+        while ((buffer = nextBuffer()) != null) {
+            int count = buffer.remaining();
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+                buffer.position(buffer.limit());
+            } else {
+                if (staging == null) {
+                    staging = new byte[TRANSFER_SIZE];
+                }
+                while (buffer.hasRemaining()) {
+                    int step = Math.min(staging.length, buffer.remaining());
+                    buffer.get(staging, 0, step);
+                    out.write(staging, 0, step);
+                }
+            }
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    private ByteBuffer nextBuffer() {
+        while (current < buffers.size()) {
+            ByteBuffer buffer = buffers.get(current);
+            if (buffer.hasRemaining()) {
+                return buffer;
+            }
+            current++;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,173 @@
+package com.student.cloudjavafx.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over the chunk keys held by a file server. Every chunk adds its own key and a
+ * key for its file, so the filter answers both "may this server hold chunk c of file f?" and
+ * "may it hold anything of file f?". A negative answer is definite; a positive one is wrong
+ * about 1% of the time while the filter holds no more keys than its capacity.
+ *
+ * Bits are never cleared, so deleted chunks keep answering "maybe" until the owner rebuilds
+ * the filter. Adds and lookups may run concurrently.
+ *
+ * Serialized form: [capacity:int][words:int][word:long]*.
+ */
+public final class ChunkBloomFilter {
+
+    // 10 bits and 7 probes per key give a false positive rate just under 1%.
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+    private static final int FILE_KEY = -1; // chunk numbers are never negative
+
+    private final int capacity;
+    private final AtomicLongArray words;
+    private final long bitMask;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    /**
+     * @param capacity The number of chunks the filter is sized for; their files count too.
+     */
+    public ChunkBloomFilter(int capacity) {
+        this(capacity, new AtomicLongArray(wordsFor(capacity)));
+    }
+
+    private ChunkBloomFilter(int capacity, AtomicLongArray words) {
+        this.capacity = capacity;
+        this.words = words;
+        this.bitMask = (long) words.length() * Long.SIZE - 1;
+    }
+
+    private static int wordsFor(int capacity) {
+        long bits = Math.max(Long.SIZE, (long) capacity * BITS_PER_KEY);
+        // Round up to a power of two, so probes can mask instead of divide.
+        long rounded = Long.highestOneBit(bits - 1) << 1;
+        return (int) Math.min(rounded / Long.SIZE, 1 << 26); // at most 512 MB of bits
+    }
+
+    /**
+     * Records a chunk and its file.
+     */
+    public void add(int fileId, int chunkNumber) {
+        if (set(ChunkIndex.key(fileId, chunkNumber))) {
+            additions.incrementAndGet();
+        }
+        set(ChunkIndex.key(fileId, FILE_KEY));
+    }
+
+    /**
+     * @return false if the chunk was definitely never added.
+     */
+    public boolean mightContain(int fileId, int chunkNumber) {
+        return test(ChunkIndex.key(fileId, chunkNumber));
+    }
+
+    /**
+     * @return false if no chunk of the file was ever added.
+     */
+    public boolean mightContainFile(int fileId) {
+        return test(ChunkIndex.key(fileId, FILE_KEY));
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Roughly how many distinct chunks were added; past the capacity the false positive rate climbs.
+     */
+    public int getAdditions() {
+        return additions.get();
+    }
+
+    /**
+     * @return true if any of the key's bits was not set before.
+     */
+    private boolean set(long key) {
+        long h1 = mix(key);
+        long h2 = mix(h1) | 1;
+        boolean changed = false;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = (h1 + i * h2) & bitMask;
+            long mask = 1L << bit;
+            long previous = words.getAndAccumulate((int) (bit >>> 6), mask, (word, m) -> word | m);
+            changed |= (previous & mask) == 0;
+        }
+        return changed;
+    }
+
+    private boolean test(long key) {
+        long h1 = mix(key);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = (h1 + i * h2) & bitMask;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Combines two filters into one that may contain whatever either may contain. Probes
+     * mask the hash to the filter size, so the larger filter's bits fold onto the smaller one.
+     * The result has the smaller size, so it answers "maybe" somewhat more often.
+     */
+    public static ChunkBloomFilter union(ChunkBloomFilter first, ChunkBloomFilter second) {
+        ChunkBloomFilter small = first.words.length() <= second.words.length() ? first : second;
+        ChunkBloomFilter large = small == first ? second : first;
+        int length = small.words.length();
+        AtomicLongArray words = new AtomicLongArray(length);
+        for (int i = 0; i < large.words.length(); i++) {
+            int target = i & (length - 1);
+            long folded = large.words.get(i) | (i < length ? small.words.get(i) : 0);
+            words.set(target, words.get(target) | folded);
+        }
+        ChunkBloomFilter union = new ChunkBloomFilter((int) Math.min(Integer.MAX_VALUE, (long) first.capacity + second.capacity), words);
+        union.additions.set(first.getAdditions() + second.getAdditions());
+        return union;
+    }
+
+    /**
+     * @return The number of bytes {@link #writeTo} puts.
+     */
+    public int serializedSize() {
+        return 8 + words.length() * Long.BYTES;
+    }
+
+    public void writeTo(ByteBuffer target) {
+        target.putInt(capacity).putInt(words.length());
+        for (int i = 0; i < words.length(); i++) {
+            target.putLong(words.get(i));
+        }
+    }
+
+    /**
+     * Reads a filter written by {@link #writeTo}.
+     *
+     * @throws IllegalArgumentException If the buffer does not hold a filter.
+     */
+    public static ChunkBloomFilter readFrom(ByteBuffer source) {
+        int capacity = source.getInt();
+        int length = source.getInt();
+        if (length <= 0 || Integer.bitCount(length) != 1 || source.remaining() < (long) length * Long.BYTES) {
+            throw new IllegalArgumentException("Not a chunk filter: " + length + " words, " + source.remaining() + " bytes.");
+        }
+        AtomicLongArray words = new AtomicLongArray(length);
+        for (int i = 0; i < length; i++) {
+            words.set(i, source.getLong());
+        }
+        return new ChunkBloomFilter(capacity, words);
+    }
+}
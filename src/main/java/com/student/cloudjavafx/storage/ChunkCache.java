@@ -0,0 +1,195 @@
+package com.student.cloudjavafx.storage;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded, least-recently-used cache of chunk bytes kept in direct ByteBuffers,
+ * so hot chunks are served from memory without occupying the Java heap.
+ * Entries are keyed by the chunk's storage key (fileId, chunkNumber); content-addressed
+ * chunks are stored under (FileChunk.CONTENT_FILE_ID, contentId) and therefore cached by content.
+ */
+public class ChunkCache {
+
+    private final long capacityBytes;
+    private final long maxEntryBytes;
+    // Access-ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<Long, ByteBuffer> entries = new LinkedHashMap<>(64, 0.75f, true);
+    // fileId -> number of cached chunks, so invalidating an uncached file costs nothing.
+    private final Map<Integer, Integer> chunksPerFile = new HashMap<>();
+    private long usedBytes;
+
+    // Invalidation counters, striped by chunk and by file. A load is not cached if its chunk or
+    // its file, or another one sharing the stripe, was invalidated while it ran; writes to
+    // other files do not keep a download from being cached.
+    private static final int INVALIDATION_STRIPES = 1024;
+    private final AtomicLongArray chunkInvalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+    private final AtomicLongArray fileInvalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacityBytes Total bytes of chunk data the cache may hold.
+     */
+    public ChunkCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+        // A single huge chunk should not be able to flush the whole working set.
+        this.maxEntryBytes = capacityBytes / 8;
+    }
+
+    /**
+     * Looks a chunk up and records a hit or a miss.
+     *
+     * @return A read-only view of the cached bytes, or null on a miss.
+     */
+    public synchronized ByteBuffer get(int fileId, int chunkNumber) {
+        ByteBuffer cached = entries.get(key(fileId, chunkNumber));
+        if (cached == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return cached.asReadOnlyBuffer();
+    }
+
+    /**
+     * Looks a chunk up without counting a hit or a miss, for callers that only want to use
+     * the cache opportunistically and would not load the chunk into it on a miss.
+     *
+     * @return A read-only view of the cached bytes, or null if the chunk is not cached.
+     */
+    public synchronized ByteBuffer peek(int fileId, int chunkNumber) {
+        ByteBuffer cached = entries.get(key(fileId, chunkNumber));
+        return cached == null ? null : cached.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a token to pass to {@link #put} once the chunk has been loaded. If the chunk or
+     * its file is invalidated in between, the stale load is not cached.
+     */
+    public long beginLoad(int fileId, int chunkNumber) {
+        // Both counters only grow, so their sum changes whenever either of them does.
+        return chunkInvalidations.get(stripe(key(fileId, chunkNumber))) + fileInvalidations.get(stripe(fileId));
+    }
+
+    /**
+     * Copies a loaded chunk into direct memory and caches it, evicting least recently used
+     * chunks until it fits.
+     *
+     * @param loadToken The value returned by {@link #beginLoad} before the chunk was loaded.
+     * @return A read-only view of the cached copy, or the original buffer if it was not cached.
+     */
+    public ByteBuffer put(int fileId, int chunkNumber, ByteBuffer data, long loadToken) {
+        int length = data.remaining();
+        if (length > maxEntryBytes) {
+            return data;
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect(length);
+        copy.put(data.duplicate()).flip();
+        synchronized (this) {
+            if (beginLoad(fileId, chunkNumber) != loadToken) {
+                return data;
+            }
+            ByteBuffer previous = entries.put(key(fileId, chunkNumber), copy);
+            if (previous != null) {
+                usedBytes -= previous.capacity();
+            } else {
+                chunksPerFile.merge(fileId, 1, Integer::sum);
+            }
+            usedBytes += length;
+            evictOverflow();
+        }
+        return copy.asReadOnlyBuffer();
+    }
+
+    /**
+     * Drops a single chunk, e.g. because it was deleted or overwritten.
+     */
+    public synchronized void invalidate(int fileId, int chunkNumber) {
+        chunkInvalidations.incrementAndGet(stripe(key(fileId, chunkNumber)));
+        ByteBuffer removed = entries.remove(key(fileId, chunkNumber));
+        if (removed != null) {
+            usedBytes -= removed.capacity();
+            decrementFile(fileId);
+        }
+    }
+
+    /**
+     * Drops every cached chunk of a file.
+     */
+    public synchronized void invalidateFile(int fileId) {
+        fileInvalidations.incrementAndGet(stripe(fileId));
+        if (!chunksPerFile.containsKey(fileId)) {
+            return;
+        }
+        Iterator<Map.Entry<Long, ByteBuffer>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, ByteBuffer> entry = iterator.next();
+            if ((int) (entry.getKey() >>> 32) == fileId) {
+                usedBytes -= entry.getValue().capacity();
+                iterator.remove();
+            }
+        }
+        chunksPerFile.remove(fileId);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return The fraction of lookups that were served from the cache.
+     */
+    public double getHitRatio() {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ChunkCache{hits=%d, misses=%d, hitRatio=%.2f, evictions=%d, used=%d/%d bytes}",
+                getHits(), getMisses(), getHitRatio(), getEvictions(), getUsedBytes(), capacityBytes);
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<Long, ByteBuffer>> iterator = entries.entrySet().iterator();
+        while (usedBytes > capacityBytes && iterator.hasNext()) {
+            Map.Entry<Long, ByteBuffer> eldest = iterator.next();
+            usedBytes -= eldest.getValue().capacity();
+            decrementFile((int) (eldest.getKey() >>> 32));
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    private void decrementFile(int fileId) {
+        chunksPerFile.computeIfPresent(fileId, (k, count) -> count == 1 ? null : count - 1);
+    }
+
+    private static int stripe(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 54) & (INVALIDATION_STRIPES - 1);
+    }
+
+    private static long key(int fileId, int chunkNumber) {
+        return ((long) fileId << 32) | (chunkNumber & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,48 @@
+package com.student.cloudjavafx.storage;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Helpers for the CRC32C checksums that protect every stored chunk.
+ * CRC32C is hardware accelerated on current JVMs, which keeps verify-on-read cheap
+ * enough to stay enabled at full download throughput.
+ */
+public final class ChunkChecksums {
+
+    /** Prefix of the checksum strings stored in file_chunks.checksum. */
+    public static final String CRC32C_PREFIX = "crc32c:";
+
+    private ChunkChecksums() {
+    }
+
+    /**
+     * Computes the CRC32C of the remaining bytes of a buffer without moving its position.
+     */
+    public static int crc32c(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Formats a CRC32C value the way it is stored in file_chunks.checksum.
+     */
+    public static String format(int crc) {
+        return CRC32C_PREFIX + String.format("%08x", crc);
+    }
+
+    /**
+     * @return true if the checksum string holds a CRC32C value.
+     */
+    public static boolean isCrc32c(String checksum) {
+        return checksum != null && checksum.startsWith(CRC32C_PREFIX);
+    }
+
+    /**
+     * Parses a checksum string produced by {@link #format(int)}.
+     */
+    public static int parse(String checksum) {
+        return Integer.parseUnsignedInt(checksum.substring(CRC32C_PREFIX.length()), 16);
+    }
+}
@@ -0,0 +1,34 @@
+package com.student.cloudjavafx.storage;
+
+/**
+ * Identifies how a chunk's bytes were encoded before they were stored.
+ * The numeric id is what is persisted in file_chunks.codec.
+ */
+public enum ChunkCodec {
+    /** Stored exactly as uploaded. */
+    NONE(0),
+    /** zlib-wrapped Deflate, prefixed with the uncompressed length (see ChunkCompressor). */
+    DEFLATE(1);
+
+    private final int id;
+
+    ChunkCodec(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Maps a persisted codec id back to the codec; unknown ids are rejected.
+     */
+    public static ChunkCodec fromId(int id) {
+        for (ChunkCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown chunk codec id: " + id);
+    }
+}
@@ -0,0 +1,213 @@
+package com.student.cloudjavafx.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression stage of the chunk pipeline.
+ * Before compressing a chunk, a few small samples of it are deflated; if they do not
+ * shrink (JPEGs, zips, videos, encrypted data) the chunk is stored raw and almost no CPU
+ * is spent on it. Compressed chunks use zlib framing, whose Adler-32 trailer also checks
+ * the uncompressed bytes end to end when the chunk is inflated again.
+ *
+ * Compressed payload layout: [uncompressedLength:int][zlib stream].
+ *
+ * An instance keeps a Deflater and an output buffer and is not thread-safe; use one per upload.
+ */
+public class ChunkCompressor implements AutoCloseable {
+
+    /** A chunk must shrink by at least this fraction for the compressed copy to be kept. */
+    static final double MIN_SAVING = 0.10;
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    private static final int SAMPLE_COUNT = 3;
+    private static final int LENGTH_PREFIX = 4;
+
+    // Leading bytes of common formats that are already compressed.
+    private static final byte[][] COMPRESSED_SIGNATURES = {
+        {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},             // JPEG
+        {(byte) 0x89, 'P', 'N', 'G'},                        // PNG
+        {'P', 'K', 0x03, 0x04},                              // ZIP, JAR, DOCX, XLSX
+        {0x1F, (byte) 0x8B},                                 // GZIP
+        {'7', 'z', (byte) 0xBC, (byte) 0xAF},                // 7-Zip
+        {(byte) 0xFD, '7', 'z', 'X', 'Z'},                   // XZ
+        {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD},              // Zstandard
+        {'R', 'a', 'r', '!'},                                // RAR
+        {'B', 'Z', 'h'},                                     // BZIP2
+    };
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] sampleOutput = new byte[SAMPLE_SIZE * SAMPLE_COUNT];
+    private byte[] output = new byte[0];
+
+    /**
+     * Compresses a chunk if that is worthwhile.
+     *
+     * @return The compressed payload, or null if the chunk should be stored raw.
+     *         The returned buffer is reused by the next call.
+     */
+    public ByteBuffer compress(byte[] data, int offset, int length) {
+        if (!worthCompressing(data, offset, length)) {
+            return null;
+        }
+        if (output.length < maxCompressedLength(length)) {
+            output = new byte[maxCompressedLength(length)];
+        }
+        return deflate(data, offset, length, output);
+    }
+
+    /**
+     * Compresses a chunk into the given array if that is worthwhile, e.g. a pooled buffer.
+     *
+     * @param output Receives the payload; must hold at least maxCompressedLength(length) bytes.
+     * @return A view of the compressed payload in output, or null if the chunk should be stored raw.
+     */
+    public ByteBuffer compress(byte[] data, int offset, int length, byte[] output) {
+        return worthCompressing(data, offset, length) ? deflate(data, offset, length, output) : null;
+    }
+
+    private boolean worthCompressing(byte[] data, int offset, int length) {
+        return length >= 64 && !hasCompressedSignature(data, offset, length) && samplesCompress(data, offset, length);
+    }
+
+    private ByteBuffer deflate(byte[] data, int offset, int length, byte[] output) {
+        int budget = maxCompressedLength(length) - LENGTH_PREFIX;
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        int produced = LENGTH_PREFIX;
+        while (!deflater.finished() && produced < LENGTH_PREFIX + budget) {
+            produced += deflater.deflate(output, produced, LENGTH_PREFIX + budget - produced);
+        }
+        if (!deflater.finished()) {
+            return null; // did not fit into the saving budget
+        }
+        ByteBuffer.wrap(output).putInt(0, length);
+        return ByteBuffer.wrap(output, 0, produced);
+    }
+
+    /**
+     * @return The largest payload compress produces for a chunk of the given length; anything
+     *         larger is not worth keeping.
+     */
+    public static int maxCompressedLength(int length) {
+        return LENGTH_PREFIX + (int) (length * (1 - MIN_SAVING));
+    }
+
+    /**
+     * Restores the original bytes of a stored chunk.
+     *
+     * @param codec The codec recorded for the chunk.
+     * @param stored The payload as returned by the file server; it may be a direct or mapped buffer.
+     * @return The uncompressed chunk; the stored buffer itself when the codec is NONE.
+     * @throws IOException If the payload is damaged.
+     */
+    public static ByteBuffer decompress(ChunkCodec codec, ByteBuffer stored) throws IOException {
+        if (codec == ChunkCodec.NONE) {
+            return stored;
+        }
+        ByteBuffer input = stored.duplicate();
+        int length = input.getInt();
+        byte[] result = new byte[length];
+        inflate(input, result, length);
+        return ByteBuffer.wrap(result);
+    }
+
+    /**
+     * Restores the original bytes of a stored chunk into a buffer from the pool.
+     *
+     * @return The uncompressed chunk, to be released by the caller; the stored buffer itself,
+     *         wrapped, when the codec is NONE.
+     * @throws IOException If the payload is damaged.
+     */
+    public static PooledBuffer decompress(ChunkCodec codec, ByteBuffer stored, BufferPool pool) throws IOException {
+        if (codec == ChunkCodec.NONE) {
+            return PooledBuffer.wrap(stored);
+        }
+        ByteBuffer input = stored.duplicate();
+        int length = input.getInt();
+        PooledBuffer result = pool.acquire(length);
+        try {
+            inflate(input, result.array(), length);
+        } catch (IOException | RuntimeException e) {
+            result.release();
+            throw e;
+        }
+        return result;
+    }
+
+    private static void inflate(ByteBuffer input, byte[] result, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            int produced = 0;
+            while (!inflater.finished()) {
+                int step = inflater.inflate(result, produced, length - produced);
+                if (step == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Compressed chunk is truncated.");
+                }
+                produced += step;
+            }
+            if (produced != length) {
+                throw new IOException("Compressed chunk inflated to " + produced + " bytes, expected " + length + ".");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed chunk is corrupted: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+    }
+
+    private static boolean hasCompressedSignature(byte[] data, int offset, int length) {
+        for (byte[] signature : COMPRESSED_SIGNATURES) {
+            if (length >= signature.length && startsWith(data, offset, signature)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deflates samples from the start, middle and end of the chunk and checks that they shrink.
+     * Small chunks are sampled whole.
+     */
+    private boolean samplesCompress(byte[] data, int offset, int length) {
+        int sampled = 0;
+        int compressed = 0;
+        int sampleLength = Math.min(SAMPLE_SIZE, length);
+        int step = length <= SAMPLE_SIZE * SAMPLE_COUNT ? 0 : (length - sampleLength) / (SAMPLE_COUNT - 1);
+        int samples = step == 0 ? 1 : SAMPLE_COUNT;
+        if (step == 0) {
+            sampleLength = length;
+        }
+        for (int i = 0; i < samples; i++) {
+            deflater.reset();
+            deflater.setInput(data, offset + i * step, sampleLength);
+            deflater.finish();
+            while (!deflater.finished() && compressed < sampleOutput.length) {
+                compressed += deflater.deflate(sampleOutput, compressed, sampleOutput.length - compressed);
+            }
+            if (!deflater.finished()) {
+                return false;
+            }
+            sampled += sampleLength;
+        }
+        return compressed <= sampled * (1 - MIN_SAVING);
+    }
+}
@@ -0,0 +1,29 @@
+package com.student.cloudjavafx.storage;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a stored chunk no longer matches the CRC32C recorded when it was written.
+ */
+public class ChunkCorruptedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int fileId;
+    private final int chunkNumber;
+
+    public ChunkCorruptedException(int fileId, int chunkNumber, int expectedCrc, int actualCrc) {
+        super(String.format("Chunk %d for file %d is corrupted (expected %s, found %s).", chunkNumber, fileId,
+                ChunkChecksums.format(expectedCrc), ChunkChecksums.format(actualCrc)));
+        this.fileId = fileId;
+        this.chunkNumber = chunkNumber;
+    }
+
+    public int getFileId() {
+        return fileId;
+    }
+
+    public int getChunkNumber() {
+        return chunkNumber;
+    }
+}
@@ -0,0 +1,511 @@
+package com.student.cloudjavafx.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Offset index of a chunk store: (fileId, chunkNumber) -> location of the live record.
+ * Keys are packed into a long (fileId << 32 | chunkNumber) and kept in open-addressing tables
+ * with linear probing, whose slots are parallel primitive arrays, so an entry costs 28 bytes
+ * per slot instead of the boxed keys, map nodes and location objects of nested hash maps.
+ * The key space is split over independently locked stripes. Lookups are optimistic reads of
+ * a StampedLock, so they take no lock unless they race with a write; contains, isAt and
+ * locate into a caller's {@link LocationHolder} allocate nothing, get allocates the location
+ * it returns.
+ *
+ * The chunk numbers of each file, for listChunks and whole-file deletes, are a bitmap kept in
+ * tables of the same kind: the entry (fileId, w) holds the w-th 64-bit word of the bitmap in
+ * its offset column, and (fileId, FILE_HEADER) the file's chunk count and number of words.
+ * A file's entries all live in the stripe its fileId hashes to.
+ *
+ * Mutations must be serialized by the caller; the store does so with its write lock.
+ */
+final class ChunkIndex {
+
+    private static final int STRIPES = 64;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int FILE_HEADER = -1; // chunk numbers are never negative
+    // Segment ID of the bitmap entries, which point at no record; 0 would mark an empty slot.
+    private static final int BITMAP_ENTRY = -1;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    // fileId -> chunk numbers present in the index
+    private final Stripe[] fileStripes = new Stripe[STRIPES];
+    private volatile int size;
+
+    ChunkIndex() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+            fileStripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @return The location of a chunk, or null if it is not indexed.
+     */
+    ChunkLocation get(int fileId, int chunkNumber) {
+        LocationHolder holder = new LocationHolder();
+        return locate(fileId, chunkNumber, holder) ? holder.toLocation() : null;
+    }
+
+    /**
+     * Looks a chunk up without allocating.
+     *
+     * @param out Receives the location if the chunk is indexed; undefined otherwise.
+     * @return true if the chunk is indexed.
+     */
+    boolean locate(int fileId, int chunkNumber, LocationHolder out) {
+        long key = key(fileId, chunkNumber);
+        long hash = mix(key);
+        Stripe stripe = stripes[stripeOf(hash)];
+        long stamp = stripe.lock.tryOptimisticRead();
+        boolean found = stripe.table.copyTo(key, hash, out);
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                found = stripe.table.copyTo(key, hash, out);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return true if the chunk is indexed.
+     */
+    boolean contains(int fileId, int chunkNumber) {
+        long key = key(fileId, chunkNumber);
+        long hash = mix(key);
+        Stripe stripe = stripes[stripeOf(hash)];
+        long stamp = stripe.lock.tryOptimisticRead();
+        boolean found = stripe.table.find(key, hash) >= 0;
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                found = stripe.table.find(key, hash) >= 0;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return true if the chunk is indexed at exactly the given position.
+     */
+    boolean isAt(int fileId, int chunkNumber, int segmentId, long offset) {
+        long key = key(fileId, chunkNumber);
+        long hash = mix(key);
+        Stripe stripe = stripes[stripeOf(hash)];
+        long stamp = stripe.lock.tryOptimisticRead();
+        boolean at = stripe.table.isAt(key, hash, segmentId, offset);
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                at = stripe.table.isAt(key, hash, segmentId, offset);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return at;
+    }
+
+    /**
+     * Indexes a chunk, replacing any previous location.
+     *
+     * @return The replaced location, or null if the chunk was not indexed.
+     */
+    ChunkLocation put(int fileId, int chunkNumber, ChunkLocation location) {
+        long key = key(fileId, chunkNumber);
+        long hash = mix(key);
+        Stripe stripe = stripes[stripeOf(hash)];
+        ChunkLocation previous;
+        long stamp = stripe.lock.writeLock();
+        try {
+            int slot = stripe.table.find(key, hash);
+            previous = slot < 0 ? null : stripe.table.locationAt(slot);
+            stripe.put(key, hash, location.getSegmentId(), location.getOffset(), location.getLength(), location.getCrc());
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+        if (previous == null) {
+            updateBitmap(fileId, chunkNumber, true);
+            size++;
+        }
+        return previous;
+    }
+
+    /**
+     * @return The removed location, or null if the chunk was not indexed.
+     */
+    ChunkLocation remove(int fileId, int chunkNumber) {
+        ChunkLocation removed = removeKey(fileId, chunkNumber);
+        if (removed != null) {
+            updateBitmap(fileId, chunkNumber, false);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every chunk of a file.
+     *
+     * @return The removed locations; empty if the file had no chunks.
+     */
+    List<ChunkLocation> removeFile(int fileId) {
+        Stripe stripe = fileStripes[stripeOf(mix(fileId))];
+        int[] chunkNumbers;
+        long stamp = stripe.lock.writeLock();
+        try {
+            chunkNumbers = stripe.bitmap(fileId);
+            long header = key(fileId, FILE_HEADER);
+            int slot = stripe.table.find(header, mix(header));
+            long words = slot < 0 ? 0 : stripe.table.offsets[slot];
+            for (int word = 0; word < words; word++) {
+                long wordKey = key(fileId, word);
+                stripe.remove(wordKey, mix(wordKey));
+            }
+            stripe.remove(header, mix(header));
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+        List<ChunkLocation> removed = new ArrayList<>(chunkNumbers.length);
+        for (int chunkNumber : chunkNumbers) {
+            ChunkLocation location = removeKey(fileId, chunkNumber);
+            if (location != null) {
+                removed.add(location);
+            }
+        }
+        return removed;
+    }
+
+    boolean containsFile(int fileId) {
+        long header = key(fileId, FILE_HEADER);
+        long hash = mix(header);
+        Stripe stripe = fileStripes[stripeOf(mix(fileId))];
+        long stamp = stripe.lock.tryOptimisticRead();
+        boolean found = stripe.table.find(header, hash) >= 0;
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                found = stripe.table.find(header, hash) >= 0;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return The chunk numbers of a file in ascending order.
+     */
+    int[] listChunks(int fileId) {
+        Stripe stripe = fileStripes[stripeOf(mix(fileId))];
+        long stamp = stripe.lock.readLock();
+        try {
+            return stripe.bitmap(fileId);
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return The IDs of every file with at least one indexed chunk.
+     */
+    int[] fileIds() {
+        int[] fileIds = new int[16];
+        int count = 0;
+        for (Stripe stripe : fileStripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                Table table = stripe.table;
+                for (int slot = 0; slot < table.keys.length; slot++) {
+                    if (table.segmentIds[slot] != 0 && (int) table.keys[slot] == FILE_HEADER) {
+                        if (count == fileIds.length) {
+                            fileIds = Arrays.copyOf(fileIds, count * 2);
+                        }
+                        fileIds[count++] = (int) (table.keys[slot] >>> 32);
+                    }
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return Arrays.copyOf(fileIds, count);
+    }
+
+    int size() {
+        return size;
+    }
+
+    private ChunkLocation removeKey(int fileId, int chunkNumber) {
+        long key = key(fileId, chunkNumber);
+        long hash = mix(key);
+        Stripe stripe = stripes[stripeOf(hash)];
+        ChunkLocation removed;
+        long stamp = stripe.lock.writeLock();
+        try {
+            int slot = stripe.table.find(key, hash);
+            removed = slot < 0 ? null : stripe.table.locationAt(slot);
+            if (removed != null) {
+                stripe.remove(key, hash);
+            }
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+        if (removed != null) {
+            size--;
+        }
+        return removed;
+    }
+
+    /**
+     * Sets or clears a chunk's bit in its file's bitmap, dropping words that become zero and
+     * the file's header once it has no chunks left.
+     */
+    private void updateBitmap(int fileId, int chunkNumber, boolean present) {
+        Stripe stripe = fileStripes[stripeOf(mix(fileId))];
+        long header = key(fileId, FILE_HEADER);
+        long headerHash = mix(header);
+        long wordKey = key(fileId, chunkNumber >>> 6);
+        long wordHash = mix(wordKey);
+        long stamp = stripe.lock.writeLock();
+        try {
+            int headerSlot = stripe.table.find(header, headerHash);
+            long words = headerSlot < 0 ? 0 : stripe.table.offsets[headerSlot];
+            int count = headerSlot < 0 ? 0 : stripe.table.lengths[headerSlot];
+            int wordSlot = stripe.table.find(wordKey, wordHash);
+            long bits = wordSlot < 0 ? 0 : stripe.table.offsets[wordSlot];
+            bits = present ? bits | 1L << chunkNumber : bits & ~(1L << chunkNumber);
+            count += present ? 1 : -1;
+            if (bits != 0) {
+                stripe.put(wordKey, wordHash, BITMAP_ENTRY, bits, 0, 0);
+            } else if (wordSlot >= 0) {
+                stripe.remove(wordKey, wordHash);
+            }
+            if (count > 0) {
+                stripe.put(header, headerHash, BITMAP_ENTRY, Math.max(words, (chunkNumber >>> 6) + 1), count, 0);
+            } else if (headerSlot >= 0) {
+                stripe.remove(header, headerHash);
+            }
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    static long key(int fileId, int chunkNumber) {
+        return ((long) fileId << 32) | (chunkNumber & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Spreads the packed key (the MurmurHash3 finalizer), since chunk numbers are sequential.
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static int stripeOf(long hash) {
+        return (int) (hash >>> 58); // top 6 bits; the slot uses the low bits
+    }
+
+    /**
+     * Receives a location from {@link #locate} field by field, so a caller can look chunks up
+     * without a ChunkLocation per lookup.
+     */
+    static final class LocationHolder {
+        int segmentId;
+        long offset;
+        int length;
+        int crc;
+
+        ChunkLocation toLocation() {
+            return new ChunkLocation(segmentId, offset, length, crc);
+        }
+    }
+
+    /**
+     * One independently locked part of the index.
+     */
+    private static final class Stripe {
+        private final StampedLock lock = new StampedLock();
+        // Replaced as a whole when it grows, so an optimistic reader always sees arrays of one size.
+        private volatile Table table = new Table(INITIAL_CAPACITY);
+        private int size;
+
+        private void put(long key, long hash, int segmentId, long offset, int length, int crc) {
+            Table current = table;
+            int slot = current.slotOf(key, hash);
+            if (current.segmentIds[slot] == 0) {
+                if (size + 1 > current.keys.length * LOAD_FACTOR) {
+                    current = current.grow();
+                    table = current;
+                    slot = current.slotOf(key, hash);
+                }
+                size++;
+            }
+            current.set(slot, key, segmentId, offset, length, crc);
+        }
+
+        /**
+         * Removes a key with backward-shift deletion, so probe sequences never need tombstones.
+         */
+        private void remove(long key, long hash) {
+            Table current = table;
+            int slot = current.slotOf(key, hash);
+            if (current.segmentIds[slot] == 0) {
+                return;
+            }
+            int mask = current.keys.length - 1;
+            int hole = slot;
+            int next = hole;
+            while (true) {
+                next = (next + 1) & mask;
+                if (current.segmentIds[next] == 0) {
+                    break;
+                }
+                int home = (int) mix(current.keys[next]) & mask;
+                // Move the entry back into the hole unless its home lies cyclically in (hole, next].
+                boolean homeBetween = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+                if (!homeBetween) {
+                    current.copy(next, hole);
+                    hole = next;
+                }
+            }
+            current.segmentIds[hole] = 0;
+            size--;
+        }
+
+        /**
+         * @return The chunk numbers in a file's bitmap, in ascending order. Must hold the lock.
+         */
+        private int[] bitmap(int fileId) {
+            Table current = table;
+            long header = key(fileId, FILE_HEADER);
+            int slot = current.find(header, mix(header));
+            if (slot < 0) {
+                return new int[0];
+            }
+            long words = current.offsets[slot];
+            int[] chunkNumbers = new int[current.lengths[slot]];
+            int count = 0;
+            for (int word = 0; word < words; word++) {
+                long wordKey = key(fileId, word);
+                int wordSlot = current.find(wordKey, mix(wordKey));
+                for (long bits = wordSlot < 0 ? 0 : current.offsets[wordSlot]; bits != 0; bits &= bits - 1) {
+                    chunkNumbers[count++] = (word << 6) + Long.numberOfTrailingZeros(bits);
+                }
+            }
+            return chunkNumbers;
+        }
+    }
+
+    /**
+     * Open-addressing table with one slot per index in the parallel arrays; segment ID 0 marks an empty slot.
+     */
+    private static final class Table {
+        private final long[] keys;
+        private final int[] segmentIds;
+        private final long[] offsets;
+        private final int[] lengths;
+        private final int[] crcs;
+
+        private Table(int capacity) {
+            keys = new long[capacity];
+            segmentIds = new int[capacity];
+            offsets = new long[capacity];
+            lengths = new int[capacity];
+            crcs = new int[capacity];
+        }
+
+        /**
+         * @return The slot holding the key, or the empty slot where it would be inserted.
+         */
+        private int slotOf(long key, long hash) {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (segmentIds[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Probe for optimistic readers: bounded by the capacity, since a concurrent writer may
+         * leave the table momentarily inconsistent (the read is then retried under the lock).
+         */
+        private int find(long key, long hash) {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            for (int probes = 0; probes < keys.length; probes++) {
+                if (segmentIds[slot] == 0) {
+                    return -1;
+                }
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private boolean copyTo(long key, long hash, LocationHolder out) {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                return false;
+            }
+            out.segmentId = segmentIds[slot];
+            out.offset = offsets[slot];
+            out.length = lengths[slot];
+            out.crc = crcs[slot];
+            return true;
+        }
+
+        private boolean isAt(long key, long hash, int segmentId, long offset) {
+            int slot = find(key, hash);
+            return slot >= 0 && segmentIds[slot] == segmentId && offsets[slot] == offset;
+        }
+
+        private ChunkLocation locationAt(int slot) {
+            return new ChunkLocation(segmentIds[slot], offsets[slot], lengths[slot], crcs[slot]);
+        }
+
+        private void set(int slot, long key, int segmentId, long offset, int length, int crc) {
+            keys[slot] = key;
+            offsets[slot] = offset;
+            lengths[slot] = length;
+            crcs[slot] = crc;
+            segmentIds[slot] = segmentId;
+        }
+
+        private void copy(int from, int to) {
+            keys[to] = keys[from];
+            segmentIds[to] = segmentIds[from];
+            offsets[to] = offsets[from];
+            lengths[to] = lengths[from];
+            crcs[to] = crcs[from];
+        }
+
+        private Table grow() {
+            Table larger = new Table(keys.length * 2);
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (segmentIds[slot] != 0) {
+                    int target = larger.slotOf(keys[slot], mix(keys[slot]));
+                    larger.keys[target] = keys[slot];
+                    larger.segmentIds[target] = segmentIds[slot];
+                    larger.offsets[target] = offsets[slot];
+                    larger.lengths[target] = lengths[slot];
+                    larger.crcs[target] = crcs[slot];
+                }
+            }
+            return larger;
+        }
+    }
+}
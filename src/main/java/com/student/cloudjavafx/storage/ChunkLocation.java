@@ -0,0 +1,70 @@
+package com.student.cloudjavafx.storage;
+
+/**
+ * Points at the payload of a chunk record inside a segment file.
+ */
+public final class ChunkLocation {
+    private final int segmentId;
+    private final long offset;
+    private final int length;
+    private final int crc;
+
+    public ChunkLocation(int segmentId, long offset, int length, int crc) {
+        this.segmentId = segmentId;
+        this.offset = offset;
+        this.length = length;
+        this.crc = crc;
+    }
+
+    public int getSegmentId() {
+        return segmentId;
+    }
+
+    /**
+     * @return The offset of the first payload byte within the segment file.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return The CRC32C of the payload recorded when the chunk was written.
+     */
+    public int getCrc() {
+        return crc;
+    }
+
+    /**
+     * Two locations are equal if they point at the same record.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ChunkLocation)) {
+            return false;
+        }
+        ChunkLocation other = (ChunkLocation) o;
+        return segmentId == other.segmentId && offset == other.offset;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * segmentId + Long.hashCode(offset);
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkLocation{" +
+                "segmentId=" + segmentId +
+                ", offset=" + offset +
+                ", length=" + length +
+                ", crc=" + ChunkChecksums.format(crc) +
+                '}';
+    }
+}
@@ -0,0 +1,111 @@
+package com.student.cloudjavafx.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background integrity checker for the chunk stores.
+ * Registered stores are walked concurrently on a small thread pool, so the servers are
+ * scrubbed in parallel, and every chunk is re-read and checked against its CRC32C. Reads are
+ * throttled per store so that scrubbing never competes with real downloads for disk bandwidth.
+ */
+public class ChunkScrubber {
+
+    private static final Logger LOGGER = Logger.getLogger(ChunkScrubber.class.getName());
+
+    /**
+     * Notified for every chunk that fails verification.
+     */
+    public interface CorruptionListener {
+        void onCorruptChunk(int serverId, int fileId, int chunkNumber, String details);
+    }
+
+    private final ScheduledExecutorService executor;
+    private final long bytesPerSecond;
+    private final long intervalMinutes;
+    private final CorruptionListener listener;
+
+    /**
+     * @param threads Number of stores that can be scrubbed at the same time.
+     * @param bytesPerSecond Read budget per store.
+     * @param intervalMinutes Pause between two passes over the same store.
+     * @param listener Receives every corrupted chunk that is found.
+     */
+    public ChunkScrubber(int threads, long bytesPerSecond, long intervalMinutes, CorruptionListener listener) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.intervalMinutes = intervalMinutes;
+        this.listener = listener;
+        this.executor = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "chunk-scrubber");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedules periodic scrub passes over a store, starting after one interval.
+     */
+    public void register(SegmentChunkStore store) {
+        executor.scheduleWithFixedDelay(() -> scrub(store), intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Runs a single pass over a store on the calling thread.
+     *
+     * @return The number of corrupted chunks found.
+     */
+    public int scrub(SegmentChunkStore store) {
+        long started = System.nanoTime();
+        long[] totals = new long[2]; // bytes checked, corrupted chunks
+        ByteBuffer[] scratch = new ByteBuffer[1];
+        try {
+            store.forEachChunk((fileId, chunkNumber, location) -> {
+                try {
+                    scratch[0] = store.verify(fileId, chunkNumber, scratch[0]);
+                } catch (ChunkCorruptedException e) {
+                    totals[1]++;
+                    listener.onCorruptChunk(store.getServerId(), fileId, chunkNumber, e.getMessage());
+                }
+                totals[0] += location.getLength();
+                throttle(started, totals[0]);
+            });
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Scrub of server " + store.getServerId() + " aborted.", e);
+        } catch (RuntimeException e) {
+            // Never let one failed pass cancel the periodic schedule.
+            LOGGER.log(Level.SEVERE, "Scrub of server " + store.getServerId() + " failed.", e);
+        }
+        LOGGER.log(Level.INFO, "Scrubbed {0} bytes on server {1}; {2} corrupted chunk(s).",
+                new Object[]{totals[0], store.getServerId(), totals[1]});
+        return (int) totals[1];
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Sleeps just long enough to keep the average read rate of the pass under the budget.
+     */
+    private void throttle(long startedNanos, long bytesChecked) throws IOException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long dueNanos = (long) (bytesChecked * 1_000_000_000d / bytesPerSecond);
+        long aheadNanos = dueNanos - (System.nanoTime() - startedNanos);
+        if (aheadNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Scrub interrupted.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.student.cloudjavafx.storage;
+
+/**
+ * Picks the chunk size of an upload from the size of the file, the number of chunk writes
+ * the active servers take at the same time, and what a chunk write is measured to cost.
+ *
+ * Every chunk write is timed. A decaying least-squares fit of write time against chunk
+ * length splits that cost into a fixed per-chunk overhead (round trips, the metadata row,
+ * scheduling) and a per-byte cost. A chunk is then made at least large enough that the
+ * overhead is no more than a tenth of its write time. Above that it is made large enough to
+ * keep the file under StorageConfig.MAX_CHUNKS_PER_FILE rows, and otherwise small enough to
+ * give every write slot a chunk, so even a mid-sized file is spread over all servers. Sizes
+ * are multiples of 64 KB between StorageConfig.MIN_CHUNK_BYTES and MAX_CHUNK_BYTES, and no
+ * larger than the file needs.
+ *
+ * Until the writes have varied enough in length to separate the two costs, an overhead of
+ * 2 ms and 100 MB/s are assumed. Thread-safe.
+ */
+public class ChunkSizePolicy {
+
+    private static final int ALIGNMENT = 64 * 1024;
+    private static final double MAX_OVERHEAD_SHARE = 0.1;
+    // Weight of the past per sample, so the fit follows the servers as conditions change.
+    private static final double DECAY = 0.98;
+    private static final double DEFAULT_OVERHEAD_NANOS = 2_000_000;
+    private static final double DEFAULT_NANOS_PER_BYTE = 1e9 / (100 * 1024 * 1024);
+    // Lengths must spread at least this much (standard deviation, in bytes) before the fit is used.
+    private static final double MIN_LENGTH_SPREAD = 64 * 1024;
+
+    private final int minChunkBytes;
+    private final int maxChunkBytes;
+    private final long maxChunksPerFile;
+    private double weight;
+    private double sumLength;
+    private double sumNanos;
+    private double sumLengthSquared;
+    private double sumLengthNanos;
+
+    public ChunkSizePolicy(int minChunkBytes, int maxChunkBytes, long maxChunksPerFile) {
+        this.minChunkBytes = Math.max(ALIGNMENT, alignUp(minChunkBytes));
+        this.maxChunkBytes = Math.max(this.minChunkBytes, alignUp(maxChunkBytes));
+        this.maxChunksPerFile = Math.max(1, maxChunksPerFile);
+    }
+
+    /**
+     * Creates a policy with the bounds configured in StorageConfig.
+     */
+    public static ChunkSizePolicy withConfiguredBounds() {
+        return new ChunkSizePolicy(StorageConfig.MIN_CHUNK_BYTES, StorageConfig.MAX_CHUNK_BYTES,
+                                   StorageConfig.MAX_CHUNKS_PER_FILE);
+    }
+
+    /**
+     * Records how long writing a chunk took.
+     *
+     * @param length The number of bytes written.
+     * @param nanos The time until the write was acknowledged.
+     */
+    public synchronized void recordWrite(int length, long nanos) {
+        weight = weight * DECAY + 1;
+        sumLength = sumLength * DECAY + length;
+        sumNanos = sumNanos * DECAY + nanos;
+        sumLengthSquared = sumLengthSquared * DECAY + (double) length * length;
+        sumLengthNanos = sumLengthNanos * DECAY + (double) length * nanos;
+    }
+
+    /**
+     * @return The measured fixed cost of a chunk write, in nanoseconds.
+     */
+    public synchronized double getOverheadNanos() {
+        double[] fit = fit();
+        return fit == null ? DEFAULT_OVERHEAD_NANOS : fit[0];
+    }
+
+    /**
+     * @return The measured cost of a chunk write per byte, in nanoseconds.
+     */
+    public synchronized double getNanosPerByte() {
+        double[] fit = fit();
+        return fit == null ? DEFAULT_NANOS_PER_BYTE : fit[1];
+    }
+
+    /**
+     * Chooses the chunk size for a file.
+     *
+     * @param fileSize The declared size of the file in bytes.
+     * @param writeSlots The number of chunk writes the active servers take at the same time.
+     * @return The chunk size in bytes.
+     */
+    public int chooseChunkSize(long fileSize, int writeSlots) {
+        double overhead;
+        double nanosPerByte;
+        synchronized (this) {
+            double[] fit = fit();
+            overhead = fit == null ? DEFAULT_OVERHEAD_NANOS : fit[0];
+            nanosPerByte = fit == null ? DEFAULT_NANOS_PER_BYTE : fit[1];
+        }
+        long size = Math.min(maxChunkBytes, ceilDiv(fileSize, Math.max(1, writeSlots)));
+        size = Math.max(size, ceilDiv(fileSize, maxChunksPerFile));
+        // The overhead is at most MAX_OVERHEAD_SHARE of a write once transferring takes 9 times as long.
+        size = Math.max(size, (long) Math.ceil(overhead / nanosPerByte * (1 - MAX_OVERHEAD_SHARE) / MAX_OVERHEAD_SHARE));
+        size = Math.min(size, alignUp(Math.max(1, fileSize)));
+        return (int) Math.max(minChunkBytes, Math.min(maxChunkBytes, alignUp(size)));
+    }
+
+    /**
+     * @return {overhead in nanoseconds, nanoseconds per byte}, or null while the lengths seen
+     *         are too alike to tell the two apart or the fit makes no sense.
+     */
+    private double[] fit() {
+        if (weight < 2) {
+            return null;
+        }
+        double meanLength = sumLength / weight;
+        double meanNanos = sumNanos / weight;
+        double lengthVariance = sumLengthSquared / weight - meanLength * meanLength;
+        if (lengthVariance < MIN_LENGTH_SPREAD * MIN_LENGTH_SPREAD) {
+            return null;
+        }
+        double nanosPerByte = (sumLengthNanos / weight - meanLength * meanNanos) / lengthVariance;
+        double overhead = meanNanos - nanosPerByte * meanLength;
+        if (nanosPerByte <= 0 || overhead < 0) {
+            return null;
+        }
+        return new double[]{overhead, nanosPerByte};
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    private static long alignUp(long bytes) {
+        return ceilDiv(bytes, ALIGNMENT) * ALIGNMENT;
+    }
+
+    private static int alignUp(int bytes) {
+        return (int) Math.min(Integer.MAX_VALUE / ALIGNMENT * ALIGNMENT, alignUp((long) bytes));
+    }
+}
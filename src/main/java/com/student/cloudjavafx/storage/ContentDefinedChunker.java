@@ -0,0 +1,200 @@
+package com.student.cloudjavafx.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream into content-defined chunks with FastCDC. A gear hash rolls over the bytes
+ * and a chunk ends where the hash's top bits are all zero, so boundaries follow the content
+ * instead of the offset: inserting or deleting bytes only moves the boundaries around the
+ * edit, and every chunk after the next boundary is the same as in the old version and
+ * deduplicates against it.
+ *
+ * As in FastCDC, no boundary is looked for in the first minSize bytes of a chunk, a mask with
+ * two more bits than the average needs is used up to avgSize and one with two fewer bits
+ * beyond it, so chunk sizes cluster around avgSize; a chunk is cut at maxSize regardless. The
+ * hash costs a shift, an add and a table lookup per byte, and the first minSize bytes of every
+ * chunk are not hashed at all.
+ *
+ * The gear table is generated from a fixed seed. Changing the seed or the sizes moves every
+ * boundary and defeats deduplication against the chunks stored before. Not thread-safe.
+ */
+public class ContentDefinedChunker {
+
+    // Package-private for the tests, which check cutPoint against a plain one-byte gear loop.
+    static final long[] GEAR = gearTable(0x6A09E667F3BCC908L);
+    // GEAR shifted left once, for the first of the two bytes hashed per step.
+    private static final long[] GEAR_SHIFTED = shiftedGearTable();
+
+    private final InputStream in;
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long strictMask;
+    private final long looseMask;
+    private final long strictMaskShifted;
+    private final long looseMaskShifted;
+    private final byte[] buffer;
+    private int start;
+    private int end;
+    private boolean eof;
+
+    /**
+     * @param in The stream to split.
+     * @param minSize The smallest chunk, except for the last one.
+     * @param avgSize The size chunks cluster around; rounded down to a power of two.
+     * @param maxSize The largest chunk.
+     */
+    public ContentDefinedChunker(InputStream in, int minSize, int avgSize, int maxSize) {
+        if (minSize < 64 || avgSize < minSize || maxSize < avgSize) {
+            throw new IllegalArgumentException("Content-defined chunk sizes must satisfy 64 <= min <= avg <= max, got "
+                    + minSize + "/" + avgSize + "/" + maxSize);
+        }
+        int bits = Integer.numberOfTrailingZeros(Integer.highestOneBit(avgSize));
+        this.in = in;
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        this.strictMask = topBits(bits + 2);
+        this.looseMask = topBits(Math.max(1, bits - 2));
+        this.strictMaskShifted = strictMask << 1;
+        this.looseMaskShifted = looseMask << 1;
+        this.buffer = new byte[2 * maxSize];
+    }
+
+    /**
+     * Creates a chunker with the sizes configured in StorageConfig.
+     */
+    public static ContentDefinedChunker withConfiguredSizes(InputStream in) {
+        return new ContentDefinedChunker(in, StorageConfig.CDC_MIN_CHUNK_BYTES, StorageConfig.CDC_AVG_CHUNK_BYTES,
+                                         StorageConfig.CDC_MAX_CHUNK_BYTES);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Reads the next chunk.
+     *
+     * @param target Receives the chunk; must hold at least getMaxSize() bytes.
+     * @return The length of the chunk, or 0 at the end of the stream.
+     * @throws IOException If the stream cannot be read.
+     */
+    public int nextChunk(byte[] target) throws IOException {
+        fill();
+        int available = end - start;
+        if (available == 0) {
+            return 0;
+        }
+        int length = cutPoint(buffer, start, available);
+        System.arraycopy(buffer, start, target, 0, length);
+        start += length;
+        return length;
+    }
+
+    /**
+     * Finds where the chunk starting at offset ends. Boundaries only depend on the content as
+     * long as length is at least maxSize, which fill ensures until the end of the stream.
+     *
+     * The hash advances two bytes per step, as in FastCDC 2020: after the first byte the hash
+     * is held shifted left once, which the shifted table and masks account for. The masks
+     * leave bit 63 out, so the shifted check tests exactly the bits a one-byte step would.
+     *
+     * @return The length of the chunk.
+     */
+    int cutPoint(byte[] data, int offset, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int normal = offset + Math.min(avgSize, length);
+        int limit = offset + Math.min(maxSize, length);
+        long hash = 0;
+        int i = offset + minSize;
+        for (; i + 1 < normal; i += 2) {
+            hash = (hash << 2) + GEAR_SHIFTED[data[i] & 0xFF];
+            if ((hash & strictMaskShifted) == 0) {
+                return i + 1 - offset;
+            }
+            hash += GEAR[data[i + 1] & 0xFF];
+            if ((hash & strictMask) == 0) {
+                return i + 2 - offset;
+            }
+        }
+        if (i < normal) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & strictMask) == 0) {
+                return i + 1 - offset;
+            }
+            i++;
+        }
+        for (; i + 1 < limit; i += 2) {
+            hash = (hash << 2) + GEAR_SHIFTED[data[i] & 0xFF];
+            if ((hash & looseMaskShifted) == 0) {
+                return i + 1 - offset;
+            }
+            hash += GEAR[data[i + 1] & 0xFF];
+            if ((hash & looseMask) == 0) {
+                return i + 2 - offset;
+            }
+        }
+        if (i < limit) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & looseMask) == 0) {
+                return i + 1 - offset;
+            }
+        }
+        return limit - offset;
+    }
+
+    /**
+     * Tops the buffer up until it holds a whole maximum-size chunk or the stream is exhausted.
+     */
+    private void fill() throws IOException {
+        if (eof || end - start >= maxSize) {
+            return;
+        }
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buffer.length) {
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                eof = true;
+                return;
+            }
+            end += read;
+        }
+    }
+
+    /**
+     * The hash is shifted left once per byte, so its top bits depend on the most bytes. Bit 63
+     * is left out so that a mask shifted left once still covers all of its bits.
+     */
+    private static long topBits(int count) {
+        return (-1L << (64 - count)) >>> 1;
+    }
+
+    /**
+     * Fills the gear table with SplitMix64, so it is the same on every JVM.
+     */
+    private static long[] gearTable(long seed) {
+        long[] table = new long[256];
+        long state = seed;
+        for (int i = 0; i < table.length; i++) {
+            long z = (state += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+
+    private static long[] shiftedGearTable() {
+        long[] table = new long[GEAR.length];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = GEAR[i] << 1;
+        }
+        return table;
+    }
+}
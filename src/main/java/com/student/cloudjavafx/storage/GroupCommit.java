@@ -0,0 +1,125 @@
+package com.student.cloudjavafx.storage;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes appended records durable with as few fsyncs as possible.
+ * Every writer registers its record once it is appended and then waits until it is durable.
+ * The first waiter that finds no force in progress becomes the leader of the next group: it
+ * waits until the group has MAX_BATCH records or the oldest of them has waited for the maximum
+ * latency, then issues a single force() that covers every record registered so far.
+ */
+final class GroupCommit {
+
+    /**
+     * Forces everything written so far to stable storage.
+     */
+    interface Syncer {
+        void sync() throws IOException;
+    }
+
+    private final long maxLatencyNanos;
+    private final int maxBatch;
+    private final Syncer syncer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private long appended;
+    private long durable;
+    private boolean syncing;
+    private long syncs;
+
+    /**
+     * @param maxLatencyNanos How long a record may wait for others to share its sync.
+     * @param maxBatch Number of waiting records that triggers a sync right away.
+     * @param syncer Issues the actual sync.
+     */
+    GroupCommit(long maxLatencyNanos, int maxBatch, Syncer syncer) {
+        this.maxLatencyNanos = maxLatencyNanos;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.syncer = syncer;
+    }
+
+    /**
+     * Registers a record that has just been appended.
+     *
+     * @return The ticket to pass to {@link #awaitDurable}.
+     */
+    long register() {
+        lock.lock();
+        try {
+            long ticket = ++appended;
+            if (appended - durable >= maxBatch) {
+                changed.signalAll();
+            }
+            return ticket;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the record with the given ticket is durable, syncing on behalf of the
+     * whole group if this thread ends up leading it.
+     *
+     * @throws IOException If the sync fails or the thread is interrupted.
+     */
+    void awaitDurable(long ticket) throws IOException {
+        awaitDurable(ticket, maxLatencyNanos);
+    }
+
+    /**
+     * Makes the record with the given ticket durable without waiting for other writers, for a
+     * caller that has already batched its own records.
+     *
+     * @throws IOException If the sync fails or the thread is interrupted.
+     */
+    void syncNow(long ticket) throws IOException {
+        awaitDurable(ticket, 0);
+    }
+
+    private void awaitDurable(long ticket, long latencyNanos) throws IOException {
+        long deadline = System.nanoTime() + latencyNanos;
+        lock.lock();
+        try {
+            while (durable < ticket) {
+                long remaining = deadline - System.nanoTime();
+                if (!syncing && (appended - durable >= maxBatch || remaining <= 0)) {
+                    long target = appended;
+                    syncing = true;
+                    lock.unlock();
+                    try {
+                        syncer.sync();
+                    } finally {
+                        lock.lock();
+                        syncing = false;
+                        changed.signalAll();
+                    }
+                    durable = Math.max(durable, target);
+                    syncs++;
+                } else if (syncing || remaining > 0) {
+                    changed.await(syncing ? maxLatencyNanos : remaining, TimeUnit.NANOSECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a group commit.", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return How many syncs have been issued, for comparison with the number of records.
+     */
+    long getSyncCount() {
+        lock.lock();
+        try {
+            return syncs;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
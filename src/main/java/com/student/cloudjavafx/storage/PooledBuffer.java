@@ -0,0 +1,105 @@
+package com.student.cloudjavafx.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted chunk buffer, usually taken from a {@link BufferPool}. Whoever acquires
+ * it holds the first reference; every further holder, such as a replica write still in flight,
+ * takes its own with {@link #retain()} and gives it up with {@link #release()}. When the last
+ * reference is released the buffer goes back to its pool, so nobody may touch its bytes after
+ * releasing. A buffer that is never released is simply garbage-collected.
+ */
+public final class PooledBuffer {
+
+    private final BufferPool pool;
+    private final ByteBuffer raw;
+    private ByteBuffer view;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    PooledBuffer(BufferPool pool, ByteBuffer raw, int length) {
+        this.pool = pool;
+        this.raw = raw;
+        this.view = raw.duplicate().clear().limit(length).slice();
+    }
+
+    /**
+     * Wraps a buffer that does not belong to a pool, for code that passes pooled and other
+     * buffers the same way. Releasing it returns nothing anywhere.
+     *
+     * @param buffer The bytes between its position and limit are the contents.
+     */
+    public static PooledBuffer wrap(ByteBuffer buffer) {
+        return new PooledBuffer(null, buffer.slice(), buffer.remaining());
+    }
+
+    /**
+     * @return A view of the contents with its own position and limit.
+     */
+    public ByteBuffer buffer() {
+        return view.duplicate();
+    }
+
+    /**
+     * @return The backing array of a heap buffer; the contents start at index 0.
+     * @throws UnsupportedOperationException If the buffer is direct or wrapped read-only.
+     */
+    public byte[] array() {
+        if (view.arrayOffset() != 0) {
+            throw new UnsupportedOperationException("Wrapped buffer does not start at the beginning of its array.");
+        }
+        return view.array();
+    }
+
+    /**
+     * @return The number of bytes of the contents.
+     */
+    public int length() {
+        return view.limit();
+    }
+
+    /**
+     * Shortens the contents, e.g. once it is known how much of the buffer was filled. Only the
+     * sole holder may do this, before sharing the buffer.
+     */
+    public PooledBuffer truncate(int length) {
+        if (length < 0 || length > view.limit()) {
+            throw new IllegalArgumentException("Cannot truncate a buffer of " + view.limit() + " bytes to " + length + ".");
+        }
+        view = view.duplicate().clear().limit(length).slice();
+        return this;
+    }
+
+    /**
+     * Takes another reference.
+     *
+     * @return This buffer.
+     * @throws IllegalStateException If the buffer has already been released.
+     */
+    public PooledBuffer retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer was already released.");
+            }
+        } while (!references.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Gives up a reference; the last one returns the buffer to its pool.
+     *
+     * @throws IllegalStateException If the buffer has already been released.
+     */
+    public void release() {
+        int count = references.decrementAndGet();
+        if (count == 0) {
+            if (pool != null) {
+                pool.recycle(raw);
+            }
+        } else if (count < 0) {
+            throw new IllegalStateException("Buffer was released more often than retained.");
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.student.cloudjavafx.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An InputStream over a file fetched in parts (a chunk, or a stripe of chunks), several of
+ * which are fetched at the same time. Parts are handed out strictly in order: parts that
+ * arrive early wait in a reorder buffer of at most the current window, so the stream can be
+ * read as soon as its first part is in while later ones are still being fetched.
+ *
+ * The window adapts to what the servers deliver. Every window's worth of parts, the delivered
+ * throughput and the mean part latency are compared with the previous window: while the
+ * reader had to wait for parts and throughput grew by at least 10%, the window grows by half;
+ * when the latency rose by half without a matching throughput gain, the servers are saturated
+ * and it shrinks by a quarter. It also shrinks while it is more than twice what the delivered
+ * rate needs at the lowest latency seen, so a reader slower than the servers, which never
+ * waits, keeps the window and the memory it holds small.
+ *
+ * A part's buffers are released as soon as the reader has moved past it, so pooled buffers
+ * are back in their pool while the download is still running.
+ *
+ * Not thread-safe; one reader at a time.
+ */
+public class PrefetchingInputStream extends InputStream {
+
+    private static final int MIN_WINDOW = 1;
+    private static final double THROUGHPUT_GAIN = 1.1;
+    private static final double LATENCY_RISE = 1.5;
+    // Markers left in a fetch's slot; compared by identity.
+    private static final List<PooledBuffer> FAILED = new ArrayList<>(0);
+    private static final List<PooledBuffer> CLOSED = new ArrayList<>(0);
+
+    private final Iterator<Callable<List<PooledBuffer>>> parts;
+    private final ExecutorService executor;
+    private final int maxWindow;
+    private final Deque<Fetch> inFlight = new ArrayDeque<>();
+    private int window;
+    private int nextPart;
+    private Iterator<ByteBuffer> currentPart = Collections.emptyIterator();
+    private ByteBuffer current;
+    // The buffers of the part handed out last, released when the reader moves on.
+    private List<PooledBuffer> held = Collections.emptyList();
+    private boolean closed;
+
+    // Measurements of the current window's worth of parts.
+    private long epochStarted = System.nanoTime();
+    private long epochBytes;
+    private long epochLatencyNanos;
+    private int epochParts;
+    private int epochStalls;
+    private double lastThroughput;
+    private double lastLatencyNanos;
+    private long minLatencyNanos = Long.MAX_VALUE;
+
+    /**
+     * @param parts The parts of the file in order; a part yields its data, whose references pass
+     *              to this stream, or null if it could not be fetched.
+     * @param executor Runs the fetches.
+     * @param initialWindow Number of parts fetched at the same time at first.
+     * @param maxWindow Most parts fetched, or held fetched, at the same time.
+     */
+    public PrefetchingInputStream(List<Callable<List<PooledBuffer>>> parts, ExecutorService executor,
+                                  int initialWindow, int maxWindow) {
+        this.parts = parts.iterator();
+        this.executor = executor;
+        this.maxWindow = Math.max(MIN_WINDOW, maxWindow);
+        this.window = Math.max(MIN_WINDOW, Math.min(initialWindow, this.maxWindow));
+    }
+
+    /**
+     * @return The number of parts currently fetched at the same time.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Takes the next part whole, for readers that write buffers rather than bytes. Must not be
+     * mixed with the read methods.
+     *
+     * @return The buffers of the next part, valid until the next call or close, or null at the
+     *         end of the file.
+     * @throws IOException If the part could not be fetched.
+     */
+    public List<ByteBuffer> nextPart() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed.");
+        }
+        releaseHeld();
+        fill();
+        Fetch head = inFlight.poll();
+        if (head == null) {
+            return null;
+        }
+        int number = nextPart++;
+        if (!head.future.isDone()) {
+            epochStalls++;
+        }
+        long latencyNanos = await(head.future);
+        List<PooledBuffer> pooled = head.slot.getAndSet(CLOSED);
+        Part part = new Part(pooled == FAILED ? null : pooled, latencyNanos);
+        if (part.data == null) {
+            close();
+            throw new IOException("Part " + number + " of the file could not be fetched.");
+        }
+        held = part.pooled;
+        adapt(part);
+        fill();
+        return part.data;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ByteBuffer buffer = nextBuffer();
+        return buffer == null ? -1 : buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = nextBuffer();
+        if (buffer == null) {
+            return -1;
+        }
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(target, offset, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+
+    /**
+     * Cancels the fetches still in flight and releases the buffers of the parts fetched. A
+     * fetch that finishes afterwards releases its buffers itself.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        releaseHeld();
+        for (Fetch fetch : inFlight) {
+            fetch.future.cancel(true);
+            release(fetch.slot.getAndSet(CLOSED));
+        }
+        inFlight.clear();
+    }
+
+    private ByteBuffer nextBuffer() throws IOException {
+        while (current == null || !current.hasRemaining()) {
+            if (!currentPart.hasNext()) {
+                List<ByteBuffer> data = nextPart();
+                if (data == null) {
+                    return null;
+                }
+                currentPart = data.iterator();
+                continue;
+            }
+            current = currentPart.next().duplicate();
+        }
+        return current;
+    }
+
+    /**
+     * Starts fetches until the window is full.
+     */
+    private void fill() {
+        while (inFlight.size() < window && parts.hasNext()) {
+            Callable<List<PooledBuffer>> part = parts.next();
+            Fetch fetch = new Fetch();
+            fetch.future = executor.submit(() -> {
+                long started = System.nanoTime();
+                List<PooledBuffer> data = part.call();
+                if (!fetch.slot.compareAndSet(null, data == null ? FAILED : data)) {
+                    // Closed meanwhile; nobody will take this part any more.
+                    release(data);
+                }
+                return System.nanoTime() - started;
+            });
+            inFlight.add(fetch);
+        }
+    }
+
+    private void releaseHeld() {
+        current = null;
+        currentPart = Collections.emptyIterator();
+        release(held);
+        held = Collections.emptyList();
+    }
+
+    private static void release(List<PooledBuffer> buffers) {
+        if (buffers != null) {
+            for (PooledBuffer buffer : buffers) {
+                buffer.release();
+            }
+        }
+    }
+
+    private void adapt(Part part) {
+        for (ByteBuffer buffer : part.data) {
+            epochBytes += buffer.remaining();
+        }
+        epochLatencyNanos += part.latencyNanos;
+        minLatencyNanos = Math.min(minLatencyNanos, part.latencyNanos);
+        if (++epochParts < window) {
+            return;
+        }
+        long now = System.nanoTime();
+        long elapsed = Math.max(1, now - epochStarted);
+        double throughput = epochBytes / (double) elapsed;
+        double latency = epochLatencyNanos / (double) epochParts;
+        // By Little's law, parts per nanosecond times the unloaded latency is the window the
+        // current rate needs; much more than that only queues up at the servers or the reader.
+        double needed = epochParts / (double) elapsed * minLatencyNanos;
+        if (epochStalls > 0 && throughput >= lastThroughput * THROUGHPUT_GAIN) {
+            window = Math.min(maxWindow, window + Math.max(1, window / 2));
+        } else if (window > 2 * needed + 1 || (lastLatencyNanos > 0 && latency > lastLatencyNanos * LATENCY_RISE
+                && throughput < lastThroughput * THROUGHPUT_GAIN)) {
+            window = Math.max(MIN_WINDOW, window - Math.max(1, window / 4));
+        }
+        lastThroughput = throughput;
+        lastLatencyNanos = latency;
+        epochStarted = now;
+        epochBytes = 0;
+        epochLatencyNanos = 0;
+        epochParts = 0;
+        epochStalls = 0;
+    }
+
+    /**
+     * @return How long the fetch took.
+     */
+    private long await(Future<Long> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IOException("Interrupted while fetching chunks.", e);
+        } catch (ExecutionException e) {
+            close();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Fetching a chunk failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * A part being fetched. Its buffers are handed over through the slot rather than as the
+     * future's result, which a FutureTask drops when it is cancelled after computing it: of
+     * the fetch filling the slot and close() marking it CLOSED, whichever comes second
+     * releases them.
+     */
+    private static final class Fetch {
+        private final AtomicReference<List<PooledBuffer>> slot = new AtomicReference<>();
+        private Future<Long> future;
+    }
+
+    /**
+     * A fetched part and how long fetching it took.
+     */
+    private static final class Part {
+        private final List<PooledBuffer> pooled;
+        private final List<ByteBuffer> data;
+        private final long latencyNanos;
+
+        private Part(List<PooledBuffer> pooled, long latencyNanos) {
+            this.pooled = pooled;
+            this.latencyNanos = latencyNanos;
+            if (pooled == null) {
+                this.data = null;
+            } else {
+                this.data = new ArrayList<>(pooled.size());
+                for (PooledBuffer buffer : pooled) {
+                    data.add(buffer.buffer());
+                }
+            }
+        }
+    }
+}
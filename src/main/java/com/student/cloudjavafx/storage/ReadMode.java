@@ -0,0 +1,16 @@
+package com.student.cloudjavafx.storage;
+
+/**
+ * Selects how chunk bytes are handed out by the read path.
+ */
+public enum ReadMode {
+    /** Copy the chunk into a new heap array (the original behaviour). */
+    HEAP,
+    /** Read the chunk into a direct buffer, keeping it off the Java heap. */
+    DIRECT,
+    /**
+     * Return a read-only slice of the memory-mapped segment file; no copy at all. Chunks not
+     * yet in a sealed segment are read as with DIRECT.
+     */
+    MAPPED
+}
@@ -0,0 +1,231 @@
+package com.student.cloudjavafx.storage;
+
+import java.util.Arrays;
+
+/**
+ * Systematic Reed–Solomon erasure code over GF(2^8).
+ * A stripe of k equally sized data shards is extended with m parity shards so that the
+ * data can be rebuilt from any k of the k + m shards. Parity rows form a Cauchy matrix,
+ * which keeps every k x k submatrix of [I; C] invertible without a search.
+ *
+ * Field arithmetic is table driven: a full 256 x 256 product table (64 KB) turns the inner
+ * loops into one lookup and one XOR per byte. Instances are immutable and thread-safe.
+ */
+public class ReedSolomon {
+
+    private static final int FIELD_SIZE = 256;
+    private static final int PRIMITIVE_POLYNOMIAL = 0x11D;
+
+    private static final byte[] EXP = new byte[FIELD_SIZE * 2];
+    private static final int[] LOG = new int[FIELD_SIZE];
+    private static final byte[][] MUL = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= FIELD_SIZE) {
+                x ^= PRIMITIVE_POLYNOMIAL;
+            }
+        }
+        // Doubled so that EXP[LOG[a] + LOG[b]] never needs a modulo.
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+        }
+        for (int a = 1; a < FIELD_SIZE; a++) {
+            for (int b = 1; b < FIELD_SIZE; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    // parityShards x dataShards coefficients of the parity rows.
+    private final byte[][] parityMatrix;
+
+    /**
+     * @param dataShards Number of data shards per stripe (k).
+     * @param parityShards Number of parity shards per stripe (m).
+     */
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > FIELD_SIZE) {
+            throw new IllegalArgumentException("Unsupported erasure scheme " + dataShards + "+" + parityShards + ".");
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.parityMatrix = new byte[parityShards][dataShards];
+        for (int row = 0; row < parityShards; row++) {
+            for (int col = 0; col < dataShards; col++) {
+                parityMatrix[row][col] = inverse((dataShards + row) ^ col);
+            }
+        }
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    public int getTotalShards() {
+        return dataShards + parityShards;
+    }
+
+    /**
+     * Computes the parity shards of a stripe.
+     *
+     * @param shards k + m arrays of at least shardSize bytes; the first k hold the data,
+     *               the last m are overwritten with parity.
+     * @param shardSize Number of bytes per shard.
+     */
+    public void encodeParity(byte[][] shards, int shardSize) {
+        checkShards(shards, shardSize);
+        byte[][] data = new byte[dataShards][];
+        System.arraycopy(shards, 0, data, 0, dataShards);
+        for (int row = 0; row < parityShards; row++) {
+            combine(parityMatrix[row], data, shards[dataShards + row], shardSize);
+        }
+    }
+
+    /**
+     * Rebuilds the missing data shards of a stripe from any k present shards.
+     * Missing parity shards are not recomputed.
+     *
+     * @param shards k + m entries; missing ones may be null and are allocated as needed.
+     * @param present Which entries of shards hold valid bytes.
+     * @param shardSize Number of bytes per shard.
+     * @throws IllegalArgumentException If fewer than k shards are present.
+     */
+    public void reconstructData(byte[][] shards, boolean[] present, int shardSize) {
+        int[] sources = new int[dataShards];
+        int found = 0;
+        boolean dataComplete = true;
+        for (int i = 0; i < getTotalShards() && found < dataShards; i++) {
+            if (present[i]) {
+                sources[found++] = i;
+            } else if (i < dataShards) {
+                dataComplete = false;
+            }
+        }
+        if (found < dataShards) {
+            throw new IllegalArgumentException("Only " + found + " of the " + dataShards + " shards needed are present.");
+        }
+        if (dataComplete) {
+            return;
+        }
+
+        // Rows of the encoding matrix that produced the chosen shards, inverted, map them back to the data.
+        byte[][] matrix = new byte[dataShards][];
+        byte[][] input = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            int source = sources[i];
+            if (source < dataShards) {
+                matrix[i] = new byte[dataShards];
+                matrix[i][source] = 1;
+            } else {
+                matrix[i] = parityMatrix[source - dataShards].clone();
+            }
+            input[i] = shards[source];
+        }
+        byte[][] decode = invert(matrix);
+
+        for (int i = 0; i < dataShards; i++) {
+            if (!present[i]) {
+                if (shards[i] == null || shards[i].length < shardSize) {
+                    shards[i] = new byte[shardSize];
+                }
+                combine(decode[i], input, shards[i], shardSize);
+            }
+        }
+    }
+
+    /**
+     * output = sum over j of coefficients[j] * inputs[j], byte by byte.
+     */
+    private static void combine(byte[] coefficients, byte[][] inputs, byte[] output, int length) {
+        Arrays.fill(output, 0, length, (byte) 0);
+        for (int j = 0; j < inputs.length; j++) {
+            int coefficient = coefficients[j] & 0xFF;
+            if (coefficient == 0) {
+                continue;
+            }
+            byte[] in = inputs[j];
+            if (coefficient == 1) {
+                for (int i = 0; i < length; i++) {
+                    output[i] ^= in[i];
+                }
+            } else {
+                byte[] table = MUL[coefficient];
+                for (int i = 0; i < length; i++) {
+                    output[i] ^= table[in[i] & 0xFF];
+                }
+            }
+        }
+    }
+
+    /**
+     * Gauss–Jordan inversion over GF(2^8).
+     */
+    private static byte[][] invert(byte[][] matrix) {
+        int n = matrix.length;
+        byte[][] result = new byte[n][n];
+        for (int i = 0; i < n; i++) {
+            result[i][i] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && matrix[pivot][col] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IllegalStateException("Decoding matrix is singular.");
+            }
+            swap(matrix, col, pivot);
+            swap(result, col, pivot);
+
+            byte[] scale = MUL[inverse(matrix[col][col] & 0xFF) & 0xFF];
+            for (int j = 0; j < n; j++) {
+                matrix[col][j] = scale[matrix[col][j] & 0xFF];
+                result[col][j] = scale[result[col][j] & 0xFF];
+            }
+            for (int row = 0; row < n; row++) {
+                int factor = matrix[row][col] & 0xFF;
+                if (row == col || factor == 0) {
+                    continue;
+                }
+                byte[] times = MUL[factor];
+                for (int j = 0; j < n; j++) {
+                    matrix[row][j] ^= times[matrix[col][j] & 0xFF];
+                    result[row][j] ^= times[result[col][j] & 0xFF];
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void swap(byte[][] rows, int a, int b) {
+        byte[] tmp = rows[a];
+        rows[a] = rows[b];
+        rows[b] = tmp;
+    }
+
+    private static byte inverse(int value) {
+        return EXP[FIELD_SIZE - 1 - LOG[value]];
+    }
+
+    private void checkShards(byte[][] shards, int shardSize) {
+        if (shards.length != getTotalShards()) {
+            throw new IllegalArgumentException("Expected " + getTotalShards() + " shards, got " + shards.length + ".");
+        }
+        for (byte[] shard : shards) {
+            if (shard == null || shard.length < shardSize) {
+                throw new IllegalArgumentException("Every shard needs at least " + shardSize + " bytes.");
+            }
+        }
+    }
+}
@@ -0,0 +1,981 @@
+package com.student.cloudjavafx.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Disk-backed chunk storage for a single file server.
+ * Chunks are appended to large segment files through a FileChannel and located through a
+ * compact in-memory {@link ChunkIndex}. Deletes are appended as tombstone records, so the index
+ * can be rebuilt on startup simply by replaying the segments in order.
+ *
+ * Segment layout: an 8 byte header (magic, version) followed by records of the form
+ * [magic:int][type:byte][fileId:int][chunkNumber:int][length:int][crc32c:int][payload:length bytes].
+ * The CRC32C covers the payload and is checked on every read when StorageConfig.VERIFY_READS is set.
+ *
+ * With StorageConfig.SYNC_WRITES a write returns only once its record has been forced to disk.
+ * Concurrent writers share their force() through a {@link GroupCommit}, so durability costs one
+ * sync per group rather than one per chunk; after a crash the segments are the log that is replayed.
+ *
+ * Every segment tracks how many of its bytes still belong to live records. Sealed segments
+ * that have become mostly dead are rewritten by {@link #compact}, driven by a SegmentCompactor.
+ */
+public class SegmentChunkStore implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(SegmentChunkStore.class.getName());
+
+    static final int SEGMENT_MAGIC = 0x434A4653; // "CJFS"
+    static final int SEGMENT_VERSION = 2;
+    static final int SEGMENT_HEADER_SIZE = 8;
+
+    static final int RECORD_MAGIC = 0x43484E4B; // "CHNK"
+    static final int RECORD_HEADER_SIZE = 21;
+    static final byte TYPE_PUT = 1;
+    static final byte TYPE_DELETE = 2;
+    static final byte TYPE_DELETE_FILE = 3;
+
+    private static final int MIN_FILTER_CAPACITY = 64 * 1024;
+
+    private final int serverId;
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    // (fileId, chunkNumber) -> location of the live record
+    private final ChunkIndex index = new ChunkIndex();
+    // Chunks held, for clients that want to skip requests for chunks the server lacks.
+    // Replaced under writeLock once deletes have made it too stale or adds too full.
+    private volatile ChunkBloomFilter chunkFilter;
+    private int filterRemovals;
+    // Guards appends to the active segment and every index mutation, so the index always
+    // reflects the order in which records were written to disk.
+    private final Object writeLock = new Object();
+    // Read without the lock by group commit leaders, so they sync the segment the last write went to.
+    private volatile Segment activeSegment;
+    private final GroupCommit groupCommit;
+
+    private SegmentChunkStore(int serverId, Path directory, long maxSegmentBytes) {
+        this.serverId = serverId;
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.groupCommit = StorageConfig.SYNC_WRITES
+                ? new GroupCommit(TimeUnit.MICROSECONDS.toNanos(StorageConfig.GROUP_COMMIT_MAX_LATENCY_MICROS),
+                                  StorageConfig.GROUP_COMMIT_MAX_BATCH, this::syncActiveSegment)
+                : null;
+    }
+
+    /**
+     * Opens (or creates) the store in the given directory and rebuilds the offset index
+     * from the segment files found there.
+     *
+     * @param serverId The ID of the file server that owns the store.
+     * @param directory The directory holding the segment files.
+     * @param maxSegmentBytes The size after which the active segment is sealed.
+     * @return The opened store.
+     * @throws IOException If the directory or a segment cannot be read.
+     */
+    public static SegmentChunkStore open(int serverId, Path directory, long maxSegmentBytes) throws IOException {
+        Files.createDirectories(directory);
+        SegmentChunkStore store = new SegmentChunkStore(serverId, directory, maxSegmentBytes);
+        store.recover();
+        store.rebuildFilter();
+        return store;
+    }
+
+    /**
+     * Appends a chunk to the active segment, computing its CRC32C first.
+     *
+     * @see #put(int, int, ByteBuffer, int)
+     */
+    public void put(int fileId, int chunkNumber, ByteBuffer data) throws IOException {
+        put(fileId, chunkNumber, data, ChunkChecksums.crc32c(data));
+    }
+
+    /**
+     * Appends a chunk to the active segment and points the index at it.
+     * A chunk that already exists is superseded by the new record.
+     *
+     * @param fileId The ID of the file.
+     * @param chunkNumber The number of the chunk.
+     * @param data The chunk content; its remaining bytes are written.
+     * @param crc The CRC32C of the content, as computed by the caller while producing it.
+     * @throws IOException If the record cannot be written.
+     */
+    public void put(int fileId, int chunkNumber, ByteBuffer data, int crc) throws IOException {
+        awaitDurable(putDeferred(fileId, chunkNumber, data, crc));
+    }
+
+    /**
+     * Appends a chunk like {@link #put(int, int, ByteBuffer, int)} but returns before the record
+     * is durable. The chunk is readable right away; pass the returned ticket to
+     * {@link #awaitDurable} or {@link #syncNow} before acknowledging the write.
+     *
+     * @return The durability ticket of the record, or 0 if writes are not synced.
+     * @throws IOException If the record cannot be written.
+     */
+    public long putDeferred(int fileId, int chunkNumber, ByteBuffer data, int crc) throws IOException {
+        int length = data.remaining();
+        synchronized (writeLock) {
+            Segment segment = segmentFor(RECORD_HEADER_SIZE + length);
+            long offset = segment.append(recordHeader(TYPE_PUT, fileId, chunkNumber, length, crc), data);
+            indexPut(fileId, chunkNumber, new ChunkLocation(segment.id, offset + RECORD_HEADER_SIZE, length, crc));
+            return groupCommit != null ? groupCommit.register() : 0;
+        }
+    }
+
+    /**
+     * Waits until the record with the given ticket, and every record before it, is durable,
+     * sharing the sync with concurrent writers.
+     *
+     * @throws IOException If the sync fails.
+     */
+    public void awaitDurable(long ticket) throws IOException {
+        if (groupCommit != null && ticket > 0) {
+            groupCommit.awaitDurable(ticket);
+        }
+    }
+
+    /**
+     * Makes the record with the given ticket, and every record before it, durable right away.
+     *
+     * @throws IOException If the sync fails.
+     */
+    public void syncNow(long ticket) throws IOException {
+        if (groupCommit != null && ticket > 0) {
+            groupCommit.syncNow(ticket);
+        }
+    }
+
+    /**
+     * Reads a chunk into a new heap array.
+     *
+     * @param fileId The ID of the file.
+     * @param chunkNumber The number of the chunk.
+     * @return The chunk content, or null if the store does not hold the chunk.
+     * @throws IOException If the segment cannot be read.
+     */
+    public byte[] get(int fileId, int chunkNumber) throws IOException {
+        ChunkIndex.LocationHolder location = new ChunkIndex.LocationHolder();
+        if (!index.locate(fileId, chunkNumber, location)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        segmentOf(location.segmentId).readFully(buffer, location.offset);
+        verifyIfEnabled(fileId, chunkNumber, location.crc, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Returns a chunk as a read-only ByteBuffer without copying it onto the heap where possible.
+     * In MAPPED mode the buffer is a slice of a memory-mapped segment, in DIRECT mode the chunk
+     * is read into a direct buffer, and in HEAP mode this behaves like {@link #get}. Only sealed
+     * segments are mapped; a chunk of the active segment is read as in DIRECT mode.
+     *
+     * @param fileId The ID of the file.
+     * @param chunkNumber The number of the chunk.
+     * @param mode How the chunk should be materialised.
+     * @return A read-only buffer positioned at the first chunk byte, or null if not found.
+     * @throws IOException If the segment cannot be read or mapped.
+     */
+    public ByteBuffer read(int fileId, int chunkNumber, ReadMode mode) throws IOException {
+        // Never escapes, so unlike a ChunkLocation it needs no allocation once the JIT inlines the lookup.
+        ChunkIndex.LocationHolder location = new ChunkIndex.LocationHolder();
+        if (!index.locate(fileId, chunkNumber, location)) {
+            return null;
+        }
+        ByteBuffer buffer = materialise(segmentOf(location.segmentId), location.offset, location.length, mode);
+        verifyIfEnabled(fileId, chunkNumber, location.crc, buffer);
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns part of a chunk, materialised like {@link #read}. With StorageConfig.VERIFY_READS
+     * a range of at least StorageConfig.RANGE_VERIFY_PERCENT of the chunk is sliced from the
+     * whole chunk after checking its CRC32C; a smaller one is read on its own, unchecked, and
+     * its integrity left to the scrubber.
+     *
+     * @param offset The first byte of the chunk to return.
+     * @param length The number of bytes to return; clipped to the end of the chunk.
+     * @return A read-only buffer over the range, or null if the store does not hold the chunk.
+     * @throws ChunkCorruptedException If the chunk was checked and does not match its checksum.
+     * @throws IOException If the segment cannot be read, or offset lies outside the chunk.
+     */
+    public ByteBuffer readRange(int fileId, int chunkNumber, int offset, int length, ReadMode mode) throws IOException {
+        ChunkIndex.LocationHolder location = new ChunkIndex.LocationHolder();
+        if (!index.locate(fileId, chunkNumber, location)) {
+            return null;
+        }
+        if (offset < 0 || offset > location.length || length < 0) {
+            throw new IOException(String.format("Range %d+%d is outside chunk %d of file %d (%d bytes).",
+                                                offset, length, chunkNumber, fileId, location.length));
+        }
+        length = Math.min(length, location.length - offset);
+        Segment segment = segmentOf(location.segmentId);
+        if (StorageConfig.VERIFY_READS
+                && (long) length * 100 >= (long) location.length * StorageConfig.RANGE_VERIFY_PERCENT) {
+            ByteBuffer chunk = materialise(segment, location.offset, location.length, mode);
+            checkCrc(fileId, chunkNumber, location.crc, chunk);
+            return chunk.slice(offset, length).asReadOnlyBuffer();
+        }
+        return materialise(segment, location.offset + offset, length, mode).asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads bytes of a segment into a buffer of the given mode, positioned at the first byte.
+     */
+    private static ByteBuffer materialise(Segment segment, long position, int length, ReadMode mode) throws IOException {
+        if (mode == ReadMode.MAPPED && segment.mappable()) {
+            return segment.map(position, length);
+        }
+        ByteBuffer buffer = mode == ReadMode.HEAP ? ByteBuffer.allocate(length) : ByteBuffer.allocateDirect(length);
+        segment.readFully(buffer, position);
+        return buffer;
+    }
+
+    /**
+     * Re-reads a chunk from disk and checks it against its recorded CRC32C.
+     * Used by the background scrubber, so it reads through a caller-owned scratch buffer
+     * instead of mapping the segment.
+     *
+     * @param scratch A reusable buffer; a larger one is allocated if it is too small.
+     * @return The scratch buffer to reuse for the next call.
+     * @throws ChunkCorruptedException If the chunk does not match its checksum.
+     * @throws IOException If the segment cannot be read.
+     */
+    public ByteBuffer verify(int fileId, int chunkNumber, ByteBuffer scratch) throws IOException {
+        ChunkLocation location = locate(fileId, chunkNumber);
+        if (location == null) {
+            return scratch; // deleted since the scrubber listed it
+        }
+        if (scratch == null || scratch.capacity() < location.getLength()) {
+            scratch = ByteBuffer.allocateDirect(location.getLength());
+        }
+        scratch.clear().limit(location.getLength());
+        segmentOf(location.getSegmentId()).readFully(scratch, location.getOffset());
+        checkCrc(fileId, chunkNumber, location.getCrc(), scratch);
+        return scratch;
+    }
+
+    /**
+     * Calls the visitor for every live chunk. The walk is weakly consistent: chunks written
+     * or deleted while it runs may or may not be visited.
+     */
+    public void forEachChunk(ChunkVisitor visitor) throws IOException {
+        for (int fileId : index.fileIds()) {
+            for (int chunkNumber : index.listChunks(fileId)) {
+                ChunkLocation location = index.get(fileId, chunkNumber);
+                if (location != null) {
+                    visitor.visit(fileId, chunkNumber, location);
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the chunks walked by {@link #forEachChunk}.
+     */
+    public interface ChunkVisitor {
+        void visit(int fileId, int chunkNumber, ChunkLocation location) throws IOException;
+    }
+
+    /**
+     * Sends part of a stored chunk straight from its segment file to a channel, without
+     * copying it through the Java heap. The bytes are not verified; callers that need that
+     * should pass the location's CRC32C on to the receiver.
+     *
+     * @param location The location returned by {@link #locate}.
+     * @param position Offset within the chunk to start at.
+     * @param count Maximum number of bytes to send.
+     * @param target The channel to write to, e.g. a non-blocking socket.
+     * @return The number of bytes written, possibly zero.
+     * @throws IOException If the segment cannot be read or the channel fails.
+     */
+    public long transferTo(ChunkLocation location, long position, long count, WritableByteChannel target) throws IOException {
+        Segment segment = segmentOf(location.getSegmentId());
+        long remaining = Math.min(count, location.getLength() - position);
+        return segment.channel.transferTo(location.getOffset() + position, remaining, target);
+    }
+
+    /**
+     * @return The chunk numbers of every live chunk of a file, in ascending order.
+     */
+    public int[] listChunks(int fileId) {
+        return index.listChunks(fileId);
+    }
+
+    /**
+     * Checks whether the store holds a live copy of a chunk.
+     */
+    public boolean contains(int fileId, int chunkNumber) {
+        return index.contains(fileId, chunkNumber);
+    }
+
+    /**
+     * Returns the Bloom filter of the chunks in the store, for handing to clients. Chunks put
+     * later are added to it; deleted ones stay in it until it is replaced by a rebuild, so
+     * callers wanting current answers should ask this method again rather than keep the filter.
+     */
+    public ChunkBloomFilter getChunkFilter() {
+        return chunkFilter;
+    }
+
+    /**
+     * Removes a single chunk by appending a tombstone for it.
+     *
+     * @return true if the chunk existed, false otherwise.
+     * @throws IOException If the tombstone cannot be written.
+     */
+    public boolean delete(int fileId, int chunkNumber) throws IOException {
+        long ticket;
+        synchronized (writeLock) {
+            if (!index.contains(fileId, chunkNumber)) {
+                return false;
+            }
+            appendTombstone(TYPE_DELETE, fileId, chunkNumber);
+            indexRemove(fileId, chunkNumber);
+            ticket = groupCommit != null ? groupCommit.register() : 0;
+        }
+        awaitDurable(ticket);
+        return true;
+    }
+
+    /**
+     * Removes every chunk of a file with a single tombstone.
+     *
+     * @return true if at least one chunk existed, false otherwise.
+     * @throws IOException If the tombstone cannot be written.
+     */
+    public boolean deleteFile(int fileId) throws IOException {
+        long ticket;
+        synchronized (writeLock) {
+            if (!index.containsFile(fileId)) {
+                return false;
+            }
+            appendTombstone(TYPE_DELETE_FILE, fileId, -1);
+            indexRemoveFile(fileId);
+            ticket = groupCommit != null ? groupCommit.register() : 0;
+        }
+        awaitDurable(ticket);
+        return true;
+    }
+
+    /**
+     * @return How many group commits have forced the segments to disk, or 0 if writes are not synced.
+     */
+    public long getSyncCount() {
+        return groupCommit != null ? groupCommit.getSyncCount() : 0;
+    }
+
+    /**
+     * Returns the number of live chunks held by the store.
+     */
+    public int chunkCount() {
+        return index.size();
+    }
+
+    public int getServerId() {
+        return serverId;
+    }
+
+    /**
+     * @return The ID of the segment new records are appended to, or 0 if the store is closed.
+     */
+    public int getActiveSegmentId() {
+        Segment segment = activeSegment;
+        return segment == null ? 0 : segment.id;
+    }
+
+    /**
+     * @return The bytes of every record the index points to, headers included.
+     */
+    public long getLiveBytes() {
+        long live = 0;
+        for (Segment segment : segments.values()) {
+            live += segment.liveBytes;
+        }
+        return live;
+    }
+
+    /**
+     * Returns the sealed segments whose share of live bytes has fallen below a threshold,
+     * sparsest first. The active segment is never a candidate.
+     *
+     * @param maxLiveRatio Segments with a live ratio below this are returned.
+     * @return The IDs of the segments worth compacting.
+     */
+    public List<Integer> compactionCandidates(double maxLiveRatio) {
+        List<Segment> candidates = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment.sealed && !segment.retired && segment.liveRatio() < maxLiveRatio) {
+                candidates.add(segment);
+            }
+        }
+        candidates.sort((a, b) -> Double.compare(a.liveRatio(), b.liveRatio()));
+        List<Integer> segmentIds = new ArrayList<>(candidates.size());
+        for (Segment segment : candidates) {
+            segmentIds.add(segment.id);
+        }
+        return segmentIds;
+    }
+
+    /**
+     * Rewrites a sealed segment without its dead records. Live chunks are appended to the active
+     * segment one at a time, and the index is switched to each copy under the write lock only if
+     * it still points at the original, so reads and writes carry on throughout. Tombstones are
+     * carried over only while an older segment still holds a record of their file; a file
+     * tombstone whose file has live chunks again is rewritten as one tombstone per chunk it
+     * still hides. Once every copy is
+     * forced to disk the segment is retired; its file stays readable for readers that located a
+     * chunk before the switch until {@link #purgeRetiredSegments} removes it.
+     *
+     * @param segmentId The sealed segment to compact.
+     * @param afterCopy Called after each chunk is copied, e.g. to throttle the compaction.
+     * @return The number of bytes reclaimed, or -1 if the segment cannot be compacted now.
+     * @throws IOException If the segment cannot be read or a copy cannot be written.
+     */
+    public long compact(int segmentId, ChunkVisitor afterCopy) throws IOException {
+        Segment segment = segments.get(segmentId);
+        if (segment == null || !segment.sealed || segment.retired) {
+            return -1;
+        }
+        Set<Segment> written = new HashSet<>();
+        long copied = 0;
+        long size = segment.size;
+        long position = SEGMENT_HEADER_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        ByteBuffer payload = null;
+        while (position < size) {
+            header.clear();
+            if (!segment.tryRead(header, position) || header.getInt(0) != RECORD_MAGIC) {
+                break;
+            }
+            byte type = header.get(4);
+            int fileId = header.getInt(5);
+            int chunkNumber = header.getInt(9);
+            int length = header.getInt(13);
+            int crc = header.getInt(17);
+            long end = position + RECORD_HEADER_SIZE + length;
+            if (length < 0 || end > size) {
+                break;
+            }
+            if (type == TYPE_PUT) {
+                ChunkLocation location = locate(fileId, chunkNumber);
+                if (location != null && location.getSegmentId() == segmentId
+                        && location.getOffset() == position + RECORD_HEADER_SIZE) {
+                    if (payload == null || payload.capacity() < length) {
+                        payload = ByteBuffer.allocateDirect(length);
+                    }
+                    payload.clear().limit(length);
+                    segment.readFully(payload, location.getOffset());
+                    boolean moved = false;
+                    synchronized (writeLock) {
+                        // Overwritten or deleted while the payload was being read: nothing to keep.
+                        if (index.isAt(fileId, chunkNumber, segmentId, location.getOffset())) {
+                            Segment target = segmentFor(RECORD_HEADER_SIZE + length);
+                            long offset = target.append(recordHeader(TYPE_PUT, fileId, chunkNumber, length, crc), payload);
+                            indexPut(fileId, chunkNumber, new ChunkLocation(target.id, offset + RECORD_HEADER_SIZE, length, crc));
+                            written.add(target);
+                            moved = true;
+                        }
+                    }
+                    if (moved) {
+                        copied += RECORD_HEADER_SIZE + length;
+                        afterCopy.visit(fileId, chunkNumber, location);
+                    }
+                }
+            } else {
+                synchronized (writeLock) {
+                    if (!writtenBefore(fileId, segmentId)) {
+                        // No record left for the tombstone to hide.
+                    } else if (type == TYPE_DELETE_FILE && index.containsFile(fileId)) {
+                        // Chunks of the file were written again since, and moving the tombstone
+                        // past them would delete them on the next replay. The rare rescan of the
+                        // older segments happens under the lock, so no chunk is put meanwhile.
+                        for (int hidden : chunksWrittenBefore(fileId, segmentId)) {
+                            if (!index.contains(fileId, hidden)) {
+                                written.add(appendTombstone(TYPE_DELETE, fileId, hidden));
+                                copied += RECORD_HEADER_SIZE;
+                            }
+                        }
+                    } else if (type == TYPE_DELETE_FILE || !index.contains(fileId, chunkNumber)) {
+                        // A deleted chunk that is live again was put after this tombstone and needs no hiding.
+                        written.add(appendTombstone(type, fileId, chunkNumber));
+                        copied += RECORD_HEADER_SIZE;
+                    }
+                }
+            }
+            position = end;
+        }
+        if (position < size) {
+            LOGGER.log(Level.WARNING, "Segment {0} of server {1} is unreadable after offset {2}; not compacting it.",
+                    new Object[]{segmentId, serverId, position});
+            return -1;
+        }
+
+        // The copies must be durable before the only other copy may be deleted.
+        for (Segment target : written) {
+            target.channel.force(false);
+        }
+        synchronized (writeLock) {
+            segment.retired = true;
+            segment.retiredAtMillis = System.currentTimeMillis();
+        }
+        LOGGER.log(Level.INFO, "Compacted segment {0} of server {1}: kept {2} of {3} bytes.",
+                new Object[]{segmentId, serverId, copied, size});
+        return size - copied;
+    }
+
+    /**
+     * Closes and deletes compacted segments that were retired at least the given time ago.
+     * Readers that looked a chunk up before its segment was compacted may still be using the
+     * old file, so it is only removed once they have had time to finish.
+     *
+     * @param graceMillis How long a retired segment stays readable.
+     * @return The number of segment files deleted.
+     * @throws IOException If a segment file cannot be deleted.
+     */
+    public int purgeRetiredSegments(long graceMillis) throws IOException {
+        long now = System.currentTimeMillis();
+        int purged = 0;
+        for (Segment segment : segments.values()) {
+            if (segment.retired && now - segment.retiredAtMillis >= graceMillis) {
+                segments.remove(segment.id);
+                segment.channel.close();
+                Files.deleteIfExists(directory.resolve(segmentFileName(segment.id)));
+                purged++;
+            }
+        }
+        return purged;
+    }
+
+    /**
+     * @return The fraction of a segment's bytes that belong to live records, or -1 if there is no such segment.
+     */
+    public double liveRatio(int segmentId) {
+        Segment segment = segments.get(segmentId);
+        return segment == null ? -1 : segment.liveRatio();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+            segments.clear();
+            activeSegment = null;
+        }
+    }
+
+    private static void verifyIfEnabled(int fileId, int chunkNumber, int expectedCrc, ByteBuffer data)
+            throws ChunkCorruptedException {
+        if (StorageConfig.VERIFY_READS) {
+            checkCrc(fileId, chunkNumber, expectedCrc, data);
+        }
+    }
+
+    private static void checkCrc(int fileId, int chunkNumber, int expectedCrc, ByteBuffer data)
+            throws ChunkCorruptedException {
+        int actual = ChunkChecksums.crc32c(data);
+        if (actual != expectedCrc) {
+            throw new ChunkCorruptedException(fileId, chunkNumber, expectedCrc, actual);
+        }
+    }
+
+    /**
+     * @return Where the live copy of a chunk is stored, or null if the store does not hold it.
+     */
+    public ChunkLocation locate(int fileId, int chunkNumber) {
+        return index.get(fileId, chunkNumber);
+    }
+
+    /**
+     * Forces the active segment. Records in segments sealed since were forced when sealed.
+     */
+    private void syncActiveSegment() throws IOException {
+        Segment segment = activeSegment;
+        if (segment != null) {
+            segment.channel.force(false);
+        }
+    }
+
+    private Segment segmentOf(int segmentId) throws IOException {
+        Segment segment = segments.get(segmentId);
+        if (segment == null) {
+            throw new IOException("Segment " + segmentId + " of server " + serverId + " is closed.");
+        }
+        return segment;
+    }
+
+    /**
+     * Points the index at a new record and moves the superseded record's bytes, if any, from
+     * live to dead. Must hold writeLock (or be replaying).
+     */
+    private void indexPut(int fileId, int chunkNumber, ChunkLocation location) {
+        ChunkLocation previous = index.put(fileId, chunkNumber, location);
+        Segment segment = segments.get(location.getSegmentId());
+        segment.liveBytes += RECORD_HEADER_SIZE + location.getLength();
+        segment.fileIds.add(fileId);
+        if (previous != null) {
+            release(previous);
+        } else if (chunkFilter != null) { // null while replaying
+            chunkFilter.add(fileId, chunkNumber);
+            if (chunkFilter.getAdditions() > chunkFilter.getCapacity()) {
+                rebuildFilter();
+            }
+        }
+    }
+
+    private void indexRemove(int fileId, int chunkNumber) {
+        ChunkLocation removed = index.remove(fileId, chunkNumber);
+        if (removed != null) {
+            release(removed);
+            filterRemoved(1);
+        }
+    }
+
+    private void indexRemoveFile(int fileId) {
+        List<ChunkLocation> removed = index.removeFile(fileId);
+        for (ChunkLocation location : removed) {
+            release(location);
+        }
+        filterRemoved(removed.size());
+    }
+
+    /**
+     * Rebuilds the chunk filter once the keys removed since it was built amount to half its
+     * capacity; until then they only cost false positives.
+     */
+    private void filterRemoved(int count) {
+        filterRemovals += count;
+        if (chunkFilter != null && filterRemovals > chunkFilter.getCapacity() / 2) {
+            rebuildFilter();
+        }
+    }
+
+    /**
+     * Builds a filter of the live chunks with room for as many again. Must hold writeLock (or be opening).
+     */
+    private void rebuildFilter() {
+        ChunkBloomFilter rebuilt = new ChunkBloomFilter(Math.max(MIN_FILTER_CAPACITY, 2 * index.size()));
+        for (int fileId : index.fileIds()) {
+            for (int chunkNumber : index.listChunks(fileId)) {
+                rebuilt.add(fileId, chunkNumber);
+            }
+        }
+        chunkFilter = rebuilt;
+        filterRemovals = 0;
+    }
+
+    private void release(ChunkLocation location) {
+        Segment segment = segments.get(location.getSegmentId());
+        if (segment != null) {
+            segment.liveBytes -= RECORD_HEADER_SIZE + location.getLength();
+        }
+    }
+
+    private Segment appendTombstone(byte type, int fileId, int chunkNumber) throws IOException {
+        Segment segment = segmentFor(RECORD_HEADER_SIZE);
+        segment.append(recordHeader(type, fileId, chunkNumber, 0, 0), ByteBuffer.allocate(0));
+        return segment;
+    }
+
+    /**
+     * @return Whether a segment older than the given one, retired or not, holds a chunk record
+     *         of the file, live or dead. Must hold writeLock.
+     */
+    private boolean writtenBefore(int fileId, int segmentId) {
+        for (Segment segment : segments.values()) {
+            if (segment.id < segmentId && segment.fileIds.contains(fileId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the record headers of the segments older than the given one that hold chunks of
+     * the file. Must hold writeLock.
+     *
+     * @return The numbers of the file's chunks recorded there, live or dead.
+     */
+    private Set<Integer> chunksWrittenBefore(int fileId, int segmentId) throws IOException {
+        Set<Integer> chunkNumbers = new HashSet<>();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        for (Segment segment : segments.values()) {
+            if (segment.id >= segmentId || !segment.fileIds.contains(fileId)) {
+                continue;
+            }
+            long position = SEGMENT_HEADER_SIZE;
+            while (position < segment.size) {
+                header.clear();
+                if (!segment.tryRead(header, position) || header.getInt(0) != RECORD_MAGIC || header.getInt(13) < 0) {
+                    break;
+                }
+                if (header.get(4) == TYPE_PUT && header.getInt(5) == fileId) {
+                    chunkNumbers.add(header.getInt(9));
+                }
+                position += RECORD_HEADER_SIZE + header.getInt(13);
+            }
+        }
+        return chunkNumbers;
+    }
+
+    /**
+     * Returns the segment the next record of the given size goes to, sealing the active
+     * segment first if the record would push it past the size limit. Must hold writeLock.
+     */
+    private Segment segmentFor(int recordSize) throws IOException {
+        if (activeSegment == null) {
+            activeSegment = createSegment(1);
+        } else if (activeSegment.size > SEGMENT_HEADER_SIZE
+                && activeSegment.size + recordSize > maxSegmentBytes) {
+            if (groupCommit != null) {
+                // Writes still waiting for their group commit will only sync the new segment.
+                activeSegment.channel.force(false);
+            }
+            activeSegment.sealed = true;
+            activeSegment = createSegment(activeSegment.id + 1);
+        }
+        return activeSegment;
+    }
+
+    private Segment createSegment(int segmentId) throws IOException {
+        Path path = directory.resolve(segmentFileName(segmentId));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.putInt(SEGMENT_MAGIC).putInt(SEGMENT_VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, SEGMENT_HEADER_SIZE - header.remaining());
+        }
+        Segment segment = new Segment(segmentId, channel, SEGMENT_HEADER_SIZE);
+        segments.put(segmentId, segment);
+        return segment;
+    }
+
+    private static ByteBuffer recordHeader(byte type, int fileId, int chunkNumber, int length, int crc) {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(RECORD_MAGIC).put(type).putInt(fileId).putInt(chunkNumber).putInt(length).putInt(crc).flip();
+        return header;
+    }
+
+    static String segmentFileName(int segmentId) {
+        return String.format("segment-%08d.seg", segmentId);
+    }
+
+    /**
+     * Replays every segment in id order to rebuild the index. A torn record at the tail of
+     * the newest segment (e.g. after a crash mid-write) is truncated away; records of the
+     * newest segment are checked against their CRC32C so a partially written final payload
+     * is caught as well. Older segments were sealed cleanly and are left to the scrubber.
+     */
+    private void recover() throws IOException {
+        List<Integer> segmentIds = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.seg")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segmentIds.add(Integer.parseInt(name.substring(8, name.length() - 4)));
+            }
+        }
+        Collections.sort(segmentIds);
+
+        for (int i = 0; i < segmentIds.size(); i++) {
+            int segmentId = segmentIds.get(i);
+            boolean newest = i == segmentIds.size() - 1;
+            FileChannel channel = FileChannel.open(directory.resolve(segmentFileName(segmentId)),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(segmentId, channel, channel.size());
+            segments.put(segmentId, segment);
+            replay(segment, newest);
+            segment.sealed = !newest;
+            activeSegment = segment;
+        }
+        LOGGER.log(Level.INFO, "Chunk store for server {0} opened with {1} segment(s) and {2} chunk(s).",
+                new Object[]{serverId, segments.size(), chunkCount()});
+    }
+
+    private void replay(Segment segment, boolean newest) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        ByteBuffer payload = null;
+        CRC32C crc = new CRC32C();
+        header.limit(SEGMENT_HEADER_SIZE);
+        if (segment.size < SEGMENT_HEADER_SIZE || !segment.tryRead(header, 0)
+                || header.getInt(0) != SEGMENT_MAGIC || header.getInt(4) != SEGMENT_VERSION) {
+            throw new IOException("Segment " + segment.id + " of server " + serverId + " has an invalid header.");
+        }
+
+        long position = SEGMENT_HEADER_SIZE;
+        while (position < segment.size) {
+            header.clear();
+            if (!segment.tryRead(header, position) || header.getInt(0) != RECORD_MAGIC) {
+                break;
+            }
+            byte type = header.get(4);
+            int fileId = header.getInt(5);
+            int chunkNumber = header.getInt(9);
+            int length = header.getInt(13);
+            int recordCrc = header.getInt(17);
+            long end = position + RECORD_HEADER_SIZE + length;
+            if (length < 0 || end > segment.size) {
+                break;
+            }
+            if (newest && type == TYPE_PUT) {
+                if (payload == null || payload.capacity() < length) {
+                    payload = ByteBuffer.allocateDirect(length);
+                }
+                payload.clear().limit(length);
+                segment.readFully(payload, position + RECORD_HEADER_SIZE);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != recordCrc) {
+                    if (end == segment.size) {
+                        break; // the last write never completed
+                    }
+                    // Followed by intact records, so this is damage rather than a torn write:
+                    // keep the record indexed and let verify-on-read and the scrubber report it.
+                    LOGGER.log(Level.WARNING, "Chunk {0} for file {1} in segment {2} fails its checksum.",
+                            new Object[]{chunkNumber, fileId, segment.id});
+                }
+            }
+            switch (type) {
+                case TYPE_PUT:
+                    indexPut(fileId, chunkNumber, new ChunkLocation(segment.id, position + RECORD_HEADER_SIZE, length, recordCrc));
+                    break;
+                case TYPE_DELETE:
+                    indexRemove(fileId, chunkNumber);
+                    break;
+                case TYPE_DELETE_FILE:
+                    indexRemoveFile(fileId);
+                    break;
+                default:
+                    LOGGER.log(Level.WARNING, "Unknown record type {0} in segment {1}.", new Object[]{type, segment.id});
+            }
+            position = end;
+        }
+
+        if (position < segment.size) {
+            if (newest) {
+                LOGGER.log(Level.WARNING, "Truncating torn tail of segment {0} at offset {1}.",
+                        new Object[]{segment.id, position});
+                segment.channel.truncate(position);
+                segment.size = position;
+            } else {
+                LOGGER.log(Level.WARNING, "Segment {0} is corrupt after offset {1}; remaining records ignored.",
+                        new Object[]{segment.id, position});
+            }
+        }
+    }
+
+    /**
+     * One append-only segment file. The size field is only modified while holding the
+     * store's write lock; readers only access offsets the index already points to.
+     */
+    private static final class Segment {
+        private final int id;
+        private final FileChannel channel;
+        private volatile long size;
+        // Once sealed a segment never changes, so a single mapping of the whole file can be shared.
+        private volatile boolean sealed;
+        private volatile MappedByteBuffer mapping;
+        // Bytes of records the index still points to; tombstones never count.
+        private volatile long liveBytes;
+        // Files with a chunk record in the segment, live or dead, for telling which tombstones
+        // in newer segments still hide something. Only changed under writeLock or while replaying.
+        private final Set<Integer> fileIds = new HashSet<>();
+        // Set once a compaction has moved every live record out; the file is deleted after a grace period.
+        private volatile boolean retired;
+        private volatile long retiredAtMillis;
+
+        private Segment(int id, FileChannel channel, long size) {
+            this.id = id;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        private double liveRatio() {
+            long records = size - SEGMENT_HEADER_SIZE;
+            return records <= 0 ? 1 : (double) liveBytes / records;
+        }
+
+        /**
+         * Writes a record at the end of the segment and returns the offset it starts at.
+         */
+        private long append(ByteBuffer header, ByteBuffer payload) throws IOException {
+            long start = size;
+            long position = start;
+            ByteBuffer[] parts = {header, payload};
+            for (ByteBuffer part : parts) {
+                while (part.hasRemaining()) {
+                    position += channel.write(part, position);
+                }
+            }
+            size = position;
+            return start;
+        }
+
+        /**
+         * @return Whether {@link #map} may be used: the segment is sealed, so one mapping covers
+         *         it for good, and small enough for a single mapping. Mapping the active segment
+         *         would take a new mapping per read, each costing a system call and a TLB
+         *         shootdown when it is unmapped.
+         */
+        private boolean mappable() {
+            return sealed && size <= Integer.MAX_VALUE;
+        }
+
+        /**
+         * Returns a read-only view of a region of a {@link #mappable} segment backed by the
+         * page cache. The segment is mapped once in full, and every read slices that mapping.
+         */
+        private ByteBuffer map(long position, int length) throws IOException {
+            MappedByteBuffer whole = mapping;
+            if (whole == null) {
+                synchronized (this) {
+                    whole = mapping;
+                    if (whole == null) {
+                        whole = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                        mapping = whole;
+                    }
+                }
+            }
+            return whole.slice((int) position, length);
+        }
+
+        private void readFully(ByteBuffer target, long position) throws IOException {
+            if (!tryRead(target, position)) {
+                throw new IOException("Unexpected end of segment " + id + " at offset " + position);
+            }
+            target.flip();
+        }
+
+        private boolean tryRead(ByteBuffer target, long position) throws IOException {
+            while (target.hasRemaining()) {
+                int read = channel.read(target, position);
+                if (read < 0) {
+                    return false;
+                }
+                position += read;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.student.cloudjavafx.storage;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background garbage collector for the chunk stores.
+ * Deleted and overwritten chunks leave dead records behind in the append-only segments; every
+ * pass rewrites the sealed segments whose live ratio has fallen below a threshold, so disk use
+ * stays proportional to the live data. Copying is throttled per store so that compaction does
+ * not compete with uploads and downloads for disk bandwidth.
+ */
+public class SegmentCompactor {
+
+    private static final Logger LOGGER = Logger.getLogger(SegmentCompactor.class.getName());
+
+    /** How long a compacted segment stays readable for readers that located a chunk in it earlier. */
+    static final long RETIRED_GRACE_MILLIS = 60_000;
+
+    private final ScheduledExecutorService executor;
+    private final double maxLiveRatio;
+    private final long bytesPerSecond;
+    private final long intervalMinutes;
+
+    /**
+     * @param threads Number of stores that can be compacted at the same time.
+     * @param maxLiveRatio Sealed segments with a smaller share of live bytes are compacted.
+     * @param bytesPerSecond Copy budget per store.
+     * @param intervalMinutes Pause between two passes over the same store.
+     */
+    public SegmentCompactor(int threads, double maxLiveRatio, long bytesPerSecond, long intervalMinutes) {
+        this.maxLiveRatio = maxLiveRatio;
+        this.bytesPerSecond = bytesPerSecond;
+        this.intervalMinutes = intervalMinutes;
+        this.executor = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "segment-compactor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedules periodic compaction passes over a store, starting after one interval.
+     */
+    public void register(SegmentChunkStore store) {
+        executor.scheduleWithFixedDelay(() -> compact(store), intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Runs a single pass over a store on the calling thread: deletes segments retired by
+     * earlier passes and compacts every segment that is sparse enough, sparsest first.
+     *
+     * @return The number of bytes reclaimed.
+     */
+    public long compact(SegmentChunkStore store) {
+        long started = System.nanoTime();
+        long[] copied = new long[1];
+        long reclaimed = 0;
+        try {
+            store.purgeRetiredSegments(RETIRED_GRACE_MILLIS);
+            for (int segmentId : store.compactionCandidates(maxLiveRatio)) {
+                long segmentReclaimed = store.compact(segmentId, (fileId, chunkNumber, location) -> {
+                    copied[0] += location.getLength();
+                    throttle(started, copied[0]);
+                });
+                if (segmentReclaimed > 0) {
+                    reclaimed += segmentReclaimed;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Compaction of server " + store.getServerId() + " aborted.", e);
+        } catch (RuntimeException e) {
+            // Never let one failed pass cancel the periodic schedule.
+            LOGGER.log(Level.SEVERE, "Compaction of server " + store.getServerId() + " failed.", e);
+        }
+        LOGGER.log(Level.INFO, "Compaction of server {0} copied {1} bytes and reclaimed {2} bytes.",
+                new Object[]{store.getServerId(), copied[0], reclaimed});
+        return reclaimed;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Sleeps just long enough to keep the average copy rate of the pass under the budget.
+     */
+    private void throttle(long startedNanos, long bytesCopied) throws IOException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long dueNanos = (long) (bytesCopied * 1_000_000_000d / bytesPerSecond);
+        long aheadNanos = dueNanos - (System.nanoTime() - startedNanos);
+        if (aheadNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Compaction interrupted.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.student.cloudjavafx.storage;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Central place for the tunables of the chunk storage engine.
+ * Every value can be overridden with a JVM system property (e.g. -Dcloudjavafx.storage.dir=/data)
+ * so the same build can run as the desktop client or inside one of the fileserver containers.
+ */
+public final class StorageConfig {
+
+    /**
+     * Root directory under which every server keeps its own segment directory.
+     * Falls back to the STORAGE_DIR environment variable and then to ~/.cloudjavafx/chunks.
+     */
+    public static final Path STORAGE_ROOT = Paths.get(System.getProperty("cloudjavafx.storage.dir",
+            System.getenv().getOrDefault("STORAGE_DIR",
+                    Paths.get(System.getProperty("user.home"), ".cloudjavafx", "chunks").toString())));
+
+    /** A segment file is sealed and a new one started once it grows past this size. */
+    public static final long SEGMENT_MAX_BYTES = Long.getLong("cloudjavafx.storage.segmentBytes", 256L * 1024 * 1024);
+
+    /** How retrieveChunk hands out chunk bytes: MAPPED (default), DIRECT or HEAP. */
+    public static final ReadMode READ_MODE = ReadMode.valueOf(
+            System.getProperty("cloudjavafx.storage.readMode", ReadMode.MAPPED.name()).toUpperCase());
+
+    /**
+     * When enabled, chunks are deduplicated by their SHA-256 digest: identical chunks are
+     * stored once and shared through the chunk_contents table.
+     */
+    public static final boolean CONTENT_ADDRESSED = Boolean.getBoolean("cloudjavafx.storage.dedup");
+
+    /**
+     * Split uploads into content-defined chunks (FastCDC) instead of fixed 1 MB ones, so an
+     * edit only changes the chunks around it and the rest of the file still deduplicates.
+     * Pays off together with CONTENT_ADDRESSED. Enable with -Dcloudjavafx.storage.cdc=true.
+     */
+    public static final boolean CONTENT_DEFINED_CHUNKING = Boolean.getBoolean("cloudjavafx.storage.cdc");
+
+    /** Smallest content-defined chunk in bytes; only the last chunk of a file may be smaller. */
+    public static final int CDC_MIN_CHUNK_BYTES = Integer.getInteger("cloudjavafx.storage.cdcMinBytes", 256 * 1024);
+
+    /** Size content-defined chunks cluster around, in bytes; rounded down to a power of two. */
+    public static final int CDC_AVG_CHUNK_BYTES = Integer.getInteger("cloudjavafx.storage.cdcAvgBytes", 1024 * 1024);
+
+    /** Largest content-defined chunk in bytes. */
+    public static final int CDC_MAX_CHUNK_BYTES = Integer.getInteger("cloudjavafx.storage.cdcMaxBytes", 4 * 1024 * 1024);
+
+    /**
+     * Choose the chunk size of every replicated upload from the file size, the active servers
+     * and the measured per-chunk overhead (see ChunkSizePolicy) instead of using fixed 1 MB
+     * chunks. The size is recorded per file. Disable with -Dcloudjavafx.storage.adaptiveChunks=false.
+     */
+    public static final boolean ADAPTIVE_CHUNK_SIZE = Boolean.parseBoolean(
+            System.getProperty("cloudjavafx.storage.adaptiveChunks", "true"));
+
+    /** Smallest chunk size the adaptive policy chooses, in bytes. */
+    public static final int MIN_CHUNK_BYTES = Integer.getInteger("cloudjavafx.storage.minChunkBytes", 64 * 1024);
+
+    /** Largest chunk size the adaptive policy chooses, in bytes. */
+    public static final int MAX_CHUNK_BYTES = Integer.getInteger("cloudjavafx.storage.maxChunkBytes", 8 * 1024 * 1024);
+
+    /** Number of chunks the adaptive policy keeps a file under while MAX_CHUNK_BYTES allows. */
+    public static final long MAX_CHUNKS_PER_FILE = Long.getLong("cloudjavafx.storage.maxChunksPerFile", 8192);
+
+    /**
+     * Compress chunks that benefit from it before storing them. Chunks that sample as
+     * incompressible are stored raw. Enable with -Dcloudjavafx.storage.compression=true.
+     */
+    public static final boolean COMPRESSION = Boolean.parseBoolean(
+            System.getProperty("cloudjavafx.storage.compression", "false"));
+
+    /**
+     * Byte budget of the client-side chunk cache in front of the file servers, held in
+     * direct memory (0 disables it). Set with -Dcloudjavafx.cache.bytes.
+     */
+    public static final long CACHE_BYTES = Long.getLong("cloudjavafx.cache.bytes", 256L * 1024 * 1024);
+
+    /**
+     * How often the chunk cache's hit, miss and eviction counts are logged, in seconds
+     * (0 disables the report). Set with -Dcloudjavafx.cache.statsIntervalSeconds.
+     */
+    public static final long CACHE_STATS_INTERVAL_SECONDS = Long.getLong("cloudjavafx.cache.statsIntervalSeconds", 300);
+
+    /**
+     * Most bytes of idle chunk buffers the shared BufferPool keeps for reuse by uploads and
+     * downloads (0 disables reuse). Set with -Dcloudjavafx.storage.bufferPoolBytes.
+     */
+    public static final long BUFFER_POOL_BYTES = Long.getLong("cloudjavafx.storage.bufferPoolBytes", 128L * 1024 * 1024);
+
+    /** Number of file servers that receive a copy of every chunk. */
+    public static final int REPLICATION_FACTOR = Math.max(1, Integer.getInteger("cloudjavafx.storage.replicas", 1));
+
+    /**
+     * Number of replicas that must acknowledge before a chunk write succeeds; defaults to a
+     * majority of REPLICATION_FACTOR. The other replicas finish in the background.
+     */
+    public static final int WRITE_QUORUM = Math.min(REPLICATION_FACTOR,
+            Math.max(1, Integer.getInteger("cloudjavafx.storage.writeQuorum", REPLICATION_FACTOR / 2 + 1)));
+
+    /**
+     * Number of chunk buffers an upload fills ahead of the writes; this many chunks of one
+     * upload are compressed and written in parallel.
+     */
+    public static final int UPLOAD_BUFFERS = Math.max(1, Integer.getInteger("cloudjavafx.storage.uploadBuffers", 16));
+
+    /** Number of chunk writes that may be in flight to a single file server at the same time. */
+    public static final int SERVER_WRITE_CONCURRENCY = Math.max(1, Integer.getInteger("cloudjavafx.storage.serverWriteConcurrency", 4));
+
+    /**
+     * Most chunks a download fetches, or holds fetched, at the same time, counted in 1 MB
+     * chunks: files with larger chunks get a proportionally smaller window. The window adapts to
+     * the servers below this; it bounds the memory a download holds regardless of the file size.
+     */
+    public static final int DOWNLOAD_WINDOW_CHUNKS = Math.max(1, Integer.getInteger("cloudjavafx.storage.downloadWindowChunks", 16));
+
+    /**
+     * Erasure-coding scheme for large files as "k+m", e.g. -Dcloudjavafx.storage.erasure=2+2:
+     * every stripe of k data chunks gets m parity chunks on k + m distinct servers, and any k of
+     * them rebuild the stripe. Unset (the default) disables erasure coding.
+     */
+    public static final int ERASURE_DATA_SHARDS = erasureShards(0);
+    public static final int ERASURE_PARITY_SHARDS = erasureShards(1);
+
+    /** Files smaller than this are replicated instead of erasure-coded. */
+    public static final long ERASURE_MIN_FILE_BYTES = Long.getLong("cloudjavafx.storage.erasureMinBytes", 64L * 1024 * 1024);
+
+    /**
+     * Network addresses of standalone chunk servers, as "serverId=host:port" pairs separated by
+     * commas, e.g. -Dcloudjavafx.fileservers=1=localhost:9101,2=localhost:9102. Falls back to the
+     * FILE_SERVERS environment variable. Servers not listed use the in-process simulation.
+     */
+    public static final Map<Integer, InetSocketAddress> FILE_SERVERS = parseFileServers(
+            System.getProperty("cloudjavafx.fileservers", System.getenv().getOrDefault("FILE_SERVERS", "")));
+
+    /**
+     * Force every chunk write to disk before acknowledging it. Concurrent writes share a single
+     * fsync through group commit. Disable with -Dcloudjavafx.storage.syncWrites=false.
+     */
+    public static final boolean SYNC_WRITES = Boolean.parseBoolean(
+            System.getProperty("cloudjavafx.storage.syncWrites", "true"));
+
+    /** Longest a write waits for others to join its group commit, in microseconds. */
+    public static final long GROUP_COMMIT_MAX_LATENCY_MICROS = Long.getLong("cloudjavafx.storage.groupCommitMaxLatencyMicros", 2000);
+
+    /** Number of waiting writes that triggers a group commit without waiting out the latency. */
+    public static final int GROUP_COMMIT_MAX_BATCH = Integer.getInteger("cloudjavafx.storage.groupCommitMaxBatch", 64);
+
+    /**
+     * Threads of a chunk server that store, delete and inflate chunks, so that the selector
+     * thread only moves bytes between sockets and files. Concurrent stores share group commits.
+     */
+    public static final int SERVER_WORKER_THREADS = Math.max(1, Integer.getInteger("cloudjavafx.storage.serverWorkerThreads", 16));
+
+    /** Verify the CRC32C of every chunk as it is read. Disable with -Dcloudjavafx.storage.verifyReads=false. */
+    public static final boolean VERIFY_READS = Boolean.parseBoolean(
+            System.getProperty("cloudjavafx.storage.verifyReads", "true"));
+
+    /**
+     * A range read covering at least this share of its chunk, in percent, reads the whole chunk
+     * and checks it against its CRC32C when VERIFY_READS is set; smaller ranges are read on their
+     * own and left to the scrubber. 0 checks every range.
+     */
+    public static final int RANGE_VERIFY_PERCENT = Math.max(0, Integer.getInteger("cloudjavafx.storage.rangeVerifyPercent", 25));
+
+    /** Maximum read rate of the background scrubber per server, in bytes per second (0 disables it). */
+    public static final long SCRUB_BYTES_PER_SECOND = Long.getLong("cloudjavafx.storage.scrubBytesPerSecond", 32L * 1024 * 1024);
+
+    /** Pause between two full scrub passes over a server's chunks, in minutes. */
+    public static final long SCRUB_INTERVAL_MINUTES = Long.getLong("cloudjavafx.storage.scrubIntervalMinutes", 24 * 60);
+
+    /**
+     * Sealed segments whose share of live bytes falls below this ratio are rewritten by the
+     * background compactor (0 disables compaction).
+     */
+    public static final double COMPACTION_LIVE_RATIO = Double.parseDouble(
+            System.getProperty("cloudjavafx.storage.compactionLiveRatio", "0.5"));
+
+    /** Maximum copy rate of the background compactor per server, in bytes per second (0 means unthrottled). */
+    public static final long COMPACTION_BYTES_PER_SECOND = Long.getLong("cloudjavafx.storage.compactionBytesPerSecond", 16L * 1024 * 1024);
+
+    /** Pause between two compaction passes over a server's segments, in minutes. */
+    public static final long COMPACTION_INTERVAL_MINUTES = Long.getLong("cloudjavafx.storage.compactionIntervalMinutes", 10);
+
+    /**
+     * Live bytes a server's fast tier (its usual segment directory) may hold; beyond that the
+     * least read chunks are moved, compressed, to the bulk tier. 0 disables tiering.
+     */
+    public static final long FAST_TIER_BYTES = Long.getLong("cloudjavafx.storage.fastTierBytes", 4L * 1024 * 1024 * 1024);
+
+    /** Root directory of the bulk tier, e.g. on a larger, slower disk. Defaults to STORAGE_ROOT/bulk. */
+    public static final Path BULK_TIER_ROOT = Paths.get(System.getProperty("cloudjavafx.storage.bulkDir",
+            STORAGE_ROOT.resolve("bulk").toString()));
+
+    /** Decayed read count at which a chunk in the bulk tier is moved back to the fast tier. */
+    public static final int TIERING_PROMOTE_READS = Integer.getInteger("cloudjavafx.storage.tieringPromoteReads", 4);
+
+    /** Maximum move rate of the tiering mover per server, in bytes per second (0 means unthrottled). */
+    public static final long TIERING_BYTES_PER_SECOND = Long.getLong("cloudjavafx.storage.tieringBytesPerSecond", 16L * 1024 * 1024);
+
+    /** Pause between two tiering passes over a server, in minutes; read counts halve every pass. */
+    public static final long TIERING_INTERVAL_MINUTES = Long.getLong("cloudjavafx.storage.tieringIntervalMinutes", 15);
+
+    /**
+     * How long a client trusts its copy of a network server's chunk filter before fetching it
+     * again, in seconds. Chunks this client stores are added to its copy right away.
+     */
+    public static final long CHUNK_FILTER_REFRESH_SECONDS = Long.getLong("cloudjavafx.storage.chunkFilterRefreshSeconds", 30);
+
+    /**
+     * How often the client checks whether chunks need to move because servers joined or left
+     * or became unevenly loaded, in seconds (0 disables rebalancing). Every client checks, but
+     * only the one holding the rebalancer's database lease moves chunks.
+     */
+    public static final long REBALANCE_INTERVAL_SECONDS = Long.getLong("cloudjavafx.storage.rebalanceIntervalSeconds", 60);
+
+    /**
+     * How long a client holds the rebalancer's database lease after taking or renewing it, in
+     * seconds. The holder renews it on every check and during long passes; if the holder exits,
+     * another client takes over once the lease has expired.
+     */
+    public static final long REBALANCE_LEASE_SECONDS = Math.max(1, Long.getLong("cloudjavafx.storage.rebalanceLeaseSeconds", 300));
+
+    /** Number of chunks the rebalancer copies at the same time. */
+    public static final int REBALANCE_THREADS = Math.max(1, Integer.getInteger("cloudjavafx.storage.rebalanceThreads", 4));
+
+    /** Maximum copy rate of the rebalancer over all servers, in bytes per second (0 means unthrottled). */
+    public static final long REBALANCE_BYTES_PER_SECOND = Long.getLong("cloudjavafx.storage.rebalanceBytesPerSecond", 32L * 1024 * 1024);
+
+    /**
+     * How long the old copy of a moved chunk is kept, in seconds, so that downloads which read
+     * the chunk's location just before the move can still fetch it.
+     */
+    public static final long REBALANCE_RETIRE_SECONDS = Long.getLong("cloudjavafx.storage.rebalanceRetireSeconds", 120);
+
+    /**
+     * Number of file_chunks rows an upload sends to the database in one JDBC batch. An upload
+     * commits its rows, and its files row, in a single transaction once it is complete.
+     */
+    public static final int METADATA_BATCH_ROWS = Math.max(1, Integer.getInteger("cloudjavafx.storage.metadataBatchRows", 256));
+
+    /**
+     * Number of file_chunks rows a resumable upload writes between two commits of its session;
+     * after a failure at most the chunks since the last commit are sent again. On SQLite, where
+     * a transaction holds the database's only write lock, every upload commits this often.
+     */
+    public static final int METADATA_COMMIT_ROWS = Math.max(1, Integer.getInteger("cloudjavafx.storage.metadataCommitRows", 64));
+
+    /**
+     * How long a resumable upload session is kept without receiving a chunk, in hours, before it
+     * is deleted together with the chunks it stored (0 keeps sessions until they complete).
+     */
+    public static final long UPLOAD_SESSION_EXPIRY_HOURS = Long.getLong("cloudjavafx.storage.uploadSessionExpiryHours", 24);
+
+    private StorageConfig() {
+    }
+
+    /**
+     * Returns the directory that holds the segment files of a single file server.
+     *
+     * @param serverId The ID of the file server.
+     * @return The segment directory for that server.
+     */
+    public static Path serverDirectory(int serverId) {
+        return STORAGE_ROOT.resolve("server-" + serverId);
+    }
+
+    /**
+     * Returns the directory that holds the bulk tier segment files of a single file server.
+     */
+    public static Path bulkDirectory(int serverId) {
+        return BULK_TIER_ROOT.resolve("server-" + serverId);
+    }
+
+    private static Map<Integer, InetSocketAddress> parseFileServers(String spec) {
+        Map<Integer, InetSocketAddress> servers = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            String[] idAndAddress = entry.trim().split("=", 2);
+            int colon = idAndAddress.length == 2 ? idAndAddress[1].lastIndexOf(':') : -1;
+            if (colon < 0) {
+                throw new IllegalArgumentException("File server entries must look like id=host:port, got " + entry);
+            }
+            servers.put(Integer.parseInt(idAndAddress[0].trim()),
+                        InetSocketAddress.createUnresolved(idAndAddress[1].substring(0, colon).trim(),
+                                                           Integer.parseInt(idAndAddress[1].substring(colon + 1).trim())));
+        }
+        return Collections.unmodifiableMap(servers);
+    }
+
+    private static int erasureShards(int part) {
+        String scheme = System.getProperty("cloudjavafx.storage.erasure");
+        if (scheme == null || scheme.isBlank()) {
+            return 0;
+        }
+        String[] parts = scheme.trim().split("\\+");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("cloudjavafx.storage.erasure must look like k+m, got " + scheme);
+        }
+        return Integer.parseInt(parts[part].trim());
+    }
+}
@@ -0,0 +1,339 @@
+package com.student.cloudjavafx.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+
+/**
+ * The chunk storage of one file server, split into two tiers: a fast tier holding chunks as
+ * they were uploaded (the server's usual segment directory, ideally on an SSD) and a bulk tier
+ * holding cold chunks Deflate-compressed, under StorageConfig.BULK_TIER_ROOT. Every read is
+ * counted in an {@link AccessTracker}; a {@link TieringMover} moves the coldest chunks to the
+ * bulk tier once the fast tier outgrows its budget, and moves chunks that turn hot again back.
+ * Callers see a single store: writes always go to the fast tier and reads look in both.
+ *
+ * A chunk is always in at least one tier while it moves: it is written to the target tier
+ * before it is deleted from the source. Moves, writes and deletes of the same chunk are
+ * serialized by a striped lock, so a move never resurrects a deleted chunk or overwrites a
+ * newer one. Reads take no lock and look in the fast tier, then the bulk tier, then the fast
+ * tier again, which covers a chunk being promoted between the first two looks.
+ *
+ * Bulk record layout: [codec:byte][payload as produced by ChunkCompressor, or raw].
+ */
+public class TieredChunkStore implements Closeable {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final SegmentChunkStore fast;
+    private final SegmentChunkStore bulk; // null when tiering is disabled
+    private final AccessTracker tracker;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private volatile TieringMover mover;
+
+    public TieredChunkStore(SegmentChunkStore fast, SegmentChunkStore bulk) {
+        this.fast = fast;
+        this.bulk = bulk;
+        this.tracker = new AccessTracker(Math.max(fast.chunkCount(), 64 * 1024));
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Opens both tiers of a server; the bulk tier only if StorageConfig.FAST_TIER_BYTES enables tiering.
+     *
+     * @param serverId The ID of the file server.
+     * @return The opened store.
+     * @throws IOException If a tier cannot be opened.
+     */
+    public static TieredChunkStore open(int serverId) throws IOException {
+        SegmentChunkStore fast = SegmentChunkStore.open(serverId, StorageConfig.serverDirectory(serverId),
+                                                        StorageConfig.SEGMENT_MAX_BYTES);
+        SegmentChunkStore bulk = null;
+        if (StorageConfig.FAST_TIER_BYTES > 0) {
+            bulk = SegmentChunkStore.open(serverId, StorageConfig.bulkDirectory(serverId), StorageConfig.SEGMENT_MAX_BYTES);
+        }
+        return new TieredChunkStore(fast, bulk);
+    }
+
+    public SegmentChunkStore getFastTier() {
+        return fast;
+    }
+
+    /**
+     * @return The bulk tier, or null if tiering is disabled.
+     */
+    public SegmentChunkStore getBulkTier() {
+        return bulk;
+    }
+
+    public AccessTracker getAccessTracker() {
+        return tracker;
+    }
+
+    public int getServerId() {
+        return fast.getServerId();
+    }
+
+    /**
+     * Lets reads of hot bulk chunks ask the mover to promote them.
+     */
+    void setMover(TieringMover mover) {
+        this.mover = mover;
+    }
+
+    /**
+     * Appends a chunk to the fast tier and drops any copy in the bulk tier.
+     *
+     * @return A ticket for {@link SegmentChunkStore#awaitDurable} on the fast tier.
+     * @see SegmentChunkStore#putDeferred
+     */
+    public long putDeferred(int fileId, int chunkNumber, ByteBuffer data, int crc) throws IOException {
+        ReentrantLock lock = lockFor(fileId, chunkNumber);
+        lock.lock();
+        try {
+            long ticket = fast.putDeferred(fileId, chunkNumber, data, crc);
+            if (bulk != null && bulk.contains(fileId, chunkNumber)) {
+                bulk.delete(fileId, chunkNumber);
+            }
+            return ticket;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores a chunk durably, like {@link SegmentChunkStore#put(int, int, ByteBuffer, int)}.
+     */
+    public void put(int fileId, int chunkNumber, ByteBuffer data, int crc) throws IOException {
+        fast.awaitDurable(putDeferred(fileId, chunkNumber, data, crc));
+    }
+
+    /**
+     * Reads a chunk from whichever tier holds it and counts the read.
+     *
+     * @param mode How the fast tier hands out its bytes; bulk chunks are inflated onto the heap.
+     * @return The chunk, or null if neither tier holds it.
+     * @throws IOException If the chunk cannot be read or fails its CRC32C check.
+     */
+    public ByteBuffer read(int fileId, int chunkNumber, ReadMode mode) throws IOException {
+        tracker.record(fileId, chunkNumber);
+        ByteBuffer data = fast.read(fileId, chunkNumber, mode);
+        if (data == null && bulk != null) {
+            data = readBulk(fileId, chunkNumber);
+            if (data == null) {
+                data = fast.read(fileId, chunkNumber, mode);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Reads part of a chunk from whichever tier holds it and counts the read. A bulk chunk is
+     * inflated whole and then sliced.
+     *
+     * @see SegmentChunkStore#readRange
+     */
+    public ByteBuffer readRange(int fileId, int chunkNumber, int offset, int length, ReadMode mode) throws IOException {
+        tracker.record(fileId, chunkNumber);
+        ByteBuffer range = fast.readRange(fileId, chunkNumber, offset, length, mode);
+        if (range == null && bulk != null) {
+            ByteBuffer data = readBulk(fileId, chunkNumber);
+            if (data != null) {
+                if (offset < 0 || offset > data.remaining()) {
+                    return null;
+                }
+                return data.slice(data.position() + offset, Math.min(length, data.remaining() - offset));
+            }
+            range = fast.readRange(fileId, chunkNumber, offset, length, mode);
+        }
+        return range;
+    }
+
+    /**
+     * Counts a read served straight from the fast tier's files, e.g. by a zero-copy transfer.
+     */
+    public void recordAccess(int fileId, int chunkNumber) {
+        tracker.record(fileId, chunkNumber);
+    }
+
+    /**
+     * Reads and inflates a chunk from the bulk tier, asking for its promotion if it has become hot.
+     *
+     * @return The uncompressed chunk on the heap, or null if the bulk tier does not hold it.
+     */
+    public ByteBuffer readBulk(int fileId, int chunkNumber) throws IOException {
+        if (bulk == null) {
+            return null;
+        }
+        ByteBuffer stored = bulk.read(fileId, chunkNumber, ReadMode.HEAP);
+        if (stored == null) {
+            return null;
+        }
+        TieringMover currentMover = mover;
+        if (currentMover != null && tracker.frequency(fileId, chunkNumber) >= StorageConfig.TIERING_PROMOTE_READS) {
+            currentMover.promoteLater(this, fileId, chunkNumber);
+        }
+        return decode(stored);
+    }
+
+    /**
+     * Deletes a chunk from both tiers.
+     *
+     * @return true if either tier held it.
+     */
+    public boolean delete(int fileId, int chunkNumber) throws IOException {
+        ReentrantLock lock = lockFor(fileId, chunkNumber);
+        lock.lock();
+        try {
+            boolean deleted = fast.delete(fileId, chunkNumber);
+            if (bulk != null) {
+                deleted |= bulk.delete(fileId, chunkNumber);
+            }
+            return deleted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes every chunk of a file from both tiers. Takes every stripe of the lock, so no
+     * chunk of the file is moved meanwhile.
+     *
+     * @return true if either tier held a chunk of the file.
+     */
+    public boolean deleteFile(int fileId) throws IOException {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            boolean deleted = fast.deleteFile(fileId);
+            if (bulk != null) {
+                deleted |= bulk.deleteFile(fileId);
+            }
+            return deleted;
+        } finally {
+            for (ReentrantLock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return The chunk numbers of a file held in either tier, in ascending order.
+     */
+    public int[] listChunks(int fileId) {
+        int[] hot = fast.listChunks(fileId);
+        if (bulk == null) {
+            return hot;
+        }
+        return IntStream.concat(IntStream.of(hot), IntStream.of(bulk.listChunks(fileId))).sorted().distinct().toArray();
+    }
+
+    public boolean mightContain(int fileId, int chunkNumber) {
+        return fast.getChunkFilter().mightContain(fileId, chunkNumber)
+                || (bulk != null && bulk.getChunkFilter().mightContain(fileId, chunkNumber));
+    }
+
+    public boolean mightContainFile(int fileId) {
+        return fast.getChunkFilter().mightContainFile(fileId)
+                || (bulk != null && bulk.getChunkFilter().mightContainFile(fileId));
+    }
+
+    /**
+     * @return A filter covering the chunks of both tiers, for handing to clients.
+     */
+    public ChunkBloomFilter getChunkFilter() {
+        return bulk == null ? fast.getChunkFilter() : ChunkBloomFilter.union(fast.getChunkFilter(), bulk.getChunkFilter());
+    }
+
+    /**
+     * Moves a chunk from the fast tier to the bulk tier, compressing it if that pays off.
+     *
+     * @param compressor Compressor owned by the calling thread.
+     * @return The number of fast tier bytes freed, or 0 if the chunk was not moved.
+     */
+    long demote(int fileId, int chunkNumber, ChunkCompressor compressor) throws IOException {
+        ChunkLocation location = fast.locate(fileId, chunkNumber);
+        if (bulk == null || location == null) {
+            return 0;
+        }
+        ByteBuffer data = fast.read(fileId, chunkNumber, ReadMode.HEAP);
+        if (data == null) {
+            return 0;
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        ByteBuffer compressed = compressor.compress(bytes, 0, bytes.length);
+        ChunkCodec codec = compressed != null ? ChunkCodec.DEFLATE : ChunkCodec.NONE;
+        ByteBuffer payload = compressed != null ? compressed : ByteBuffer.wrap(bytes);
+        ByteBuffer record = ByteBuffer.allocate(1 + payload.remaining());
+        record.put((byte) codec.getId()).put(payload).flip();
+
+        ReentrantLock lock = lockFor(fileId, chunkNumber);
+        lock.lock();
+        try {
+            // Overwritten or deleted while it was being compressed: the copy is stale.
+            if (!location.equals(fast.locate(fileId, chunkNumber))) {
+                return 0;
+            }
+            bulk.put(fileId, chunkNumber, record);
+            fast.delete(fileId, chunkNumber);
+            return SegmentChunkStore.RECORD_HEADER_SIZE + location.getLength();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves a chunk from the bulk tier back to the fast tier, uncompressed.
+     *
+     * @return true if the chunk was moved.
+     */
+    boolean promote(int fileId, int chunkNumber) throws IOException {
+        ChunkLocation location = bulk == null ? null : bulk.locate(fileId, chunkNumber);
+        if (location == null) {
+            return false;
+        }
+        ByteBuffer stored = bulk.read(fileId, chunkNumber, ReadMode.HEAP);
+        if (stored == null) {
+            return false;
+        }
+        ByteBuffer data = decode(stored);
+
+        ReentrantLock lock = lockFor(fileId, chunkNumber);
+        lock.lock();
+        try {
+            if (!location.equals(bulk.locate(fileId, chunkNumber))) {
+                return false;
+            }
+            if (!fast.contains(fileId, chunkNumber)) {
+                fast.put(fileId, chunkNumber, data);
+            }
+            bulk.delete(fileId, chunkNumber);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ByteBuffer decode(ByteBuffer stored) throws IOException {
+        ChunkCodec codec = ChunkCodec.fromId(stored.get(stored.position()));
+        ByteBuffer payload = stored.slice(stored.position() + 1, stored.remaining() - 1);
+        return ChunkCompressor.decompress(codec, payload).asReadOnlyBuffer();
+    }
+
+    private ReentrantLock lockFor(int fileId, int chunkNumber) {
+        return locks[Math.floorMod(31 * fileId + chunkNumber, LOCK_STRIPES)];
+    }
+
+    @Override
+    public void close() throws IOException {
+        fast.close();
+        if (bulk != null) {
+            bulk.close();
+        }
+    }
+}
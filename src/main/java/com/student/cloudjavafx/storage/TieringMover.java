@@ -0,0 +1,147 @@
+package com.student.cloudjavafx.storage;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background worker that keeps each server's fast tier within its byte budget.
+ * Every pass first decays the read counters, so a chunk's frequency reflects recent passes
+ * more than old ones, and then, if the fast tier holds more than its budget, moves the least
+ * read chunks to the compressed bulk tier until it is back under 90% of the budget. Chunks
+ * in the segment currently being written are left alone, as they have hardly had a chance to
+ * be read. Bulk chunks that are read often enough are promoted back on request of
+ * {@link TieredChunkStore#readBulk}. Moves are throttled per store like compaction.
+ */
+public class TieringMover {
+
+    private static final Logger LOGGER = Logger.getLogger(TieringMover.class.getName());
+
+    private static final double LOW_WATERMARK = 0.9;
+    // Demotion passes raise the read count they demote up to, coldest first, until this.
+    private static final int MAX_DEMOTE_FREQUENCY = 64;
+
+    private final ScheduledExecutorService executor;
+    private final long fastTierBytes;
+    private final long bytesPerSecond;
+    private final long intervalMinutes;
+    // Chunks queued for promotion, keyed by server and chunk, so hot reads queue a chunk only once.
+    private final Set<String> pendingPromotions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param threads Number of stores that can be rebalanced at the same time.
+     * @param fastTierBytes Live bytes a server's fast tier may hold before chunks are demoted.
+     * @param bytesPerSecond Move budget per store.
+     * @param intervalMinutes Pause between two passes over the same store.
+     */
+    public TieringMover(int threads, long fastTierBytes, long bytesPerSecond, long intervalMinutes) {
+        this.fastTierBytes = fastTierBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.intervalMinutes = intervalMinutes;
+        this.executor = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "tiering-mover");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedules periodic passes over a store, starting after one interval, and lets its reads
+     * request promotions. Does nothing for a store without a bulk tier.
+     */
+    public void register(TieredChunkStore store) {
+        if (store.getBulkTier() == null) {
+            return;
+        }
+        store.setMover(this);
+        executor.scheduleWithFixedDelay(() -> rebalance(store), intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Runs a single pass over a store on the calling thread.
+     *
+     * @return The number of fast tier bytes freed.
+     */
+    public long rebalance(TieredChunkStore store) {
+        store.getAccessTracker().decay();
+        SegmentChunkStore fast = store.getFastTier();
+        long target = (long) (fastTierBytes * LOW_WATERMARK);
+        if (store.getBulkTier() == null || fast.getLiveBytes() <= fastTierBytes) {
+            return 0;
+        }
+        long started = System.nanoTime();
+        long[] freed = new long[1];
+        int activeSegmentId = fast.getActiveSegmentId();
+        try (ChunkCompressor compressor = new ChunkCompressor()) {
+            for (int maxFrequency = 0; maxFrequency <= MAX_DEMOTE_FREQUENCY && fast.getLiveBytes() > target;
+                 maxFrequency = Math.max(1, maxFrequency * 2)) {
+                int threshold = maxFrequency;
+                fast.forEachChunk((fileId, chunkNumber, location) -> {
+                    if (fast.getLiveBytes() <= target || location.getSegmentId() == activeSegmentId
+                            || store.getAccessTracker().frequency(fileId, chunkNumber) > threshold) {
+                        return;
+                    }
+                    freed[0] += store.demote(fileId, chunkNumber, compressor);
+                    throttle(started, freed[0]);
+                });
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Tiering of server " + store.getServerId() + " aborted.", e);
+        } catch (RuntimeException e) {
+            // Never let one failed pass cancel the periodic schedule.
+            LOGGER.log(Level.SEVERE, "Tiering of server " + store.getServerId() + " failed.", e);
+        }
+        LOGGER.log(Level.INFO, "Tiering of server {0} moved {1} bytes to the bulk tier.",
+                new Object[]{store.getServerId(), freed[0]});
+        return freed[0];
+    }
+
+    /**
+     * Queues a bulk chunk for promotion to the fast tier, unless it is queued already.
+     */
+    void promoteLater(TieredChunkStore store, int fileId, int chunkNumber) {
+        String key = store.getServerId() + ":" + fileId + ":" + chunkNumber;
+        if (!pendingPromotions.add(key)) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                store.promote(fileId, chunkNumber);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Promotion of chunk " + chunkNumber + " of file " + fileId
+                        + " on server " + store.getServerId() + " failed.", e);
+            } finally {
+                pendingPromotions.remove(key);
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Sleeps just long enough to keep the average move rate of the pass under the budget.
+     */
+    private void throttle(long startedNanos, long bytesMoved) throws IOException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long dueNanos = (long) (bytesMoved * 1_000_000_000d / bytesPerSecond);
+        long aheadNanos = dueNanos - (System.nanoTime() - startedNanos);
+        if (aheadNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Tiering interrupted.", e);
+            }
+        }
+    }
+}
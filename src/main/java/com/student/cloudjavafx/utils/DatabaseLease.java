@@ -0,0 +1,60 @@
+package com.student.cloudjavafx.utils;
+
+import com.student.cloudjavafx.utils.DatabaseConnection.DatabaseType;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * A named lease in the maintenance_leases table, so that a background job every client
+ * schedules runs in one process at a time. The lease is held by this process until its expiry
+ * time; the holder extends it by acquiring it again before then, and once it has expired, for
+ * instance because the holder exited, any process may take it over. Both are a single
+ * conditional UPDATE, so of two processes racing for an expired lease only one gets it; a
+ * lease that was never taken is created with an INSERT, of which the primary key lets only
+ * one succeed.
+ */
+public final class DatabaseLease {
+
+    /** Identifies this process as the holder of its leases. */
+    private static final String HOLDER = UUID.randomUUID().toString();
+
+    private DatabaseLease() {}
+
+    /**
+     * Takes the lease, or extends it if this process already holds it.
+     *
+     * @param durationMillis How long the lease is held from now.
+     * @return Whether this process holds the lease until now + durationMillis.
+     * @throws SQLException if the table cannot be read or written.
+     */
+    public static boolean tryAcquire(DatabaseType dbType, String name, long durationMillis) throws SQLException {
+        long now = System.currentTimeMillis();
+        try (Connection conn = DatabaseConnection.getConnection(dbType)) {
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "UPDATE maintenance_leases SET holder = ?, expires_at = ? WHERE name = ? AND (holder = ? OR expires_at < ?)")) {
+                pstmt.setString(1, HOLDER);
+                pstmt.setLong(2, now + durationMillis);
+                pstmt.setString(3, name);
+                pstmt.setString(4, HOLDER);
+                pstmt.setLong(5, now);
+                if (pstmt.executeUpdate() > 0) {
+                    return true;
+                }
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "INSERT INTO maintenance_leases (name, holder, expires_at) VALUES (?, ?, ?)")) {
+                pstmt.setString(1, name);
+                pstmt.setString(2, HOLDER);
+                pstmt.setLong(3, now + durationMillis);
+                pstmt.executeUpdate();
+                return true;
+            } catch (SQLException e) {
+                // The row exists: another process holds the lease, or just created it.
+                return false;
+            }
+        }
+    }
+}
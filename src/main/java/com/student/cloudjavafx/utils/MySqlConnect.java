@@ -32,6 +32,8 @@ public class MySqlConnect {
             config.addDataSourceProperty("prepStmtCacheSqlLimit", "4096");
             config.addDataSourceProperty("useServerPrepStmts", "true");
             config.addDataSourceProperty("elideSetAutoCommits", "true");
+            // Sends batched INSERTs, such as the chunk rows of an upload, as multi-row INSERTs.
+            config.addDataSourceProperty("rewriteBatchedStatements", "true");
             config.addDataSourceProperty("maintainTimeStats", "false");
 
             dataSource = new HikariDataSource(config);
@@ -39,6 +41,7 @@ public class MySqlConnect {
             // Test the connection upon initialization
             try (Connection testConn = dataSource.getConnection()) {
                 System.out.println("✅ Successful connection to MySQL database");
+                SchemaMigrations.migrateQuietly(testConn, DatabaseConnection.DatabaseType.MYSQL);
             }
         } catch (ClassNotFoundException e) {
             System.err.println("❌ MySQL Driver not found: " + e.getMessage());
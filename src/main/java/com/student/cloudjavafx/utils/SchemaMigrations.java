@@ -0,0 +1,125 @@
+package com.student.cloudjavafx.utils;
+
+import com.student.cloudjavafx.utils.DatabaseConnection.DatabaseType;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Brings an existing database up to the schema the storage code expects. Every step checks
+ * what is there first and only creates what is missing, so it runs whenever a connection is
+ * initialized, on MySQL and SQLite alike. Columns are added with defaults that describe the
+ * rows written before they existed: uncompressed, replicated chunks of unknown length that
+ * are stored per file.
+ */
+public final class SchemaMigrations {
+
+    private SchemaMigrations() {}
+
+    /**
+     * Applies every missing schema change.
+     *
+     * @param conn A connection in autocommit mode.
+     * @param type The kind of database, for the dialect of the DDL.
+     * @throws SQLException if a change cannot be applied.
+     */
+    public static void migrate(Connection conn, DatabaseType type) throws SQLException {
+        String autoIncrementKey = type == DatabaseType.MYSQL ? "INT AUTO_INCREMENT PRIMARY KEY" : "INTEGER PRIMARY KEY AUTOINCREMENT";
+        // Shared content of deduplicated chunks, referenced from file_chunks.content_id.
+        createTable(conn, "chunk_contents", "content_id " + autoIncrementKey + ", "
+                + "checksum VARCHAR(100) NOT NULL UNIQUE, "
+                + "server_id INT NOT NULL, "
+                + "replica_servers VARCHAR(255), "
+                + "size INT NOT NULL DEFAULT 0, "
+                + "ref_count INT NOT NULL DEFAULT 0, "
+                + "codec INT NOT NULL DEFAULT 0");
+        addColumn(conn, "file_chunks", "content_id", "INT NULL");
+        addColumn(conn, "file_chunks", "codec", "INT NOT NULL DEFAULT 0");
+        addColumn(conn, "file_chunks", "length", "INT NOT NULL DEFAULT 0");
+        addColumn(conn, "file_chunks", "data_shards", "INT NOT NULL DEFAULT 0");
+        addColumn(conn, "file_chunks", "parity_shards", "INT NOT NULL DEFAULT 0");
+        // The chunk size a file was split with; 0 for files split with StorageConfig.CHUNK_SIZE.
+        addColumn(conn, "files", "chunk_size", "INT NOT NULL DEFAULT 0");
+        // Resumable uploads; their files are left out of the file lists until they complete.
+        createTable(conn, "upload_sessions", "session_id VARCHAR(36) PRIMARY KEY, "
+                + "file_id INT NOT NULL, "
+                + "chunk_bitmap BLOB, "
+                + "updated_at BIGINT NOT NULL, "
+                + "source_modified BIGINT NOT NULL DEFAULT 0");
+        addColumn(conn, "upload_sessions", "source_modified", "BIGINT NOT NULL DEFAULT 0");
+        // Background jobs every client schedules but only one may run at a time; see DatabaseLease.
+        createTable(conn, "maintenance_leases", "name VARCHAR(64) PRIMARY KEY, "
+                + "holder VARCHAR(36) NOT NULL, "
+                + "expires_at BIGINT NOT NULL");
+    }
+
+    /**
+     * Runs {@link #migrate} and reports a failure instead of throwing it, so the application
+     * still starts against a database it cannot alter.
+     */
+    public static void migrateQuietly(Connection conn, DatabaseType type) {
+        try {
+            migrate(conn, type);
+        } catch (SQLException e) {
+            System.err.println("❌ Schema migration of the " + type + " database failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The lower-case names of the columns of a result, so that columns an older
+     *         database may not have yet can be read only where they exist.
+     */
+    public static Set<String> columnNames(ResultSet rs) throws SQLException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        Set<String> names = new HashSet<>();
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            names.add(metaData.getColumnLabel(i).toLowerCase(Locale.ROOT));
+        }
+        return names;
+    }
+
+    private static void createTable(Connection conn, String table, String columns) throws SQLException {
+        if (hasTable(conn, table)) {
+            return;
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + table + " (" + columns + ")");
+        }
+        System.out.println("✅ Created table " + table);
+    }
+
+    /**
+     * Adds a column to a table that lacks it. Tables that do not exist at all are left to the
+     * database's own setup.
+     */
+    private static void addColumn(Connection conn, String table, String column, String definition) throws SQLException {
+        if (!hasTable(conn, table) || hasColumn(conn, table, column)) {
+            return;
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        }
+        System.out.println("✅ Added column " + table + "." + column);
+    }
+
+    private static boolean hasTable(Connection conn, String table) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        try (ResultSet rs = metaData.getTables(conn.getCatalog(), null, table, null)) {
+            return rs.next();
+        }
+    }
+
+    private static boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        try (ResultSet rs = metaData.getColumns(conn.getCatalog(), null, table, column)) {
+            return rs.next();
+        }
+    }
+}
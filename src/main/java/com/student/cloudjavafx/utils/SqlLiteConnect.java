@@ -10,6 +10,9 @@ public class SqlLiteConnect {
     // NOTE: This path should be updated to a more dynamic path if needed.
     private static final String URL = "jdbc:sqlite:C:\\Users\\asyrn\\OneDrive\\Desktop\\CloudJavaFX\\cloudloadbalanc.db";
     
+    // How long a statement waits for another connection's write transaction to end, in ms.
+    private static final int BUSY_TIMEOUT_MILLIS = 5000;
+
     // Use a single, shared connection to prevent SQLite busy errors.
     private static Connection connection;
 
@@ -27,15 +30,11 @@ public class SqlLiteConnect {
             try {
                 // Load the SQLite JDBC driver
                 Class.forName("org.sqlite.JDBC");
-                
-                // Configure SQLite to be more lenient with concurrent access.
-                SQLiteConfig config = new SQLiteConfig();
-                config.setJournalMode(SQLiteConfig.JournalMode.WAL);
-                config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
 
                 // Establish the connection.
-                connection = DriverManager.getConnection(URL, config.toProperties());
+                connection = DriverManager.getConnection(URL, config().toProperties());
                 System.out.println("✅ Successful connection to SQLite database");
+                SchemaMigrations.migrateQuietly(connection, DatabaseConnection.DatabaseType.SQLITE);
             } catch (ClassNotFoundException e) {
                 System.err.println("❌ SQLite Driver not found: " + e.getMessage());
                 throw new SQLException("SQLite JDBC Driver not found", e);
@@ -43,6 +42,30 @@ public class SqlLiteConnect {
         }
     }
 
+    /**
+     * Opens a connection of its own to the database, for a caller that runs transactions and
+     * must not take in the statements other callers run on the shared connection meanwhile.
+     * The caller closes it. SQLite allows one writer at a time, so the caller should keep its
+     * write transactions short; other writers wait for them for up to BUSY_TIMEOUT_MILLIS.
+     * @return A new Connection object.
+     * @throws SQLException if the database cannot be opened.
+     */
+    public static Connection openConnection() throws SQLException {
+        if (connection == null || connection.isClosed()) {
+            initializeConnection(); // loads the driver and migrates the schema
+        }
+        return DriverManager.getConnection(URL, config().toProperties());
+    }
+
+    // Configure SQLite to be more lenient with concurrent access.
+    private static SQLiteConfig config() {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        config.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+        return config;
+    }
+
     /**
      * Retrieves the single, initialized SQLite database connection.
      * @return A valid Connection object.
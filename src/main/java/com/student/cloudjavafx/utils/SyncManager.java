@@ -1,6 +1,7 @@
 package com.student.cloudjavafx.utils;
 
 import java.sql.*;
+import java.util.Set;
 
 /**
  * A utility class for synchronizing data from a MySQL database to a SQLite database.
@@ -94,13 +95,14 @@ public class SyncManager {
      */
     private static void syncFiles(Connection mysqlConn, Connection sqliteConn, int userId) throws SQLException {
         String mysqlQuery = "SELECT * FROM files WHERE owner_id = ?";
-        String sqliteInsert = "INSERT OR REPLACE INTO files (file_id, original_name, storage_path, size, owner_id, file_type, created_at, is_encrypted, last_modified, download_count, encryption_key) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        String sqliteInsert = "INSERT OR REPLACE INTO files (file_id, original_name, storage_path, size, owner_id, file_type, created_at, is_encrypted, last_modified, download_count, encryption_key, chunk_size) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
         try (PreparedStatement mysqlPstmt = mysqlConn.prepareStatement(mysqlQuery);
              PreparedStatement sqlitePstmt = sqliteConn.prepareStatement(sqliteInsert)) {
 
             mysqlPstmt.setInt(1, userId);
             ResultSet rs = mysqlPstmt.executeQuery();
+            Set<String> columns = SchemaMigrations.columnNames(rs);
 
             while (rs.next()) {
                 sqlitePstmt.setInt(1, rs.getInt("file_id"));
@@ -114,6 +116,7 @@ public class SyncManager {
                 sqlitePstmt.setTimestamp(9, rs.getTimestamp("last_modified"));
                 sqlitePstmt.setInt(10, rs.getInt("download_count"));
                 sqlitePstmt.setString(11, rs.getString("encryption_key"));
+                sqlitePstmt.setInt(12, columns.contains("chunk_size") ? rs.getInt("chunk_size") : 0);
                 sqlitePstmt.executeUpdate();
                 System.out.println("File " + rs.getString("original_name") + " synchronized.");
             }
@@ -161,13 +164,15 @@ public class SyncManager {
      */
     private static void syncFileChunks(Connection mysqlConn, Connection sqliteConn, int userId) throws SQLException {
         String mysqlQuery = "SELECT fc.* FROM file_chunks fc JOIN files f ON fc.file_id = f.file_id WHERE f.owner_id = ?";
-        String sqliteInsert = "INSERT OR REPLACE INTO file_chunks (chunk_id, file_id, chunk_number, server_id, checksum) VALUES (?, ?, ?, ?, ?)";
+        String sqliteInsert = "INSERT OR REPLACE INTO file_chunks (chunk_id, file_id, chunk_number, server_id, checksum, content_id, codec, length, data_shards, parity_shards) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
         
         try (PreparedStatement mysqlPstmt = mysqlConn.prepareStatement(mysqlQuery);
              PreparedStatement sqlitePstmt = sqliteConn.prepareStatement(sqliteInsert)) {
 
             mysqlPstmt.setInt(1, userId);
             ResultSet rs = mysqlPstmt.executeQuery();
+            // A MySQL database not migrated yet lacks the newer columns; they default as in SchemaMigrations.
+            Set<String> columns = SchemaMigrations.columnNames(rs);
 
             while (rs.next()) {
                 sqlitePstmt.setInt(1, rs.getInt("chunk_id"));
@@ -175,6 +180,11 @@ public class SyncManager {
                 sqlitePstmt.setInt(3, rs.getInt("chunk_number"));
                 sqlitePstmt.setInt(4, rs.getInt("server_id"));
                 sqlitePstmt.setString(5, rs.getString("checksum"));
+                sqlitePstmt.setObject(6, columns.contains("content_id") ? rs.getObject("content_id") : null);
+                sqlitePstmt.setInt(7, columns.contains("codec") ? rs.getInt("codec") : 0);
+                sqlitePstmt.setInt(8, columns.contains("length") ? rs.getInt("length") : 0);
+                sqlitePstmt.setInt(9, columns.contains("data_shards") ? rs.getInt("data_shards") : 0);
+                sqlitePstmt.setInt(10, columns.contains("parity_shards") ? rs.getInt("parity_shards") : 0);
                 sqlitePstmt.executeUpdate();
                 System.out.println("File chunk " + rs.getInt("chunk_id") + " synchronized.");
             }
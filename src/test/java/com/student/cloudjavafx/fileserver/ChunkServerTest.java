@@ -0,0 +1,145 @@
+package com.student.cloudjavafx.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.student.cloudjavafx.storage.ChunkChecksums;
+import com.student.cloudjavafx.storage.SegmentChunkStore;
+import com.student.cloudjavafx.storage.StorageConfig;
+import com.student.cloudjavafx.storage.TieredChunkStore;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The server over a real socket: pipelined requests handed to the workers and the bound on
+ * request frames.
+ */
+class ChunkServerTest {
+
+    @TempDir
+    Path directory;
+
+    private TieredChunkStore store;
+    private ChunkServer server;
+    private Thread serverThread;
+
+    @BeforeEach
+    void start() throws IOException {
+        store = new TieredChunkStore(SegmentChunkStore.open(1, directory, 64L * 1024 * 1024), null);
+        server = new ChunkServer(store, new InetSocketAddress("127.0.0.1", 0));
+        serverThread = new Thread(server, "chunk-server-test");
+        serverThread.start();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        server.close();
+        store.close();
+    }
+
+    @Test
+    void pipelinedStoresAreAllAcknowledgedAndReadable() throws IOException {
+        int count = 40;
+        Map<Integer, byte[]> chunks = new HashMap<>();
+        try (SocketChannel channel = connect()) {
+            for (int i = 0; i < count; i++) {
+                byte[] data = new byte[1000 + i * 997];
+                new Random(i).nextBytes(data);
+                chunks.put(i, data);
+                send(channel, i, ChunkProtocol.OP_STORE, 9, i, ChunkChecksums.crc32c(ByteBuffer.wrap(data)), data);
+            }
+            // Responses come back in whatever order the workers finish.
+            for (int i = 0; i < count; i++) {
+                Response response = receive(channel);
+                assertEquals(ChunkProtocol.STATUS_OK, response.status, "store " + response.requestId);
+                assertTrue(chunks.containsKey(response.requestId));
+            }
+            for (int i = 0; i < count; i++) {
+                send(channel, i, ChunkProtocol.OP_RETRIEVE, 9, i, 0, new byte[0]);
+                Response response = receive(channel);
+                assertEquals(i, response.requestId);
+                assertEquals(ChunkProtocol.STATUS_OK, response.status);
+                ByteBuffer payload = ByteBuffer.wrap(response.payload);
+                payload.getInt();
+                byte[] data = new byte[payload.remaining()];
+                payload.get(data);
+                assertArrayEquals(chunks.get(i), data);
+            }
+        }
+    }
+
+    @Test
+    void storeWithWrongChecksumIsRejected() throws IOException {
+        try (SocketChannel channel = connect()) {
+            send(channel, 1, ChunkProtocol.OP_STORE, 9, 0, 12345, new byte[100]);
+            assertEquals(ChunkProtocol.STATUS_CORRUPTED, receive(channel).status);
+            send(channel, 2, ChunkProtocol.OP_RETRIEVE, 9, 0, 0, new byte[0]);
+            assertEquals(ChunkProtocol.STATUS_NOT_FOUND, receive(channel).status);
+        }
+    }
+
+    @Test
+    void frameLargerThanAnyChunkClosesTheConnection() throws IOException {
+        try (SocketChannel channel = connect()) {
+            int largestChunk = Math.max(1024 * 1024, Math.max(StorageConfig.MAX_CHUNK_BYTES, StorageConfig.CDC_MAX_CHUNK_BYTES));
+            ByteBuffer header = ChunkProtocol.requestHeader(1, ChunkProtocol.OP_STORE, 9, 0, 0, largestChunk + 1);
+            channel.write(header);
+            assertEquals(-1, channel.read(ByteBuffer.allocate(16)));
+        }
+    }
+
+    private SocketChannel connect() throws IOException {
+        return SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+    }
+
+    private static void send(SocketChannel channel, int requestId, byte opcode, int fileId, int chunkNumber,
+                             int crc, byte[] payload) throws IOException {
+        ByteBuffer header = ChunkProtocol.requestHeader(requestId, opcode, fileId, chunkNumber, crc, payload.length);
+        ByteBuffer body = ByteBuffer.wrap(payload);
+        while (header.hasRemaining() || body.hasRemaining()) {
+            channel.write(new ByteBuffer[]{header, body});
+        }
+    }
+
+    private static Response receive(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(ChunkProtocol.RESPONSE_HEADER_BYTES);
+        readFully(channel, header);
+        int length = header.getInt();
+        Response response = new Response(header.getInt(), header.get(),
+                                         new byte[length - (ChunkProtocol.RESPONSE_HEADER_BYTES - 4)]);
+        readFully(channel, ByteBuffer.wrap(response.payload));
+        return response;
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed.");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static final class Response {
+        private final int requestId;
+        private final byte status;
+        private final byte[] payload;
+
+        private Response(int requestId, byte status, byte[] payload) {
+            this.requestId = requestId;
+            this.status = status;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.student.cloudjavafx.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+class ChunkCacheTest {
+
+    private final ChunkCache cache = new ChunkCache(1024 * 1024);
+
+    @Test
+    void loadRacingWithWritesToOtherChunksIsCached() {
+        long token = cache.beginLoad(1, 0);
+        for (int chunk = 0; chunk < 100; chunk++) {
+            cache.invalidate(2, chunk);
+        }
+        cache.invalidateFile(3);
+        cache.put(1, 0, ByteBuffer.wrap(new byte[100]), token);
+        assertNotNull(cache.get(1, 0));
+    }
+
+    @Test
+    void loadRacingWithInvalidationOfItsChunkIsNotCached() {
+        long token = cache.beginLoad(1, 0);
+        cache.invalidate(1, 0);
+        cache.put(1, 0, ByteBuffer.wrap(new byte[100]), token);
+        assertNull(cache.peek(1, 0));
+    }
+
+    @Test
+    void loadRacingWithInvalidationOfItsFileIsNotCached() {
+        long token = cache.beginLoad(1, 5);
+        cache.invalidateFile(1);
+        cache.put(1, 5, ByteBuffer.wrap(new byte[100]), token);
+        assertNull(cache.peek(1, 5));
+    }
+
+    @Test
+    void countsHitsAndMisses() {
+        assertNull(cache.get(4, 0));
+        cache.put(4, 0, ByteBuffer.wrap(new byte[10]), cache.beginLoad(4, 0));
+        assertNotNull(cache.get(4, 0));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRatio());
+    }
+}
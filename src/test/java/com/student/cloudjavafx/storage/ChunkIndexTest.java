@@ -0,0 +1,93 @@
+package com.student.cloudjavafx.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The primitive tables of the index, chunk locations and per-file bitmaps alike, against a
+ * map of maps doing the same puts and removes.
+ */
+class ChunkIndexTest {
+
+    @Test
+    void matchesNestedMapsUnderRandomPutsAndRemoves() {
+        ChunkIndex index = new ChunkIndex();
+        Map<Integer, TreeMap<Integer, ChunkLocation>> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int step = 0; step < 200_000; step++) {
+            int fileId = random.nextInt(50);
+            // Sparse chunk numbers too, so bitmaps get words far apart.
+            int chunkNumber = random.nextInt(8) == 0 ? random.nextInt(100_000) : random.nextInt(300);
+            int op = random.nextInt(100);
+            TreeMap<Integer, ChunkLocation> chunks = expected.computeIfAbsent(fileId, k -> new TreeMap<>());
+            if (op < 60) {
+                ChunkLocation location = new ChunkLocation(1 + random.nextInt(10), random.nextInt(1 << 30), random.nextInt(1 << 20), random.nextInt());
+                assertEquals(chunks.put(chunkNumber, location), index.put(fileId, chunkNumber, location));
+            } else if (op < 99) {
+                assertEquals(chunks.remove(chunkNumber), index.remove(fileId, chunkNumber));
+            } else {
+                List<ChunkLocation> removed = index.removeFile(fileId);
+                assertEquals(chunks.size(), removed.size());
+                assertTrue(removed.containsAll(chunks.values()));
+                chunks.clear();
+            }
+            if (chunks.isEmpty()) {
+                expected.remove(fileId);
+            }
+            if (step % 10_000 == 0) {
+                assertSameContent(expected, index);
+            }
+        }
+        assertSameContent(expected, index);
+    }
+
+    @Test
+    void locateFillsTheHolderWithoutChangingTheIndex() {
+        ChunkIndex index = new ChunkIndex();
+        index.put(3, 64, new ChunkLocation(2, 1234L, 99, 0xCAFEBABE));
+        ChunkIndex.LocationHolder holder = new ChunkIndex.LocationHolder();
+        assertTrue(index.locate(3, 64, holder));
+        assertEquals(2, holder.segmentId);
+        assertEquals(1234L, holder.offset);
+        assertEquals(99, holder.length);
+        assertEquals(0xCAFEBABE, holder.crc);
+        assertFalse(index.locate(3, 63, holder));
+        assertTrue(index.contains(3, 64));
+        assertFalse(index.contains(4, 64));
+        assertArrayEquals(new int[]{3}, index.fileIds());
+    }
+
+    private static void assertSameContent(Map<Integer, TreeMap<Integer, ChunkLocation>> expected, ChunkIndex index) {
+        int size = 0;
+        for (Map.Entry<Integer, TreeMap<Integer, ChunkLocation>> file : expected.entrySet()) {
+            int[] chunkNumbers = file.getValue().keySet().stream().mapToInt(Integer::intValue).toArray();
+            assertArrayEquals(chunkNumbers, index.listChunks(file.getKey()), "chunks of file " + file.getKey());
+            assertTrue(index.containsFile(file.getKey()));
+            for (Map.Entry<Integer, ChunkLocation> chunk : file.getValue().entrySet()) {
+                ChunkLocation location = index.get(file.getKey(), chunk.getKey());
+                assertEquals(chunk.getValue(), location);
+                assertEquals(chunk.getValue().getCrc(), location.getCrc());
+            }
+            size += chunkNumbers.length;
+        }
+        TreeSet<Integer> fileIds = new TreeSet<>();
+        for (int fileId : index.fileIds()) {
+            assertTrue(fileIds.add(fileId), "file " + fileId + " listed twice");
+        }
+        assertEquals(expected.keySet(), fileIds);
+        assertEquals(size, index.size());
+        for (int fileId = 0; fileId < 50; fileId++) {
+            assertEquals(expected.containsKey(fileId), index.containsFile(fileId));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.student.cloudjavafx.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/**
+ * The two-bytes-per-step cut point search against the gear loop it unrolls, and the property
+ * content-defined chunking exists for: an edit only moves the boundaries around it.
+ */
+class ContentDefinedChunkerTest {
+
+    private static final int DATA_SIZE = 2 * 1024 * 1024;
+
+    @ParameterizedTest(name = "{0}/{1}/{2}")
+    @CsvSource({"64, 256, 1024", "65, 300, 1000", "2048, 8192, 65536", "4097, 16384, 32767"})
+    void cutPointMatchesOneBytePerStepGearLoop(int minSize, int avgSize, int maxSize) {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(InputStream.nullInputStream(), minSize, avgSize, maxSize);
+        byte[] data = randomBytes(minSize * 31L + avgSize, DATA_SIZE);
+        Random random = new Random(maxSize);
+        int offset = 0;
+        while (offset < data.length) {
+            int length = data.length - offset;
+            if (random.nextInt(8) == 0) {
+                // Short windows, as at the end of a stream, of either parity.
+                length = Math.min(length, 1 + random.nextInt(maxSize + 1));
+            }
+            int expected = naiveCutPoint(data, offset, length, minSize, avgSize, maxSize);
+            assertEquals(expected, chunker.cutPoint(data, offset, length), "cut point of the chunk at " + offset);
+            offset += expected;
+        }
+    }
+
+    @ParameterizedTest(name = "{0} bytes at {1}")
+    @CsvSource({"1, 700000", "100, 700000", "8191, 123457", "30000, 1500001"})
+    void boundariesResynchroniseAfterInsertion(int inserted, int position) throws IOException {
+        int minSize = 2048;
+        int avgSize = 8192;
+        int maxSize = 65536;
+        byte[] original = randomBytes(42, DATA_SIZE);
+        byte[] edited = new byte[original.length + inserted];
+        System.arraycopy(original, 0, edited, 0, position);
+        System.arraycopy(randomBytes(inserted, inserted), 0, edited, position, inserted);
+        System.arraycopy(original, position, edited, position + inserted, original.length - position);
+
+        List<Integer> before = boundaries(original, minSize, avgSize, maxSize);
+        Set<Integer> after = new HashSet<>(boundaries(edited, minSize, avgSize, maxSize));
+        int resynchronised = -1;
+        for (int boundary : before) {
+            if (boundary <= position) {
+                assertTrue(after.contains(boundary), "boundary " + boundary + " before the insertion moved");
+            } else if (resynchronised < 0 && after.contains(boundary + inserted)) {
+                resynchronised = boundary;
+            } else if (resynchronised >= 0) {
+                assertTrue(after.contains(boundary + inserted), "boundary " + boundary + " after resynchronising was lost");
+            }
+        }
+        assertTrue(resynchronised > position, "the boundaries never resynchronised");
+        assertTrue(resynchronised - position <= 2 * maxSize,
+                "resynchronised only " + (resynchronised - position) + " bytes after the insertion");
+    }
+
+    /**
+     * The gear hash as FastCDC describes it: one byte per step, the strict mask up to avgSize,
+     * the loose mask up to maxSize.
+     */
+    private static int naiveCutPoint(byte[] data, int offset, int length, int minSize, int avgSize, int maxSize) {
+        if (length <= minSize) {
+            return length;
+        }
+        int bits = Integer.numberOfTrailingZeros(Integer.highestOneBit(avgSize));
+        long strictMask = topBits(bits + 2);
+        long looseMask = topBits(Math.max(1, bits - 2));
+        int normal = Math.min(avgSize, length);
+        int limit = Math.min(maxSize, length);
+        long hash = 0;
+        for (int i = minSize; i < limit; i++) {
+            hash = (hash << 1) + ContentDefinedChunker.GEAR[data[offset + i] & 0xFF];
+            if ((hash & (i < normal ? strictMask : looseMask)) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    private static long topBits(int count) {
+        return (-1L << (64 - count)) >>> 1;
+    }
+
+    /**
+     * @return The end offsets of the chunks nextChunk splits the data into.
+     */
+    private static List<Integer> boundaries(byte[] data, int minSize, int avgSize, int maxSize) throws IOException {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(new ByteArrayInputStream(data), minSize, avgSize, maxSize);
+        byte[] chunk = new byte[chunker.getMaxSize()];
+        List<Integer> ends = new ArrayList<>();
+        int offset = 0;
+        for (int length; (length = chunker.nextChunk(chunk)) > 0; ) {
+            offset += length;
+            ends.add(offset);
+        }
+        assertEquals(data.length, offset);
+        return ends;
+    }
+
+    private static byte[] randomBytes(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
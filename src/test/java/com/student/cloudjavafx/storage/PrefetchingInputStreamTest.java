@@ -0,0 +1,92 @@
+package com.student.cloudjavafx.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class PrefetchingInputStreamTest {
+
+    private static final int PART_BYTES = 4096;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final BufferPool pool = new BufferPool(64L * 1024 * 1024);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void readsPartsInOrderAndReturnsTheirBuffers() throws IOException {
+        List<Callable<List<PooledBuffer>>> parts = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            int part = i;
+            parts.add(() -> List.of(filled(part)));
+        }
+        byte[] read;
+        try (PrefetchingInputStream in = new PrefetchingInputStream(parts, executor, 2, 8)) {
+            read = in.readAllBytes();
+        }
+        assertEquals(20 * PART_BYTES, read.length);
+        for (int i = 0; i < 20; i++) {
+            byte[] expected = new byte[PART_BYTES];
+            Arrays.fill(expected, (byte) i);
+            assertArrayEquals(expected, Arrays.copyOfRange(read, i * PART_BYTES, (i + 1) * PART_BYTES));
+        }
+        assertEquals(pool.getAllocated() * PART_BYTES, pool.getIdleBytes(), "every buffer is back in the pool");
+    }
+
+    @Test
+    void fetchFinishingAfterCloseReleasesItsBuffers() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        Callable<List<PooledBuffer>> slowPart = () -> {
+            try {
+                started.countDown();
+                // Ignores the interrupt of cancel(true), like a fetch past its last blocking call.
+                while (!awaitUninterruptibly(proceed)) {
+                    Thread.onSpinWait();
+                }
+                return List.of(filled(1));
+            } finally {
+                finished.countDown();
+            }
+        };
+        PrefetchingInputStream in = new PrefetchingInputStream(List.of(() -> List.of(filled(0)), slowPart), executor, 2, 2);
+        assertEquals(0, in.read());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        in.close();
+        proceed.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(pool.getAllocated() * PART_BYTES, pool.getIdleBytes(), "both parts' buffers are back in the pool");
+    }
+
+    private PooledBuffer filled(int value) {
+        PooledBuffer buffer = pool.acquire(PART_BYTES);
+        Arrays.fill(buffer.array(), 0, PART_BYTES, (byte) value);
+        return buffer;
+    }
+
+    private static boolean awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            return latch.await(10, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.student.cloudjavafx.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+class ReedSolomonTest {
+
+    private static final int SHARD_SIZE = 1031;
+
+    @ParameterizedTest(name = "{0}+{1}")
+    @CsvSource({"1, 1", "2, 2", "4, 2", "6, 3", "10, 4", "5, 0"})
+    void rebuildsDataFromEveryCombinationOfUpToParityErasures(int dataShards, int parityShards) {
+        ReedSolomon codec = new ReedSolomon(dataShards, parityShards);
+        byte[][] original = encodedStripe(codec, dataShards * 31L + parityShards);
+        int total = codec.getTotalShards();
+        for (int erased = 1; erased < 1 << total; erased++) {
+            if (Integer.bitCount(erased) > parityShards) {
+                continue;
+            }
+            byte[][] shards = new byte[total][];
+            boolean[] present = new boolean[total];
+            for (int i = 0; i < total; i++) {
+                present[i] = (erased & 1 << i) == 0;
+                // Erased shards are either missing or hold stale bytes that must be overwritten.
+                shards[i] = present[i] ? original[i].clone() : (i % 2 == 0 ? null : garbage(i));
+            }
+            codec.reconstructData(shards, present, SHARD_SIZE);
+            for (int i = 0; i < dataShards; i++) {
+                assertArrayEquals(original[i], Arrays.copyOf(shards[i], SHARD_SIZE),
+                        "data shard " + i + " after erasing " + Integer.toBinaryString(erased));
+            }
+        }
+    }
+
+    @ParameterizedTest(name = "{0}+{1}")
+    @CsvSource({"2, 2", "4, 2", "6, 3"})
+    void rejectsStripesWithMoreErasuresThanParity(int dataShards, int parityShards) {
+        ReedSolomon codec = new ReedSolomon(dataShards, parityShards);
+        byte[][] shards = encodedStripe(codec, 7);
+        boolean[] present = new boolean[codec.getTotalShards()];
+        Arrays.fill(present, parityShards + 1, present.length, true);
+        assertThrows(IllegalArgumentException.class, () -> codec.reconstructData(shards, present, SHARD_SIZE));
+    }
+
+    private static byte[][] encodedStripe(ReedSolomon codec, long seed) {
+        Random random = new Random(seed);
+        byte[][] shards = new byte[codec.getTotalShards()][SHARD_SIZE];
+        for (int i = 0; i < codec.getDataShards(); i++) {
+            random.nextBytes(shards[i]);
+        }
+        codec.encodeParity(shards, SHARD_SIZE);
+        return shards;
+    }
+
+    private static byte[] garbage(int seed) {
+        byte[] bytes = new byte[SHARD_SIZE];
+        new Random(-seed).nextBytes(bytes);
+        return bytes;
+    }
+}
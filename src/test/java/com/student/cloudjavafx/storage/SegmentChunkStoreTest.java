@@ -0,0 +1,292 @@
+package com.student.cloudjavafx.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Recovery of the segment log: what a store rebuilds when it is reopened after a clean
+ * shutdown, a crash mid-write or damage on disk.
+ */
+class SegmentChunkStoreTest {
+
+    private static final long LARGE_SEGMENTS = 64L * 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void reopenedStoreServesWhatWasWritten() throws IOException {
+        byte[] first = chunk(1, 1000);
+        byte[] second = chunk(2, 5000);
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            store.put(7, 0, ByteBuffer.wrap(first));
+            store.put(7, 1, ByteBuffer.wrap(chunk(3, 10)));
+            store.put(7, 1, ByteBuffer.wrap(second));
+        }
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            assertEquals(2, store.chunkCount());
+            assertArrayEquals(first, store.get(7, 0));
+            assertArrayEquals(second, store.get(7, 1), "the later record supersedes the earlier one");
+        }
+    }
+
+    @Test
+    void tombstonesAreReplayed() throws IOException {
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            store.put(1, 0, ByteBuffer.wrap(chunk(1, 100)));
+            store.put(1, 1, ByteBuffer.wrap(chunk(2, 100)));
+            store.put(2, 0, ByteBuffer.wrap(chunk(3, 100)));
+            store.put(2, 1, ByteBuffer.wrap(chunk(4, 100)));
+            assertTrue(store.delete(1, 0));
+            assertTrue(store.deleteFile(2));
+        }
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            assertNull(store.get(1, 0));
+            assertArrayEquals(chunk(2, 100), store.get(1, 1));
+            assertFalse(store.contains(2, 0));
+            assertFalse(store.contains(2, 1));
+            assertEquals(1, store.chunkCount());
+        }
+    }
+
+    @Test
+    void tombstoneInLaterSegmentRemovesChunkOfSealedSegment() throws IOException {
+        // Every record fills a segment of its own, so the put and its tombstone are replayed from different files.
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, 200)) {
+            store.put(1, 0, ByteBuffer.wrap(chunk(1, 150)));
+            store.put(1, 1, ByteBuffer.wrap(chunk(2, 150)));
+            store.delete(1, 0);
+            assertTrue(store.getActiveSegmentId() > 1);
+        }
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, 200)) {
+            assertNull(store.get(1, 0));
+            assertArrayEquals(chunk(2, 150), store.get(1, 1));
+        }
+    }
+
+    @Test
+    void mappedReadsSliceSealedSegmentsAndReadTheActiveOne() throws IOException {
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, 200)) {
+            store.put(1, 0, ByteBuffer.wrap(chunk(1, 150)));
+            store.put(1, 1, ByteBuffer.wrap(chunk(2, 150)));
+            for (int round = 0; round < 2; round++) {
+                for (int chunkNumber = 0; chunkNumber < 2; chunkNumber++) {
+                    ByteBuffer whole = store.read(1, chunkNumber, ReadMode.MAPPED);
+                    assertTrue(whole.isDirect() && whole.isReadOnly());
+                    assertArrayEquals(chunk(chunkNumber + 1, 150), bytes(whole));
+                    ByteBuffer range = store.readRange(1, chunkNumber, 20, 30, ReadMode.MAPPED);
+                    assertArrayEquals(Arrays.copyOfRange(chunk(chunkNumber + 1, 150), 20, 50), bytes(range));
+                }
+            }
+        }
+    }
+
+    @Test
+    void tornPayloadAtTailIsTruncated() throws IOException {
+        byte[] first = chunk(1, 1000);
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            store.put(3, 0, ByteBuffer.wrap(first));
+            store.put(3, 1, ByteBuffer.wrap(chunk(2, 1000)));
+        }
+        Path segment = segmentFile(1);
+        long intact = SegmentChunkStore.SEGMENT_HEADER_SIZE + SegmentChunkStore.RECORD_HEADER_SIZE + first.length;
+        truncate(segment, intact + SegmentChunkStore.RECORD_HEADER_SIZE + 400);
+
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            assertArrayEquals(first, store.get(3, 0));
+            assertNull(store.get(3, 1));
+            assertEquals(intact, Files.size(segment), "the torn record is cut off");
+            store.put(3, 2, ByteBuffer.wrap(chunk(3, 500)));
+        }
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            assertArrayEquals(first, store.get(3, 0));
+            assertArrayEquals(chunk(3, 500), store.get(3, 2), "records appended after the truncation are replayed");
+        }
+    }
+
+    @Test
+    void tornHeaderAtTailIsTruncated() throws IOException {
+        byte[] first = chunk(1, 64);
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            store.put(3, 0, ByteBuffer.wrap(first));
+            store.put(3, 1, ByteBuffer.wrap(chunk(2, 64)));
+        }
+        long intact = SegmentChunkStore.SEGMENT_HEADER_SIZE + SegmentChunkStore.RECORD_HEADER_SIZE + first.length;
+        truncate(segmentFile(1), intact + 7);
+
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            assertEquals(1, store.chunkCount());
+            assertArrayEquals(first, store.get(3, 0));
+            assertEquals(intact, Files.size(segmentFile(1)));
+        }
+    }
+
+    @Test
+    void lastRecordFailingItsChecksumIsDropped() throws IOException {
+        byte[] first = chunk(1, 300);
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            store.put(4, 0, ByteBuffer.wrap(first));
+            store.put(4, 1, ByteBuffer.wrap(chunk(2, 300)));
+        }
+        long intact = SegmentChunkStore.SEGMENT_HEADER_SIZE + SegmentChunkStore.RECORD_HEADER_SIZE + first.length;
+        // The file has its full length but the last payload never made it to disk intact.
+        flipByte(segmentFile(1), Files.size(segmentFile(1)) - 1);
+
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            assertArrayEquals(first, store.get(4, 0));
+            assertNull(store.get(4, 1));
+            assertEquals(intact, Files.size(segmentFile(1)));
+        }
+    }
+
+    @Test
+    void damagedRecordFollowedByIntactOnesIsKeptAndRejectedOnVerify() throws IOException {
+        byte[] last = chunk(3, 200);
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            store.put(5, 0, ByteBuffer.wrap(chunk(1, 200)));
+            store.put(5, 1, ByteBuffer.wrap(chunk(2, 200)));
+            store.put(5, 2, ByteBuffer.wrap(last));
+        }
+        long secondPayload = SegmentChunkStore.SEGMENT_HEADER_SIZE + 2L * SegmentChunkStore.RECORD_HEADER_SIZE + 200;
+        long sizeBefore = Files.size(segmentFile(1));
+        flipByte(segmentFile(1), secondPayload + 10);
+
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            assertEquals(sizeBefore, Files.size(segmentFile(1)), "damage in the middle is not mistaken for a torn tail");
+            assertEquals(3, store.chunkCount());
+            assertArrayEquals(last, store.get(5, 2));
+            ChunkCorruptedException e = assertThrows(ChunkCorruptedException.class, () -> store.verify(5, 1, null));
+            assertEquals(5, e.getFileId());
+            assertEquals(1, e.getChunkNumber());
+            store.verify(5, 0, null);
+        }
+    }
+
+    @Test
+    void largeRangeOfDamagedChunkIsRejectedAndSmallOneReadAlone() throws IOException {
+        byte[] data = chunk(4, 1000);
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            store.put(8, 0, ByteBuffer.wrap(data));
+            store.put(8, 1, ByteBuffer.wrap(chunk(5, 100))); // so the damaged record is not the torn tail
+        }
+        long payload = SegmentChunkStore.SEGMENT_HEADER_SIZE + SegmentChunkStore.RECORD_HEADER_SIZE;
+        flipByte(segmentFile(1), payload + 900);
+
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            for (ReadMode mode : ReadMode.values()) {
+                assertThrows(ChunkCorruptedException.class, () -> store.readRange(8, 0, 100, 500, mode));
+                ByteBuffer range = store.readRange(8, 0, 10, 50, mode);
+                byte[] bytes = new byte[range.remaining()];
+                range.get(bytes);
+                assertArrayEquals(Arrays.copyOfRange(data, 10, 60), bytes, "a small range away from the damage");
+            }
+        }
+    }
+
+    @Test
+    void compactionRewritesFileTombstoneOfRewrittenFileAsChunkTombstones() throws IOException {
+        int record = SegmentChunkStore.RECORD_HEADER_SIZE + 300;
+        // Two chunks fill a segment: 1 = {3/0, 3/1}, 2 = {9/0, delete file 3, 3/0 again}, 3 = {9/1}.
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, 700)) {
+            store.put(3, 0, ByteBuffer.wrap(chunk(1, 300)));
+            store.put(3, 1, ByteBuffer.wrap(chunk(2, 300)));
+            store.put(9, 0, ByteBuffer.wrap(chunk(3, 300)));
+            store.deleteFile(3);
+            store.put(3, 0, ByteBuffer.wrap(chunk(4, 300)));
+            store.put(9, 1, ByteBuffer.wrap(chunk(5, 300)));
+            assertEquals(3, store.getActiveSegmentId());
+
+            assertTrue(store.compact(2, (fileId, chunkNumber, location) -> { }) >= 0);
+            assertEquals(3L * record, store.getLiveBytes(), "tombstones are not live bytes");
+            assertEquals(1, store.purgeRetiredSegments(0));
+        }
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, 700)) {
+            assertArrayEquals(chunk(4, 300), store.get(3, 0));
+            assertFalse(store.contains(3, 1), "the chunk the file tombstone hid stays deleted");
+            assertArrayEquals(chunk(3, 300), store.get(9, 0));
+            assertArrayEquals(chunk(5, 300), store.get(9, 1));
+        }
+    }
+
+    @Test
+    void compactionDropsTombstoneOnceNoOlderSegmentHoldsItsFile() throws IOException {
+        int record = SegmentChunkStore.RECORD_HEADER_SIZE + 300;
+        // 1 = {4/0, 4/1}, 2 = {9/0, delete 4/0, 9/1}, 3 = {9/2}
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, 700)) {
+            store.put(4, 0, ByteBuffer.wrap(chunk(1, 300)));
+            store.put(4, 1, ByteBuffer.wrap(chunk(2, 300)));
+            store.put(9, 0, ByteBuffer.wrap(chunk(3, 300)));
+            store.delete(4, 0);
+            store.put(9, 1, ByteBuffer.wrap(chunk(4, 300)));
+            store.put(9, 2, ByteBuffer.wrap(chunk(5, 300)));
+            long secondSize = Files.size(segmentFile(2));
+
+            assertTrue(store.compact(1, (fileId, chunkNumber, location) -> { }) >= 0);
+            assertEquals(1, store.purgeRetiredSegments(0));
+            assertEquals(secondSize - 2L * record, store.compact(2, (fileId, chunkNumber, location) -> { }),
+                    "only the two live chunks are kept");
+            assertEquals(4L * record, store.getLiveBytes());
+            assertEquals(1, store.purgeRetiredSegments(0));
+        }
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, 700)) {
+            assertFalse(store.contains(4, 0));
+            assertArrayEquals(chunk(2, 300), store.get(4, 1));
+            assertEquals(4, store.chunkCount());
+        }
+    }
+
+    @Test
+    void invalidSegmentHeaderIsRejected() throws IOException {
+        try (SegmentChunkStore store = SegmentChunkStore.open(1, directory, LARGE_SEGMENTS)) {
+            store.put(6, 0, ByteBuffer.wrap(chunk(1, 10)));
+        }
+        flipByte(segmentFile(1), 0);
+        assertThrows(IOException.class, () -> SegmentChunkStore.open(1, directory, LARGE_SEGMENTS));
+    }
+
+    private Path segmentFile(int segmentId) {
+        return directory.resolve(SegmentChunkStore.segmentFileName(segmentId));
+    }
+
+    private static byte[] chunk(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private static void flipByte(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) ~b.get(0));
+            channel.write(b.rewind(), position);
+        }
+    }
+}